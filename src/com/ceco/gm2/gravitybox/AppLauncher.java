@@ -60,6 +60,7 @@ public class AppLauncher {
     private Handler mHandler;
     private PackageManager mPm;
     private List<AppInfo> mAppSlots;
+    private String[] mSlotValues;
     private View mAppView;
     private XSharedPreferences mPrefs;
 
@@ -92,6 +93,15 @@ public class AppLauncher {
                     updateAppSlot(i, mPrefs.getString(
                             GravityBoxSettings.PREF_KEY_APP_LAUNCHER_SLOT.get(i), null));
                 }
+            } else if (intent.getData() != null) {
+                // slots stay resolved until package they point to changes
+                final String pkg = intent.getData().getSchemeSpecificPart();
+                for (int i = 0; i < mSlotValues.length; i++) {
+                    if (mSlotValues[i] != null && pkg != null && mSlotValues[i].contains(pkg)) {
+                        if (DEBUG) log("Package " + pkg + " changed; refreshing slot " + i);
+                        mAppSlots.get(i).initAppInfo(mSlotValues[i]);
+                    }
+                }
             }
         }
     };
@@ -118,6 +128,7 @@ public class AppLauncher {
         mAppSlots.add(new AppInfo(R.id.quickapp6));
         mAppSlots.add(new AppInfo(R.id.quickapp7));
         mAppSlots.add(new AppInfo(R.id.quickapp8));
+        mSlotValues = new String[mAppSlots.size()];
 
         for (int i = 0; i < GravityBoxSettings.PREF_KEY_APP_LAUNCHER_SLOT.size(); i++) {
             updateAppSlot(i, mPrefs.getString(
@@ -128,6 +139,13 @@ public class AppLauncher {
         intentFilter.addAction(GravityBoxSettings.ACTION_PREF_APP_LAUNCHER_CHANGED);
         intentFilter.addAction(Intent.ACTION_BOOT_COMPLETED);
         mContext.registerReceiver(mBroadcastReceiver, intentFilter);
+
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addDataScheme("package");
+        mContext.registerReceiver(mBroadcastReceiver, packageFilter);
     }
 
     public boolean dismissDialog() {
@@ -236,6 +254,7 @@ public class AppLauncher {
     }
 
     private void updateAppSlot(int slot, String value) {
+        mSlotValues[slot] = value;
         AppInfo ai = mAppSlots.get(slot);
         if (ai.getValue() == null || !ai.getValue().equals(value)) {
             ai.initAppInfo(value);
@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2013 Peter Gregus for GravityBox Project (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.gm2.gravitybox;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.app.ActivityManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.os.Process;
+import android.os.SystemClock;
+import de.robv.android.xposed.XC_MethodHook;
+import de.robv.android.xposed.XposedBridge;
+import de.robv.android.xposed.XposedHelpers;
+
+// Keeps track of app currently resumed in system_server so that key actions
+// don't have to query activity manager or package manager when they fire.
+public class ForegroundAppTracker {
+    private static final String TAG = "GB:ForegroundAppTracker";
+    private static final boolean DEBUG = false;
+
+    private static final String CLASS_ACTIVITY_STACK = "com.android.server.am.ActivityStack";
+    private static final String DEFAULT_HOME_PACKAGE = "com.android.launcher";
+    private static final String PACKAGE_SYSTEMUI = "com.android.systemui";
+    private static final int RECENT_TASKS_MAX = 8;
+    // repeated previous app requests within this time keep walking back through recent tasks
+    private static final long PREV_APP_CYCLE_TIMEOUT = 2000;
+
+    public static class AppRecord {
+        public final String packageName;
+        public final String processName;
+        public final int pid;
+        public final int uid;
+        public final int taskId;
+
+        AppRecord(String packageName, String processName, int pid, int uid, int taskId) {
+            this.packageName = packageName;
+            this.processName = processName;
+            this.pid = pid;
+            this.uid = uid;
+            this.taskId = taskId;
+        }
+    }
+
+    private static Context mContext;
+    private static volatile AppRecord mForegroundApp;
+    private static volatile String mHomePackage;
+    private static boolean mHomeFlagUnsupported;
+    private static volatile Object mActivityStack;
+    private static boolean mHistoryUnsupported;
+    private static final Map<String, String> mLabelCache = new HashMap<String, String>();
+    // most recently resumed task first
+    private static final AppRecord[] mRecentTasks = new AppRecord[RECENT_TASKS_MAX];
+    private static int mRecentTaskCount;
+    private static AppRecord[] mCycleTasks;
+    private static int mCycleIndex;
+    private static long mCycleTime;
+
+    private static void log(String message) {
+        XposedBridge.log(TAG + ": " + message);
+    }
+
+    private static BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (DEBUG) log("Broadcast received: " + intent.toString());
+            // default launcher or labels might have changed
+            mHomePackage = null;
+            synchronized (mLabelCache) {
+                mLabelCache.clear();
+            }
+            if (Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction()) && intent.getData() != null) {
+                removeRecentTasks(intent.getData().getSchemeSpecificPart());
+            }
+        }
+    };
+
+    public static void initZygote() {
+        try {
+            final Class<?> classActivityStack = XposedHelpers.findClass(CLASS_ACTIVITY_STACK, null);
+
+            XposedBridge.hookAllMethods(classActivityStack, "completeResumeLocked", new XC_MethodHook() {
+                @Override
+                protected void afterHookedMethod(MethodHookParam param) throws Throwable {
+                    if (param.args.length == 0 || param.args[0] == null) return;
+                    mActivityStack = param.thisObject;
+                    onActivityResumed(param.args[0]);
+                }
+            });
+        } catch (Throwable t) {
+            XposedBridge.log(t);
+        }
+    }
+
+    public static void init(Context context) {
+        mContext = context;
+
+        IntentFilter intentFilter = new IntentFilter();
+        intentFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        intentFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        intentFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        intentFilter.addDataScheme("package");
+        mContext.registerReceiver(mPackageReceiver, intentFilter);
+    }
+
+    private static void onActivityResumed(Object activityRecord) {
+        try {
+            final Object app = XposedHelpers.getObjectField(activityRecord, "app");
+            if (app == null) return;
+
+            final String packageName = (String) XposedHelpers.getObjectField(activityRecord, "packageName");
+            final ApplicationInfo info = (ApplicationInfo) XposedHelpers.getObjectField(app, "info");
+            final Object task = XposedHelpers.getObjectField(activityRecord, "task");
+            final AppRecord record = new AppRecord(packageName,
+                    (String) XposedHelpers.getObjectField(app, "processName"),
+                    XposedHelpers.getIntField(app, "pid"),
+                    info.uid,
+                    task == null ? -1 : XposedHelpers.getIntField(task, "taskId"));
+            mForegroundApp = record;
+            addRecentTask(record);
+
+            if (isHomeActivity(activityRecord)) {
+                mHomePackage = packageName;
+            }
+            if (DEBUG) log("Resumed: " + record.packageName + "; pid=" + record.pid +
+                    "; taskId=" + record.taskId);
+        } catch (Throwable t) {
+            XposedBridge.log(t);
+        }
+    }
+
+    private static boolean isHomeActivity(Object activityRecord) {
+        if (mHomeFlagUnsupported) return false;
+        try {
+            return XposedHelpers.getBooleanField(activityRecord, "isHomeActivity");
+        } catch (NoSuchFieldError e) {
+            // home package will be resolved via package manager instead
+            mHomeFlagUnsupported = true;
+            return false;
+        }
+    }
+
+    public static AppRecord getForegroundApp() {
+        return mForegroundApp;
+    }
+
+    public static String getHomePackage() {
+        String homePackage = mHomePackage;
+        if (homePackage == null && mContext != null) {
+            homePackage = DEFAULT_HOME_PACKAGE;
+            Intent intent = new Intent(Intent.ACTION_MAIN);
+            intent.addCategory(Intent.CATEGORY_HOME);
+            final ResolveInfo res = mContext.getPackageManager().resolveActivity(intent, 0);
+            if (res != null && res.activityInfo != null &&
+                    !res.activityInfo.packageName.equals("android")) {
+                homePackage = res.activityInfo.packageName;
+            }
+            mHomePackage = homePackage;
+            if (DEBUG) log("Home package resolved: " + homePackage);
+        }
+        return homePackage;
+    }
+
+    // Process of given record might be gone and its pid reused meanwhile
+    public static boolean isAlive(AppRecord app) {
+        try {
+            return (Integer) XposedHelpers.callStaticMethod(Process.class, "getUidForPid", app.pid) == app.uid;
+        } catch (Throwable t) {
+            return true;
+        }
+    }
+
+    private static void addRecentTask(AppRecord record) {
+        if (record.taskId < 0) return;
+
+        synchronized (mRecentTasks) {
+            int index = 0;
+            while (index < mRecentTaskCount && mRecentTasks[index].taskId != record.taskId) {
+                index++;
+            }
+            if (index == mRecentTaskCount && mRecentTaskCount < RECENT_TASKS_MAX) {
+                mRecentTaskCount++;
+            }
+            // shift more recent tasks down and put resumed task on top; oldest one falls out
+            for (int i = Math.min(index, RECENT_TASKS_MAX - 1); i > 0; i--) {
+                mRecentTasks[i] = mRecentTasks[i - 1];
+            }
+            mRecentTasks[0] = record;
+        }
+    }
+
+    private static void removeRecentTasks(String packageName) {
+        synchronized (mRecentTasks) {
+            int count = 0;
+            for (int i = 0; i < mRecentTaskCount; i++) {
+                if (!mRecentTasks[i].packageName.equals(packageName)) {
+                    mRecentTasks[count++] = mRecentTasks[i];
+                }
+            }
+            for (int i = count; i < mRecentTaskCount; i++) {
+                mRecentTasks[i] = null;
+            }
+            mRecentTaskCount = count;
+            mCycleTasks = null;
+        }
+    }
+
+    // Returns ids of tasks that still have activities, or null if they can't be determined.
+    // Tasks user backed out of or removed from recents are not reported via resume so they
+    // have to be checked for when they are about to be used.
+    private static Set<Integer> getLiveTaskIds() {
+        final Object stack = mActivityStack;
+        if (stack != null && !mHistoryUnsupported) {
+            try {
+                final Set<Integer> taskIds = new HashSet<Integer>();
+                synchronized (XposedHelpers.getObjectField(stack, "mService")) {
+                    final List<?> history = (List<?>) XposedHelpers.getObjectField(stack, "mHistory");
+                    for (Object r : history) {
+                        final Object task = XposedHelpers.getObjectField(r, "task");
+                        if (task != null && !XposedHelpers.getBooleanField(r, "finishing")) {
+                            taskIds.add(XposedHelpers.getIntField(task, "taskId"));
+                        }
+                    }
+                }
+                return taskIds;
+            } catch (NoSuchFieldError e) {
+                // activity stack without flat history; running tasks list only contains live tasks
+                mHistoryUnsupported = true;
+            }
+        }
+
+        if (mContext == null) return null;
+        try {
+            final ActivityManager am = (ActivityManager) mContext.getSystemService(Context.ACTIVITY_SERVICE);
+            final Set<Integer> taskIds = new HashSet<Integer>();
+            for (ActivityManager.RunningTaskInfo info : am.getRunningTasks(RECENT_TASKS_MAX + 1)) {
+                taskIds.add(info.id);
+            }
+            return taskIds;
+        } catch (Throwable t) {
+            XposedBridge.log(t);
+            return null;
+        }
+    }
+
+    private static boolean isLive(AppRecord task, Set<Integer> liveTaskIds) {
+        return liveTaskIds == null || liveTaskIds.contains(task.taskId);
+    }
+
+    // Caller must hold mRecentTasks lock
+    private static void removeDeadTasks(Set<Integer> liveTaskIds) {
+        if (liveTaskIds == null) return;
+
+        int count = 0;
+        for (int i = 0; i < mRecentTaskCount; i++) {
+            if (isLive(mRecentTasks[i], liveTaskIds)) {
+                mRecentTasks[count++] = mRecentTasks[i];
+            } else if (DEBUG) {
+                log("Dropping dead task " + mRecentTasks[i].taskId + ": " + mRecentTasks[i].packageName);
+            }
+        }
+        for (int i = count; i < mRecentTaskCount; i++) {
+            mRecentTasks[i] = null;
+        }
+        mRecentTaskCount = count;
+    }
+
+    // Returns task to switch to when user asks for previous app. Repeated requests in quick
+    // succession walk further back through the order recorded at first request instead of
+    // toggling between two most recent apps; after the oldest one it wraps around.
+    // Tasks that have no activities left are skipped; null is returned when no live task is left.
+    public static AppRecord getPreviousApp() {
+        final String homePackage = getHomePackage();
+        final Set<Integer> liveTaskIds = getLiveTaskIds();
+        final long now = SystemClock.uptimeMillis();
+        synchronized (mRecentTasks) {
+            removeDeadTasks(liveTaskIds);
+            if (mCycleTasks != null && now - mCycleTime < PREV_APP_CYCLE_TIMEOUT) {
+                // nothing to switch to when only task in foreground is left alive
+                final AppRecord foreground = mRecentTaskCount > 0 ? mRecentTasks[0] : null;
+                int liveCount = 0;
+                AppRecord live = null;
+                for (AppRecord task : mCycleTasks) {
+                    if (isLive(task, liveTaskIds)) {
+                        liveCount++;
+                        live = task;
+                    }
+                }
+                if (liveCount == 0 || (liveCount == 1 && foreground != null &&
+                        live.taskId == foreground.taskId)) {
+                    mCycleTasks = null;
+                    return null;
+                }
+                do {
+                    mCycleIndex = (mCycleIndex + 1) % mCycleTasks.length;
+                } while (!isLive(mCycleTasks[mCycleIndex], liveTaskIds));
+            } else {
+                // task in foreground comes last so cycling eventually gets back to it
+                AppRecord[] tasks = new AppRecord[mRecentTaskCount];
+                int count = 0;
+                for (int i = 1; i <= mRecentTaskCount; i++) {
+                    final AppRecord task = mRecentTasks[i % mRecentTaskCount];
+                    if (!task.packageName.equals(homePackage) &&
+                            !task.packageName.equals(PACKAGE_SYSTEMUI)) {
+                        tasks[count++] = task;
+                    }
+                }
+                if (count == 0 || (count == 1 && tasks[0] == mRecentTasks[0])) {
+                    mCycleTasks = null;
+                    return null;
+                }
+                mCycleTasks = new AppRecord[count];
+                System.arraycopy(tasks, 0, mCycleTasks, 0, count);
+                mCycleIndex = 0;
+            }
+            mCycleTime = now;
+            return mCycleTasks[mCycleIndex];
+        }
+    }
+
+    public static void onAppKilled(AppRecord app) {
+        if (mForegroundApp == app) {
+            mForegroundApp = null;
+        }
+    }
+
+    public static String getAppLabel(String packageName) {
+        synchronized (mLabelCache) {
+            String label = mLabelCache.get(packageName);
+            if (label == null) {
+                label = packageName;
+                try {
+                    final PackageManager pm = mContext.getPackageManager();
+                    label = pm.getApplicationLabel(pm.getApplicationInfo(packageName, 0)).toString();
+                } catch (PackageManager.NameNotFoundException nfe) {
+                    //
+                }
+                mLabelCache.put(packageName, label);
+            }
+            return label;
+        }
+    }
+}
@@ -193,6 +193,7 @@ public class GravityBoxSettings extends Activity implements GravityBoxResultRece
     public static final String LOCKSCREEN_BG_DEFAULT = "default";
     public static final String LOCKSCREEN_BG_COLOR = "color";
     public static final String LOCKSCREEN_BG_IMAGE = "image";
+    public static final String ACTION_PREF_LOCKSCREEN_BG_CHANGED = "gravitybox.intent.action.LOCKSCREEN_BG_CHANGED";
 
     public static final String PREF_CAT_KEY_LOCKSCREEN_OTHER = "pref_cat_lockscreen_other";
     public static final String PREF_KEY_LOCKSCREEN_BATTERY_ARC = "pref_lockscreen_battery_arc";
@@ -260,6 +261,7 @@ public class GravityBoxSettings extends Activity implements GravityBoxResultRece
     public static final String PREF_KEY_HWKEY_RECENTS_LONGPRESS = "pref_hwkey_recents_longpress";
     public static final String PREF_KEY_HWKEY_CUSTOM_APP = "pref_hwkey_custom_app";
     public static final String PREF_KEY_HWKEY_CUSTOM_APP2 = "pref_hwkey_custom_app2";
+    public static final String PREF_KEY_HWKEY_CUSTOM_APP_PRESTART = "pref_hwkey_custom_app_prestart";
     public static final String PREF_KEY_HWKEY_DOUBLETAP_SPEED = "pref_hwkey_doubletap_speed";
     public static final String PREF_KEY_HWKEY_KILL_DELAY = "pref_hwkey_kill_delay";
     public static final String PREF_CAT_HWKEY_VOLUME = "pref_cat_hwkey_volume";
@@ -298,11 +300,17 @@ public class GravityBoxSettings extends Activity implements GravityBoxResultRece
     public static final String ACTION_PREF_HWKEY_KILL_DELAY_CHANGED = "gravitybox.intent.action.HWKEY_KILL_DELAY_CHANGED";
     public static final String ACTION_PREF_VOLUME_ROCKER_WAKE_CHANGED = "gravitybox.intent.action.VOLUME_ROCKER_WAKE_CHANGED";
     public static final String ACTION_PREF_HWKEY_LOCKSCREEN_TORCH_CHANGED = "gravitybox.intent.action.HWKEY_LOCKSCREEN_TORCH_CHANGED";
+    public static final String ACTION_PREF_HWKEY_CUSTOM_APP_CHANGED = "gravitybox.intent.action.HWKEY_CUSTOM_APP_CHANGED";
     public static final String EXTRA_HWKEY_VALUE = "hwKeyValue";
     public static final String EXTRA_HWKEY_HOME_DOUBLETAP_DISABLE = "hwKeyHomeDoubletapDisable";
     public static final String EXTRA_HWKEY_HOME_LONGPRESS_KG = "hwKeyHomeLongpressKeyguard";
     public static final String EXTRA_VOLUME_ROCKER_WAKE = "volumeRockerWake";
     public static final String EXTRA_HWKEY_TORCH = "hwKeyTorch";
+    public static final String EXTRA_HWKEY_CUSTOM_APP = "hwKeyCustomApp";
+    public static final String EXTRA_HWKEY_CUSTOM_APP2 = "hwKeyCustomApp2";
+    public static final String EXTRA_HWKEY_CUSTOM_APP_PRESTART = "hwKeyCustomAppPrestart";
+
+    public static final String PREF_KEY_TORCH_WARM_TIMEOUT = "pref_torch_warm_timeout";
 
     public static final String PREF_KEY_PHONE_FLIP = "pref_phone_flip";
     public static final int PHONE_FLIP_ACTION_NONE = 0;
@@ -513,6 +521,9 @@ public class GravityBoxSettings extends Activity implements GravityBoxResultRece
             "gravitybox.intent.action.QS_NETWORK_MODE_SIM_SLOT_CHANGED";
     public static final String EXTRA_SIM_SLOT = "simSlot";
 
+    public static final String PREF_KEY_QUICKRECORD_QUALITY = "pref_qr_quality";
+    public static final String PREF_KEY_QUICKRECORD_SKIP_SILENCE = "pref_qr_skip_silence";
+
     public static final String PREF_KEY_ONGOING_NOTIFICATIONS = "pref_ongoing_notifications";
     public static final String ACTION_PREF_ONGOING_NOTIFICATIONS_CHANGED = 
             "gravitybox.intent.action.ONGOING_NOTIFICATIONS_CHANGED";
@@ -799,6 +810,7 @@ public class GravityBoxSettings extends Activity implements GravityBoxResultRece
         private CheckBoxPreference mPrefNetworkModeTileCdma;
         private MultiSelectListPreference mPrefQsTileBehaviourOverride;
         private ListPreference mPrefQsNetworkModeSimSlot;
+        private ListPreference mPrefQrQuality;
         private CheckBoxPreference mPrefSbColorSkipBattery;
         private ListPreference mPrefSbSignalColorMode;
         private CheckBoxPreference mPrefUnplugTurnsOnScreen;
@@ -828,6 +840,7 @@ public class GravityBoxSettings extends Activity implements GravityBoxResultRece
         private ColorPickerPreference mPrefSbIconColorSecondary;
         private ColorPickerPreference mPrefSbDaColorSecondary;
         private ListPreference mPrefHwKeyLockscreenTorch;
+        private ListPreference mPrefTorchWarmTimeout;
         private PreferenceCategory mPrefCatHwKeyOthers;
         private PreferenceCategory mPrefCatLsOther;
         private CheckBoxPreference mPrefLsRingTorch;
@@ -917,6 +930,7 @@ public class GravityBoxSettings extends Activity implements GravityBoxResultRece
             mPrefCatHwKeyVolume = (PreferenceCategory) findPreference(PREF_CAT_HWKEY_VOLUME);
             mPrefHomeDoubletapDisable = (CheckBoxPreference) findPreference(PREF_KEY_HWKEY_HOME_DOUBLETAP_DISABLE);
             mPrefHwKeyLockscreenTorch = (ListPreference) findPreference(PREF_KEY_HWKEY_LOCKSCREEN_TORCH);
+            mPrefTorchWarmTimeout = (ListPreference) findPreference(PREF_KEY_TORCH_WARM_TIMEOUT);
             mPrefCatHwKeyOthers = (PreferenceCategory) findPreference(PREF_CAT_KEY_HWKEY_ACTIONS_OTHERS);
 
             mPrefPhoneFlip = (ListPreference) findPreference(PREF_KEY_PHONE_FLIP);
@@ -1033,6 +1047,7 @@ public class GravityBoxSettings extends Activity implements GravityBoxResultRece
             mPrefQsTileBehaviourOverride = 
                     (MultiSelectListPreference) findPreference(PREF_KEY_QS_TILE_BEHAVIOUR_OVERRIDE);
             mPrefQsNetworkModeSimSlot = (ListPreference) findPreference(PREF_KEY_QS_NETWORK_MODE_SIM_SLOT);
+            mPrefQrQuality = (ListPreference) findPreference(PREF_KEY_QUICKRECORD_QUALITY);
             mPrefQsTileOrder = (Preference) findPreference(PREF_KEY_QUICK_SETTINGS_TILE_ORDER);
 
             mPrefSbClockDow = (ListPreference) findPreference(PREF_KEY_STATUSBAR_CLOCK_DOW);
@@ -1081,6 +1096,7 @@ public class GravityBoxSettings extends Activity implements GravityBoxResultRece
             // Filter preferences according to feature availability 
             if (!Utils.hasFlash(getActivity())) {
                 mPrefCatHwKeyOthers.removePreference(mPrefHwKeyLockscreenTorch);
+                mPrefCatHwKeyOthers.removePreference(mPrefTorchWarmTimeout);
                 mPrefCatLsOther.removePreference(mPrefLsRingTorch);
             }
             if (!Utils.hasVibrator(getActivity())) {
@@ -1487,6 +1503,10 @@ public class GravityBoxSettings extends Activity implements GravityBoxResultRece
                                 mPrefQsNetworkModeSimSlot.getEntry()));
             }
 
+            if (key == null || key.equals(PREF_KEY_QUICKRECORD_QUALITY)) {
+                mPrefQrQuality.setSummary(mPrefQrQuality.getEntry());
+            }
+
             if (Utils.isMtkDevice()) {
                 final boolean mtkBatteryPercent = Settings.Secure.getInt(getActivity().getContentResolver(), 
                         ModBatteryStyle.SETTING_MTK_BATTERY_PERCENTAGE, 0) == 1;
@@ -1546,6 +1566,10 @@ public class GravityBoxSettings extends Activity implements GravityBoxResultRece
                 mPrefHwKeyLockscreenTorch.setSummary(mPrefHwKeyLockscreenTorch.getEntry());
             }
 
+            if (key == null || key.equals(PREF_KEY_TORCH_WARM_TIMEOUT)) {
+                mPrefTorchWarmTimeout.setSummary(mPrefTorchWarmTimeout.getEntry());
+            }
+
             if (key == null || key.equals(PREF_KEY_VOLUME_PANEL_TIMEOUT)) {
                 mPrefVolumePanelTimeout.setSummary(mPrefVolumePanelTimeout.getEntry());
             }
@@ -1755,6 +1779,16 @@ public class GravityBoxSettings extends Activity implements GravityBoxResultRece
                 intent.setAction(ACTION_PREF_HWKEY_LOCKSCREEN_TORCH_CHANGED);
                 intent.putExtra(EXTRA_HWKEY_TORCH, Integer.valueOf(
                         prefs.getString(PREF_KEY_HWKEY_LOCKSCREEN_TORCH, "0")));
+            } else if (key.equals(PREF_KEY_HWKEY_CUSTOM_APP)) {
+                intent.setAction(ACTION_PREF_HWKEY_CUSTOM_APP_CHANGED);
+                intent.putExtra(EXTRA_HWKEY_CUSTOM_APP, prefs.getString(PREF_KEY_HWKEY_CUSTOM_APP, null));
+            } else if (key.equals(PREF_KEY_HWKEY_CUSTOM_APP2)) {
+                intent.setAction(ACTION_PREF_HWKEY_CUSTOM_APP_CHANGED);
+                intent.putExtra(EXTRA_HWKEY_CUSTOM_APP2, prefs.getString(PREF_KEY_HWKEY_CUSTOM_APP2, null));
+            } else if (key.equals(PREF_KEY_HWKEY_CUSTOM_APP_PRESTART)) {
+                intent.setAction(ACTION_PREF_HWKEY_CUSTOM_APP_CHANGED);
+                intent.putExtra(EXTRA_HWKEY_CUSTOM_APP_PRESTART,
+                        prefs.getBoolean(PREF_KEY_HWKEY_CUSTOM_APP_PRESTART, false));
             } else if (key.equals(PREF_KEY_VOLUME_PANEL_EXPANDABLE)) {
                 intent.setAction(ACTION_PREF_VOLUME_PANEL_MODE_CHANGED);
                 intent.putExtra(EXTRA_EXPANDABLE,
@@ -2290,6 +2324,7 @@ public class GravityBoxSettings extends Activity implements GravityBoxResultRece
                         wallpaperTemporary.renameTo(wallpaperImage);
                     }
                     wallpaperImage.setReadable(true, false);
+                    getActivity().sendBroadcast(new Intent(ACTION_PREF_LOCKSCREEN_BG_CHANGED));
                     Toast.makeText(getActivity(), getString(
                             R.string.lockscreen_background_result_successful), 
                             Toast.LENGTH_SHORT).show();
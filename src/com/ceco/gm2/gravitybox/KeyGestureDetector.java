@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2013 Peter Gregus for GravityBox Project (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.gm2.gravitybox;
+
+// Recognizes single/multi-tap and long-press gestures for a fixed set of keys.
+// All keys share the same state machine, each driven by its row in action table,
+// and all pending timeouts share a single timer requested from the host.
+// Has no Android dependencies so it can be driven by a virtual clock.
+public class KeyGestureDetector {
+    public static final int GESTURE_SINGLETAP = 0;
+    public static final int GESTURE_DOUBLETAP = 1;
+    public static final int GESTURE_TRIPLETAP = 2;
+    public static final int GESTURE_LONGPRESS = 3;
+    public static final int GESTURE_COUNT = 4;
+
+    public static final int ACTION_NONE = 0;
+    public static final long NO_TIMEOUT = Long.MAX_VALUE;
+
+    private static final int NO_GESTURE = -1;
+
+    public interface Host {
+        long uptimeMillis();
+        // Host has to call onTimeout() once given time is reached; NO_TIMEOUT cancels the request
+        void requestTimeout(long uptimeMillis);
+        long getLongPressTimeout(int key, int action);
+        // Called outside of detector lock with flags of key down that started the gesture
+        void onGesture(int key, int gesture, int flags);
+    }
+
+    private final Host mHost;
+    private final int mKeyCount;
+    private final int[][] mActions;
+    private final boolean[] mPressed;
+    private final boolean[] mLongPressed;
+    private final boolean[] mSequenceDone;
+    private final int[] mTapCount;
+    private final int[] mFlags;
+    private final long[] mLongPressTime;
+    private final long[] mTapTime;
+    private long mTapTimeout;
+    private long mRequestedTime = NO_TIMEOUT;
+
+    public KeyGestureDetector(int keyCount, long tapTimeout, Host host) {
+        mHost = host;
+        mKeyCount = keyCount;
+        mTapTimeout = tapTimeout;
+        mActions = new int[keyCount][GESTURE_COUNT];
+        mPressed = new boolean[keyCount];
+        mLongPressed = new boolean[keyCount];
+        mSequenceDone = new boolean[keyCount];
+        mTapCount = new int[keyCount];
+        mFlags = new int[keyCount];
+        mLongPressTime = new long[keyCount];
+        mTapTime = new long[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            mLongPressTime[i] = NO_TIMEOUT;
+            mTapTime[i] = NO_TIMEOUT;
+        }
+    }
+
+    public synchronized void setAction(int key, int gesture, int action) {
+        mActions[key][gesture] = action;
+    }
+
+    public synchronized int getAction(int key, int gesture) {
+        return mActions[key][gesture];
+    }
+
+    public synchronized boolean hasAction(int key) {
+        for (int i = 0; i < GESTURE_COUNT; i++) {
+            if (mActions[key][i] != ACTION_NONE) return true;
+        }
+        return false;
+    }
+
+    public synchronized void setTapTimeout(long tapTimeout) {
+        mTapTimeout = tapTimeout;
+    }
+
+    public synchronized boolean isPressed(int key) {
+        return mPressed[key];
+    }
+
+    public void onKeyDown(int key, int flags) {
+        final int gesture;
+        synchronized (this) {
+            gesture = handleKeyDown(key, flags);
+            updateTimeout();
+        }
+        deliver(key, gesture);
+    }
+
+    // Canceled key release drops the whole tap sequence
+    public void onKeyUp(int key, boolean canceled) {
+        final int gesture;
+        synchronized (this) {
+            gesture = handleKeyUp(key, canceled);
+            updateTimeout();
+        }
+        deliver(key, gesture);
+    }
+
+    public void onTimeout() {
+        synchronized (this) {
+            mRequestedTime = NO_TIMEOUT;
+        }
+        for (int key = 0; key < mKeyCount; key++) {
+            int gesture;
+            do {
+                synchronized (this) {
+                    gesture = handleTimeout(key, mHost.uptimeMillis());
+                }
+                deliver(key, gesture);
+            } while (gesture != NO_GESTURE);
+        }
+        synchronized (this) {
+            updateTimeout();
+        }
+    }
+
+    private int handleKeyDown(int key, int flags) {
+        final long now = mHost.uptimeMillis();
+        mPressed[key] = true;
+        mLongPressed[key] = false;
+        mLongPressTime[key] = NO_TIMEOUT;
+        if (mTapCount[key] == 0) {
+            mSequenceDone[key] = false;
+            mFlags[key] = flags;
+        }
+
+        final int tapCount = ++mTapCount[key];
+        if (tapCount > 1) {
+            if (tapCount >= getMaxTapCount(key)) {
+                // last tap of the longest configured sequence; no reason to wait any longer
+                mSequenceDone[key] = true;
+                return finishTaps(key);
+            }
+            mTapTime[key] = now + mTapTimeout;
+            return NO_GESTURE;
+        }
+
+        if (getMaxTapCount(key) > 1) {
+            mTapTime[key] = now + mTapTimeout;
+        }
+        final int longPressAction = mActions[key][GESTURE_LONGPRESS];
+        if (longPressAction != ACTION_NONE) {
+            mLongPressTime[key] = now + mHost.getLongPressTimeout(key, longPressAction);
+        }
+        return NO_GESTURE;
+    }
+
+    private int handleKeyUp(int key, boolean canceled) {
+        if (!mPressed[key]) return NO_GESTURE;
+
+        mPressed[key] = false;
+        mLongPressTime[key] = NO_TIMEOUT;
+        if (mLongPressed[key]) {
+            mLongPressed[key] = false;
+            return NO_GESTURE;
+        }
+        if (canceled) {
+            mTapCount[key] = 0;
+            mTapTime[key] = NO_TIMEOUT;
+            return NO_GESTURE;
+        }
+        // sequence still open waits for more taps
+        if (mSequenceDone[key] || mTapTime[key] != NO_TIMEOUT) return NO_GESTURE;
+
+        return finishTaps(key);
+    }
+
+    private int handleTimeout(int key, long now) {
+        if (mLongPressTime[key] <= now) {
+            mLongPressTime[key] = NO_TIMEOUT;
+            mTapTime[key] = NO_TIMEOUT;
+            mTapCount[key] = 0;
+            mLongPressed[key] = true;
+            return GESTURE_LONGPRESS;
+        }
+        if (mTapTime[key] <= now) {
+            mTapTime[key] = NO_TIMEOUT;
+            // key still held resolves the sequence on release unless it turns into long-press
+            if (!mPressed[key]) {
+                return finishTaps(key);
+            }
+        }
+        return NO_GESTURE;
+    }
+
+    private int finishTaps(int key) {
+        final int tapCount = mTapCount[key];
+        mTapCount[key] = 0;
+        mTapTime[key] = NO_TIMEOUT;
+        if (tapCount == 0) return NO_GESTURE;
+        return GESTURE_SINGLETAP + Math.min(tapCount, GESTURE_TRIPLETAP + 1) - 1;
+    }
+
+    private int getMaxTapCount(int key) {
+        if (mActions[key][GESTURE_TRIPLETAP] != ACTION_NONE) return 3;
+        if (mActions[key][GESTURE_DOUBLETAP] != ACTION_NONE) return 2;
+        return 1;
+    }
+
+    private void updateTimeout() {
+        long next = NO_TIMEOUT;
+        for (int i = 0; i < mKeyCount; i++) {
+            next = Math.min(next, Math.min(mLongPressTime[i], mTapTime[i]));
+        }
+        if (next != mRequestedTime) {
+            mRequestedTime = next;
+            mHost.requestTimeout(next);
+        }
+    }
+
+    private void deliver(int key, int gesture) {
+        if (gesture != NO_GESTURE) {
+            mHost.onGesture(key, gesture, mFlags[key]);
+        }
+    }
+}
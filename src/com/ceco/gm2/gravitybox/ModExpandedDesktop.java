@@ -15,6 +15,9 @@
 
 package com.ceco.gm2.gravitybox;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
 import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
 import android.content.Context;
@@ -31,7 +34,6 @@ import android.view.Surface;
 import android.view.View;
 import android.view.WindowManager;
 import de.robv.android.xposed.XC_MethodHook;
-import de.robv.android.xposed.XC_MethodHook.Unhook;
 import de.robv.android.xposed.XC_MethodReplacement;
 import de.robv.android.xposed.XSharedPreferences;
 import de.robv.android.xposed.XposedBridge;
@@ -52,8 +54,14 @@ public class ModExpandedDesktop {
     private static SettingsObserver mSettingsObserver;
     private static boolean mExpandedDesktop;
     private static int mExpandedDesktopMode;
-    private static Unhook mNavbarShowLwHook;
-    private static Unhook mStatusbarShowLwHook;
+    // bars whose showLw() is suppressed while layout pass is in progress
+    private static volatile Object mNavbarToHide;
+    private static volatile Object mStatusbarToHide;
+    private static Class<?> mShowLwHookedClass;
+    private static long mLayoutStartTime;
+    private static LayoutAccessors mLayoutAccessors;
+    private static long mLayoutWindowTime;
+    private static int mLayoutWindowCount;
     private static boolean mNavbarOverride;
     private static float mNavbarHeightScaleFactor = 1;
     private static float mNavbarHeightLandscapeScaleFactor = 1;
@@ -85,6 +93,86 @@ public class ModExpandedDesktop {
         }
     }
 
+    // Reflection handles used by layoutWindowLw hook for every window of every layout pass.
+    // Resolved once for given window manager and window state class.
+    private static class LayoutAccessors {
+        final Object phoneWindowManager;
+        final Class<?> windowStateClass;
+        final Method isDefaultDisplay;
+        final Method getSystemUiVisibility;
+        final Method computeFrameLw;
+        final Method applyStableConstraints;
+        final Field screenLeft;
+        final Field screenTop;
+        final Field screenWidth;
+        final Field screenHeight;
+        final Field unrestrictedScreenLeft;
+        final Field unrestrictedScreenTop;
+        final Field unrestrictedScreenWidth;
+        final Field unrestrictedScreenHeight;
+        // frames are allocated once by window manager and reused for each window
+        final Rect pf, df, cf, vf, of;
+
+        LayoutAccessors(Object pwm, Class<?> wsClass) {
+            final Class<?> pwmClass = pwm.getClass();
+            phoneWindowManager = pwm;
+            windowStateClass = wsClass;
+
+            isDefaultDisplay = Build.VERSION.SDK_INT > 16 ?
+                    XposedHelpers.findMethodExact(wsClass, "isDefaultDisplay") : null;
+            getSystemUiVisibility = XposedHelpers.findMethodExact(wsClass, "getSystemUiVisibility");
+            computeFrameLw = Build.VERSION.SDK_INT > 17 ?
+                    XposedHelpers.findMethodExact(wsClass, "computeFrameLw",
+                            Rect.class, Rect.class, Rect.class, Rect.class, Rect.class) :
+                    XposedHelpers.findMethodExact(wsClass, "computeFrameLw",
+                            Rect.class, Rect.class, Rect.class, Rect.class);
+            applyStableConstraints = XposedHelpers.findMethodExact(pwmClass, "applyStableConstraints",
+                    int.class, int.class, Rect.class);
+
+            unrestrictedScreenLeft = XposedHelpers.findField(pwmClass, "mUnrestrictedScreenLeft");
+            unrestrictedScreenTop = XposedHelpers.findField(pwmClass, "mUnrestrictedScreenTop");
+            unrestrictedScreenWidth = XposedHelpers.findField(pwmClass, "mUnrestrictedScreenWidth");
+            unrestrictedScreenHeight = XposedHelpers.findField(pwmClass, "mUnrestrictedScreenHeight");
+            if (Build.VERSION.SDK_INT > 17) {
+                screenLeft = XposedHelpers.findField(pwmClass, "mOverscanScreenLeft");
+                screenTop = XposedHelpers.findField(pwmClass, "mOverscanScreenTop");
+                screenWidth = XposedHelpers.findField(pwmClass, "mOverscanScreenWidth");
+                screenHeight = XposedHelpers.findField(pwmClass, "mOverscanScreenHeight");
+            } else {
+                screenLeft = unrestrictedScreenLeft;
+                screenTop = unrestrictedScreenTop;
+                screenWidth = unrestrictedScreenWidth;
+                screenHeight = unrestrictedScreenHeight;
+            }
+
+            pf = (Rect) XposedHelpers.getObjectField(pwm, "mTmpParentFrame");
+            df = (Rect) XposedHelpers.getObjectField(pwm, "mTmpDisplayFrame");
+            cf = (Rect) XposedHelpers.getObjectField(pwm, "mTmpContentFrame");
+            vf = (Rect) XposedHelpers.getObjectField(pwm, "mTmpVisibleFrame");
+            of = Build.VERSION.SDK_INT > 17 ?
+                    (Rect) XposedHelpers.getObjectField(pwm, "mTmpOverscanFrame") : null;
+        }
+
+        boolean matches(Object pwm, Object win) {
+            return phoneWindowManager == pwm && windowStateClass == win.getClass();
+        }
+
+        // Sets parent and display frame to full screen area
+        void setScreenFrame(Object pwm) throws IllegalAccessException {
+            pf.left = df.left = screenLeft.getInt(pwm);
+            pf.top = df.top = screenTop.getInt(pwm);
+            pf.right = df.right = pf.left + screenWidth.getInt(pwm);
+            pf.bottom = df.bottom = pf.top + screenHeight.getInt(pwm);
+        }
+
+        void setUnrestrictedFrame(Object pwm, Rect r) throws IllegalAccessException {
+            r.left = unrestrictedScreenLeft.getInt(pwm);
+            r.top = unrestrictedScreenTop.getInt(pwm);
+            r.right = r.left + unrestrictedScreenWidth.getInt(pwm);
+            r.bottom = r.top + unrestrictedScreenHeight.getInt(pwm);
+        }
+    }
+
     private static BroadcastReceiver mBroadcastReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -231,27 +319,16 @@ public class ModExpandedDesktop {
                             "finishPostLayoutPolicyLw" : "finishAnimationLw", new XC_MethodHook() {
                 @Override
                 protected void beforeHookedMethod(final MethodHookParam param) throws Throwable {
+                    if (!expandedDesktopHidesStatusbar()) return;
                     final Object statusBar = XposedHelpers.getObjectField(param.thisObject, "mStatusBar");
-                    if (statusBar == null || !expandedDesktopHidesStatusbar()) return;
-
-                    mStatusbarShowLwHook = XposedHelpers.findAndHookMethod(
-                            statusBar.getClass(), "showLw", boolean.class, new XC_MethodReplacement() {
-                                @Override
-                                protected Object replaceHookedMethod(MethodHookParam param2) throws Throwable {
-                                    if (param2.thisObject == statusBar) {
-                                        return XposedHelpers.callMethod(param2.thisObject, "hideLw", true);
-                                    } else {
-                                        return XposedBridge.invokeOriginalMethod(param2.method, param2.thisObject, param2.args);
-                                    }
-                                }
-                    });
+                    if (statusBar == null) return;
+
+                    ensureShowLwHooked(statusBar.getClass());
+                    mStatusbarToHide = statusBar;
                 }
                 @Override
                 protected void afterHookedMethod(final MethodHookParam param) throws Throwable {
-                    if (mStatusbarShowLwHook != null) {
-                        mStatusbarShowLwHook.unhook();
-                        mStatusbarShowLwHook = null;
-                    }
+                    mStatusbarToHide = null;
                 }
             });
 
@@ -268,24 +345,30 @@ public class ModExpandedDesktop {
                     CLASS_POLICY_WINDOW_STATE, new XC_MethodHook() {
                 @Override
                 protected void afterHookedMethod(final MethodHookParam param) throws Throwable {
-                    final boolean isDefaultDisplay = Build.VERSION.SDK_INT > 16 ?
-                            (Boolean) XposedHelpers.callMethod(param.args[0], "isDefaultDisplay") : true;
-                    if (!mExpandedDesktop
-                            || param.args[0] == XposedHelpers.getObjectField(param.thisObject, "mStatusBar")
-                            || param.args[0] == XposedHelpers.getObjectField(param.thisObject, "mNavigationBar")
-                            || !isDefaultDisplay) return;
+                    if (!mExpandedDesktop) return;
 
+                    // Only application windows get their frames adjusted. Bars, IME and other
+                    // system windows are filtered out here without any reflection involved.
                     final WindowManager.LayoutParams attrs = (WindowManager.LayoutParams) param.args[1];
-                    if (attrs.type == WindowManager.LayoutParams.TYPE_INPUT_METHOD) return;
+                    if (attrs.type < WindowManager.LayoutParams.FIRST_APPLICATION_WINDOW
+                            || attrs.type > WindowManager.LayoutParams.LAST_SUB_WINDOW) return;
+
+                    final int fl = attrs.flags;
+                    final boolean layoutInScreen = (fl & WindowManager.LayoutParams.FLAG_LAYOUT_IN_SCREEN) != 0;
+
+                    final long startTime = DEBUG ? System.nanoTime() : 0;
+                    final Object pwm = param.thisObject;
+                    final Object win = param.args[0];
+                    LayoutAccessors la = mLayoutAccessors;
+                    if (la == null || !la.matches(pwm, win)) {
+                        la = new LayoutAccessors(pwm, win.getClass());
+                        mLayoutAccessors = la;
+                    }
 
-                    final int fl = ((WindowManager.LayoutParams) param.args[1]).flags;
-                    final int sysUiFl = (Integer) XposedHelpers.callMethod(param.args[0], "getSystemUiVisibility");
-                    final Rect pf = (Rect) XposedHelpers.getObjectField(param.thisObject, "mTmpParentFrame");
-                    final Rect df = (Rect) XposedHelpers.getObjectField(param.thisObject, "mTmpDisplayFrame");
-                    final Rect cf = (Rect) XposedHelpers.getObjectField(param.thisObject, "mTmpContentFrame");
-                    final Rect vf = (Rect) XposedHelpers.getObjectField(param.thisObject, "mTmpVisibleFrame");
-                    final Rect of = Build.VERSION.SDK_INT > 17 ?
-                            (Rect) XposedHelpers.getObjectField(param.thisObject, "mTmpOverscanFrame") : null;
+                    if (la.isDefaultDisplay != null && !(Boolean) la.isDefaultDisplay.invoke(win)) return;
+
+                    final int sysUiFl = (Integer) la.getSystemUiVisibility.invoke(win);
+                    final Rect cf = la.cf;
 
                     boolean shouldRecomputeFrame = false;
                     if ((fl & (WindowManager.LayoutParams.FLAG_LAYOUT_IN_SCREEN | 
@@ -294,72 +377,44 @@ public class ModExpandedDesktop {
                             == (WindowManager.LayoutParams.FLAG_LAYOUT_IN_SCREEN | 
                                     WindowManager.LayoutParams.FLAG_LAYOUT_INSET_DECOR)
                             && (sysUiFl & View.SYSTEM_UI_FLAG_FULLSCREEN) == 0) {
-                        if (param.args[2] == null
-                                && attrs.type >= WindowManager.LayoutParams.FIRST_APPLICATION_WINDOW
-                                && attrs.type <= WindowManager.LayoutParams.LAST_SUB_WINDOW) {
-                            pf.left = df.left = Build.VERSION.SDK_INT > 17 ?
-                                    XposedHelpers.getIntField(param.thisObject, "mOverscanScreenLeft") :
-                                    XposedHelpers.getIntField(param.thisObject, "mUnrestrictedScreenLeft");
-                            pf.right = df.right = pf.left + Build.VERSION.SDK_INT > 17 ?
-                                    XposedHelpers.getIntField(param.thisObject, "mOverscanScreenWidth") :
-                                    XposedHelpers.getIntField(param.thisObject, "mUnrestrictedScreenWidth");
-                            pf.top = df.top = Build.VERSION.SDK_INT > 17 ?
-                                    XposedHelpers.getIntField(param.thisObject, "mOverscanScreenTop") :
-                                    XposedHelpers.getIntField(param.thisObject, "mUnrestrictedScreenTop");
-                            pf.bottom = df.bottom = pf.top + Build.VERSION.SDK_INT > 17 ?
-                                    XposedHelpers.getIntField(param.thisObject, "mOverscanScreenHeight") :
-                                    XposedHelpers.getIntField(param.thisObject, "mUnrestrictedScreenHeight");
-                            if (Build.VERSION.SDK_INT > 17) {
-                                of.left = XposedHelpers.getIntField(param.thisObject, "mUnrestrictedScreenLeft");
-                                of.top = XposedHelpers.getIntField(param.thisObject, "mUnrestrictedScreenTop");
-                                of.right = of.left + 
-                                        XposedHelpers.getIntField(param.thisObject, "mUnrestrictedScreenWidth");
-                                of.bottom = of.top + 
-                                        XposedHelpers.getIntField(param.thisObject, "mUnrestrictedScreenHeight");
+                        if (param.args[2] == null) {
+                            la.setScreenFrame(pwm);
+                            if (la.of != null) {
+                                la.setUnrestrictedFrame(pwm, la.of);
                             }
                             if (expandedDesktopHidesStatusbar()) {
-                                cf.top = pf.top;
+                                cf.top = la.pf.top;
                             }
                             shouldRecomputeFrame = true;
                         }
-                    } else if ((fl & WindowManager.LayoutParams.FLAG_LAYOUT_IN_SCREEN) != 0 || (sysUiFl
+                    } else if (layoutInScreen || (sysUiFl
                                 & (View.SYSTEM_UI_FLAG_LAYOUT_FULLSCREEN
                            | View.SYSTEM_UI_FLAG_LAYOUT_HIDE_NAVIGATION)) != 0) {
-                        if (attrs.type >= WindowManager.LayoutParams.FIRST_APPLICATION_WINDOW
-                                && attrs.type <= WindowManager.LayoutParams.LAST_SUB_WINDOW) {
-                            pf.left = df.left = Build.VERSION.SDK_INT > 17 ?
-                                    XposedHelpers.getIntField(param.thisObject, "mOverscanScreenLeft") :
-                                    XposedHelpers.getIntField(param.thisObject, "mUnrestrictedScreenLeft");
-                            pf.right = df.right = pf.left + Build.VERSION.SDK_INT > 17 ?
-                                    XposedHelpers.getIntField(param.thisObject, "mOverscanScreenWidth") :
-                                    XposedHelpers.getIntField(param.thisObject, "mUnrestrictedScreenWidth");
-                            pf.top = df.top = Build.VERSION.SDK_INT > 17 ?
-                                    XposedHelpers.getIntField(param.thisObject, "mOverscanScreenTop") :
-                                    XposedHelpers.getIntField(param.thisObject, "mUnrestrictedScreenTop");
-                            pf.bottom = df.bottom = pf.top + Build.VERSION.SDK_INT > 17 ? 
-                                    XposedHelpers.getIntField(param.thisObject, "mOverscanScreenHeight") :
-                                    XposedHelpers.getIntField(param.thisObject, "mUnrestrictedScreenHeight");
-                            if (Build.VERSION.SDK_INT > 17) {
-                                of.set(pf);
-                            }
-                            if (expandedDesktopHidesNavigationBar()) {
-                                cf.set(pf);
-                            }
-                            shouldRecomputeFrame = true;
+                        la.setScreenFrame(pwm);
+                        if (la.of != null) {
+                            la.of.set(la.pf);
+                        }
+                        if (expandedDesktopHidesNavigationBar()) {
+                            cf.set(la.pf);
                         }
+                        shouldRecomputeFrame = true;
                     }
 
                     if (shouldRecomputeFrame) {
-                        XposedHelpers.callMethod(param.thisObject, "applyStableConstraints",
-                                sysUiFl, fl, cf);
-                        vf.set(cf);
-                        if (Build.VERSION.SDK_INT > 17) {
-                            XposedHelpers.callMethod(param.args[0], "computeFrameLw", pf, df, of, cf, vf);
+                        la.applyStableConstraints.invoke(pwm, sysUiFl, fl, cf);
+                        la.vf.set(cf);
+                        if (la.of != null) {
+                            la.computeFrameLw.invoke(win, la.pf, la.df, la.of, cf, la.vf);
                         } else {
-                            XposedHelpers.callMethod(param.args[0], "computeFrameLw", pf, df, cf, vf);
+                            la.computeFrameLw.invoke(win, la.pf, la.df, cf, la.vf);
                         }
                         if (DEBUG) log("layoutWindowLw recomputing frame");
                     }
+
+                    if (DEBUG) {
+                        mLayoutWindowTime += System.nanoTime() - startTime;
+                        mLayoutWindowCount++;
+                    }
                 }
             });
 
@@ -463,9 +518,44 @@ public class ModExpandedDesktop {
         }
     };
 
+    // Installed once for window state class and stays in place; it only acts on bar
+    // that is currently flagged for hiding so other windows pass through untouched
+    private static XC_MethodHook showLwHook = new XC_MethodHook() {
+        @Override
+        protected void beforeHookedMethod(final MethodHookParam param) throws Throwable {
+            final Object window = param.thisObject;
+            if (window == mNavbarToHide) {
+                param.setResult(false);
+                XposedHelpers.callMethod(window, "hideLw", true);
+            } else if (window == mStatusbarToHide) {
+                param.setResult(XposedHelpers.callMethod(window, "hideLw", true));
+            }
+        }
+    };
+
+    private static void ensureShowLwHooked(Class<?> windowStateClass) {
+        if (mShowLwHookedClass == windowStateClass) return;
+
+        synchronized (showLwHook) {
+            if (mShowLwHookedClass == windowStateClass) return;
+            XposedHelpers.findAndHookMethod(windowStateClass, "showLw", boolean.class, showLwHook);
+            mShowLwHookedClass = windowStateClass;
+            if (DEBUG) log("showLw hook installed for " + windowStateClass.getName());
+        }
+    }
+
     private static XC_MethodHook beginLayoutLwHook = new XC_MethodHook() {
         @Override
         protected void beforeHookedMethod(final MethodHookParam param) throws Throwable {
+            if (DEBUG) {
+                if (mLayoutWindowCount > 0) {
+                    log("layoutWindowLw hook: " + mLayoutWindowCount + " windows handled in " +
+                            mLayoutWindowTime / 1000 + "us during last layout pass");
+                }
+                mLayoutWindowTime = 0;
+                mLayoutWindowCount = 0;
+                mLayoutStartTime = System.nanoTime();
+            }
             try {
                 final boolean isDefaultDisplay = Build.VERSION.SDK_INT > 16 ?
                         (Boolean) param.args[0] : true;
@@ -474,17 +564,8 @@ public class ModExpandedDesktop {
                 final Object navigationBar = XposedHelpers.getObjectField(param.thisObject, "mNavigationBar");
                 if (navigationBar == null) return;
 
-                mNavbarShowLwHook = XposedHelpers.findAndHookMethod(navigationBar.getClass(), 
-                        "showLw", boolean.class, new XC_MethodHook() {
-                    @Override
-                    protected void beforeHookedMethod(final MethodHookParam param2) throws Throwable {
-                        if (param2.thisObject == navigationBar) {
-                            param2.setResult(false);
-                            XposedHelpers.callMethod(navigationBar, "hideLw", true);
-                            return;
-                        }
-                    }
-                });
+                ensureShowLwHooked(navigationBar.getClass());
+                mNavbarToHide = navigationBar;
             } catch (Throwable t) {
                 XposedBridge.log(t);
             }
@@ -492,12 +573,9 @@ public class ModExpandedDesktop {
 
         @Override
         protected void afterHookedMethod(final MethodHookParam param) throws Throwable {
+            mNavbarToHide = null;
+            if (DEBUG) log("beginLayoutLw took " + (System.nanoTime() - mLayoutStartTime) / 1000 + "us");
             try {
-                if (mNavbarShowLwHook != null) {
-                    mNavbarShowLwHook.unhook();
-                    mNavbarShowLwHook = null;
-                }
-
                 final boolean isDefaultDisplay = Build.VERSION.SDK_INT > 16 ?
                         (Boolean) param.args[0] : true;
                         
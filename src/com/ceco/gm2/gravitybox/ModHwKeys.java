@@ -15,18 +15,20 @@
 
 package com.ceco.gm2.gravitybox;
 
-import java.util.ArrayList;
+import java.lang.reflect.Method;
 import java.util.Arrays;
-import java.util.List;
+import java.util.HashSet;
+import java.util.Set;
 
 import android.app.ActivityManager;
-import android.app.ActivityManager.RunningAppProcessInfo;
 import android.content.ActivityNotFoundException;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.pm.ActivityInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.res.Resources;
@@ -61,13 +63,18 @@ public class ModHwKeys {
 
     private static final int FLAG_WAKE = 0x00000001;
     private static final int FLAG_WAKE_DROPPED = 0x00000002;
+    private static final int VOLUME_ROCKER_WAKE_DEFAULT = 0;
+    private static final int VOLUME_ROCKER_WAKE_ENABLED = 1;
+    private static final int VOLUME_ROCKER_WAKE_DISABLED = 2;
     public static final String ACTION_SCREENSHOT = "gravitybox.intent.action.SCREENSHOT";
     public static final String ACTION_SHOW_POWER_MENU = "gravitybox.intent.action.SHOW_POWER_MENU";
     public static final String ACTION_TOGGLE_EXPANDED_DESKTOP = 
             "gravitybox.intent.action.TOGGLE_EXPANDED_DESKTOP";
 
-    private static Class<?> classActivityManagerNative;
     private static Object mPhoneWindowManager;
+    private static Handler mHandler;
+    private static Method mKeyguardOnMethod;
+    private static Method mPerformHapticFeedbackMethod;
     private static Context mContext;
     private static Context mGbContext;
     private static String mStrAppKilled;
@@ -76,42 +83,27 @@ public class ModHwKeys {
     private static String mStrCustomAppNone;
     private static String mStrCustomAppMissing;
     private static String mStrExpandedDesktopDisabled;
-    private static boolean mIsMenuLongPressed = false;
-    private static boolean mIsMenuDoubleTap = false;
-    private static boolean mIsBackLongPressed = false;
-    private static boolean mIsBackDoubleTap = false;
-    private static boolean mWasBackDoubleTap = false;
-    private static boolean mIsRecentsLongPressed = false;
     private static boolean mIsHomeLongPressed = false;
-    private static int mMenuLongpressAction = 0;
-    private static int mMenuDoubletapAction = 0;
-    private static int mHomeLongpressAction = 0;
+    private static KeyGestureDetector mKeyGestures;
     private static int mLockscreenTorch = 0;
     private static boolean mHomeDoubletapDisabled;
     private static int mHomeDoubletapDefaultAction;
-    private static int mBackLongpressAction = 0;
-    private static int mBackDoubletapAction = 0;
-    private static int mRecentsSingletapAction = 0;
-    private static int mRecentsLongpressAction = 0;
     private static int mDoubletapSpeed = GravityBoxSettings.HWKEY_DOUBLETAP_SPEED_DEFAULT;
     private static int mKillDelay = GravityBoxSettings.HWKEY_KILL_DELAY_DEFAULT;
-    private static String mVolumeRockerWake = "default";
+    private static int mVolumeRockerWake = VOLUME_ROCKER_WAKE_DEFAULT;
     private static boolean mHwKeysEnabled = true;
     private static XSharedPreferences mPrefs;
     private static AppLauncher mAppLauncher;
     private static int mPieMode;
     private static int mExpandedDesktopMode;
-    private static boolean mMenuKeyPressed;
-    private static boolean mBackKeyPressed;
-    private static int mCustomKeySingletapAction = GravityBoxSettings.HWKEY_ACTION_APP_LAUNCHER;
-    private static int mCustomKeyLongpressAction = GravityBoxSettings.HWKEY_ACTION_DEFAULT;
-    private static int mCustomKeyDoubletapAction = GravityBoxSettings.HWKEY_ACTION_DEFAULT;
-    private static boolean mIsCustomKeyLongPressed = false;
-    private static boolean mCustomKeyDoubletapPending = false;
-    private static boolean mWasCustomKeyDoubletap = false;
-    private static boolean mCustomKeyPressed = false;
-
-    private static List<String> mKillIgnoreList = new ArrayList<String>(Arrays.asList(
+    // custom app targets are resolved in advance so that they are ready to fire
+    private static String[] mCustomAppUri = new String[2];
+    private static Intent[] mCustomAppIntent = new Intent[2];
+    private static ActivityInfo[] mCustomAppInfo = new ActivityInfo[2];
+    private static boolean mCustomAppPrestart;
+    private static ActivityInfo mPrestartAppInfo;
+
+    private static Set<String> mKillIgnoreList = new HashSet<String>(Arrays.asList(
             "com.android.systemui",
             "com.mediatek.bluetooth",
             "android.process.acore",
@@ -131,17 +123,28 @@ public class ModHwKeys {
         CUSTOM
     }
 
+    private static final HwKey[] HW_KEYS = HwKey.values();
+
+    // each trigger is a slot in action table of key gesture detector
     private static enum HwKeyTrigger {
-        MENU_LONGPRESS,
-        MENU_DOUBLETAP,
-        HOME_LONGPRESS,
-        BACK_LONGPRESS,
-        BACK_DOUBLETAP,
-        RECENTS_SINGLETAP,
-        RECENTS_LONGPRESS,
-        CUSTOM_SINGLETAP,
-        CUSTOM_LONGPRESS,
-        CUSTOM_DOUBLETAP
+        MENU_LONGPRESS(HwKey.MENU, KeyGestureDetector.GESTURE_LONGPRESS),
+        MENU_DOUBLETAP(HwKey.MENU, KeyGestureDetector.GESTURE_DOUBLETAP),
+        HOME_LONGPRESS(HwKey.HOME, KeyGestureDetector.GESTURE_LONGPRESS),
+        BACK_LONGPRESS(HwKey.BACK, KeyGestureDetector.GESTURE_LONGPRESS),
+        BACK_DOUBLETAP(HwKey.BACK, KeyGestureDetector.GESTURE_DOUBLETAP),
+        RECENTS_SINGLETAP(HwKey.RECENTS, KeyGestureDetector.GESTURE_SINGLETAP),
+        RECENTS_LONGPRESS(HwKey.RECENTS, KeyGestureDetector.GESTURE_LONGPRESS),
+        CUSTOM_SINGLETAP(HwKey.CUSTOM, KeyGestureDetector.GESTURE_SINGLETAP),
+        CUSTOM_LONGPRESS(HwKey.CUSTOM, KeyGestureDetector.GESTURE_LONGPRESS),
+        CUSTOM_DOUBLETAP(HwKey.CUSTOM, KeyGestureDetector.GESTURE_DOUBLETAP);
+
+        final HwKey key;
+        final int gesture;
+
+        HwKeyTrigger(HwKey key, int gesture) {
+            this.key = key;
+            this.gesture = gesture;
+        }
     }
 
     private static BroadcastReceiver mBroadcastReceiver = new BroadcastReceiver() {
@@ -157,15 +160,12 @@ public class ModHwKeys {
             }
 
             if (action.equals(GravityBoxSettings.ACTION_PREF_HWKEY_MENU_LONGPRESS_CHANGED)) {
-                mMenuLongpressAction = value;
-                if (DEBUG) log("Menu long-press action set to: " + value);
+                setActionForHwKeyTrigger(HwKeyTrigger.MENU_LONGPRESS, value);
             } else if (action.equals(GravityBoxSettings.ACTION_PREF_HWKEY_MENU_DOUBLETAP_CHANGED)) {
-                mMenuDoubletapAction = value;
-                if (DEBUG) log("Menu double-tap action set to: " + value);
+                setActionForHwKeyTrigger(HwKeyTrigger.MENU_DOUBLETAP, value);
             } else if (action.equals(GravityBoxSettings.ACTION_PREF_HWKEY_HOME_LONGPRESS_CHANGED)) {
                 if (intent.hasExtra(GravityBoxSettings.EXTRA_HWKEY_VALUE)) {
-                    mHomeLongpressAction = value;
-                    if (DEBUG) log("Home long-press action set to: " + value);
+                    setActionForHwKeyTrigger(HwKeyTrigger.HOME_LONGPRESS, value);
                 }
             } else if (action.equals(GravityBoxSettings.ACTION_PREF_HWKEY_HOME_DOUBLETAP_CHANGED)) {
                 if (intent.hasExtra(GravityBoxSettings.EXTRA_HWKEY_HOME_DOUBLETAP_DISABLE)) {
@@ -182,25 +182,23 @@ public class ModHwKeys {
                     }
                 }
             } else if (action.equals(GravityBoxSettings.ACTION_PREF_HWKEY_BACK_LONGPRESS_CHANGED)) {
-                mBackLongpressAction = value;
-                if (DEBUG) log("Back long-press action set to: " + value);
+                setActionForHwKeyTrigger(HwKeyTrigger.BACK_LONGPRESS, value);
             } else if (action.equals(GravityBoxSettings.ACTION_PREF_HWKEY_BACK_DOUBLETAP_CHANGED)) {
-                mBackDoubletapAction = value;
-                if (DEBUG) log("Back double-tap action set to: " + value);
+                setActionForHwKeyTrigger(HwKeyTrigger.BACK_DOUBLETAP, value);
             } else if (action.equals(GravityBoxSettings.ACTION_PREF_HWKEY_RECENTS_SINGLETAP_CHANGED)) {
-                mRecentsSingletapAction = value;
-                if (DEBUG) log("Recents single-tap action set to: " + value);
+                setActionForHwKeyTrigger(HwKeyTrigger.RECENTS_SINGLETAP, value);
             } else if (action.equals(GravityBoxSettings.ACTION_PREF_HWKEY_RECENTS_LONGPRESS_CHANGED)) {
-                mRecentsLongpressAction = value;
-                if (DEBUG) log("Recents long-press action set to: " + value);
+                setActionForHwKeyTrigger(HwKeyTrigger.RECENTS_LONGPRESS, value);
             } else if (action.equals(GravityBoxSettings.ACTION_PREF_HWKEY_DOUBLETAP_SPEED_CHANGED)) {
                 mDoubletapSpeed = value;
+                mKeyGestures.setTapTimeout(value);
                 if (DEBUG) log("Doubletap speed set to: " + value);
             } else if (action.equals(GravityBoxSettings.ACTION_PREF_HWKEY_KILL_DELAY_CHANGED)) {
                 mKillDelay = value;
                 if (DEBUG) log("Kill delay set to: " + value);
             } else if (action.equals(GravityBoxSettings.ACTION_PREF_VOLUME_ROCKER_WAKE_CHANGED)) {
-                mVolumeRockerWake = intent.getStringExtra(GravityBoxSettings.EXTRA_VOLUME_ROCKER_WAKE);
+                mVolumeRockerWake = getVolumeRockerWakeMode(
+                        intent.getStringExtra(GravityBoxSettings.EXTRA_VOLUME_ROCKER_WAKE));
                 if (DEBUG) log("mVolumeRockerWake set to: " + mVolumeRockerWake);
             } else if (action.equals(GravityBoxSettings.ACTION_PREF_HWKEY_LOCKSCREEN_TORCH_CHANGED)) {
                 if (intent.hasExtra(GravityBoxSettings.EXTRA_HWKEY_TORCH)) {
@@ -241,24 +239,39 @@ public class ModHwKeys {
                         GravityBoxSettings.EXTRA_ED_MODE, GravityBoxSettings.ED_DISABLED);
             } else if (action.equals(ACTION_TOGGLE_EXPANDED_DESKTOP) && mPhoneWindowManager != null) {
                 toggleExpandedDesktop();
+            } else if (action.equals(GravityBoxSettings.ACTION_PREF_HWKEY_CUSTOM_APP_CHANGED)) {
+                if (intent.hasExtra(GravityBoxSettings.EXTRA_HWKEY_CUSTOM_APP)) {
+                    mCustomAppUri[0] = intent.getStringExtra(GravityBoxSettings.EXTRA_HWKEY_CUSTOM_APP);
+                    resolveCustomApp(0);
+                }
+                if (intent.hasExtra(GravityBoxSettings.EXTRA_HWKEY_CUSTOM_APP2)) {
+                    mCustomAppUri[1] = intent.getStringExtra(GravityBoxSettings.EXTRA_HWKEY_CUSTOM_APP2);
+                    resolveCustomApp(1);
+                }
+                if (intent.hasExtra(GravityBoxSettings.EXTRA_HWKEY_CUSTOM_APP_PRESTART)) {
+                    mCustomAppPrestart = intent.getBooleanExtra(
+                            GravityBoxSettings.EXTRA_HWKEY_CUSTOM_APP_PRESTART, false);
+                }
+            } else if (action.equals(Intent.ACTION_PACKAGE_ADDED) ||
+                    action.equals(Intent.ACTION_PACKAGE_CHANGED) ||
+                    action.equals(Intent.ACTION_PACKAGE_REMOVED)) {
+                resolveCustomApp(0);
+                resolveCustomApp(1);
             } else if (action.equals(GravityBoxSettings.ACTION_PREF_NAVBAR_CHANGED)) {
                 if (intent.hasExtra(GravityBoxSettings.EXTRA_NAVBAR_CUSTOM_KEY_SINGLETAP)) {
-                    mCustomKeySingletapAction = intent.getIntExtra(
+                    setActionForHwKeyTrigger(HwKeyTrigger.CUSTOM_SINGLETAP, intent.getIntExtra(
                             GravityBoxSettings.EXTRA_NAVBAR_CUSTOM_KEY_SINGLETAP,
-                                GravityBoxSettings.HWKEY_ACTION_APP_LAUNCHER);
-                    if (DEBUG) log("mCustomKeySingletapAction set to: " + mCustomKeySingletapAction);
+                                GravityBoxSettings.HWKEY_ACTION_APP_LAUNCHER));
                 }
                 if (intent.hasExtra(GravityBoxSettings.EXTRA_NAVBAR_CUSTOM_KEY_LONGPRESS)) {
-                    mCustomKeyLongpressAction = intent.getIntExtra(
+                    setActionForHwKeyTrigger(HwKeyTrigger.CUSTOM_LONGPRESS, intent.getIntExtra(
                             GravityBoxSettings.EXTRA_NAVBAR_CUSTOM_KEY_LONGPRESS,
-                                GravityBoxSettings.HWKEY_ACTION_DEFAULT);
-                    if (DEBUG) log("mCustomKeyLongpressAction set to: " + mCustomKeyLongpressAction);
+                                GravityBoxSettings.HWKEY_ACTION_DEFAULT));
                 }
                 if (intent.hasExtra(GravityBoxSettings.EXTRA_NAVBAR_CUSTOM_KEY_DOUBLETAP)) {
-                    mCustomKeyDoubletapAction = intent.getIntExtra(
+                    setActionForHwKeyTrigger(HwKeyTrigger.CUSTOM_DOUBLETAP, intent.getIntExtra(
                             GravityBoxSettings.EXTRA_NAVBAR_CUSTOM_KEY_DOUBLETAP,
-                                GravityBoxSettings.HWKEY_ACTION_DEFAULT);
-                    if (DEBUG) log("mCustomKeyDoubletapAction set to: " + mCustomKeyDoubletapAction);
+                                GravityBoxSettings.HWKEY_ACTION_DEFAULT));
                 }
             }
         }
@@ -267,41 +280,47 @@ public class ModHwKeys {
     public static void initZygote(final XSharedPreferences prefs) {
         try {
             mPrefs = prefs;
+            mKeyGestures = new KeyGestureDetector(HW_KEYS.length, mDoubletapSpeed, mKeyGestureHost);
             try {
-                mMenuLongpressAction = Integer.valueOf(
-                        prefs.getString(GravityBoxSettings.PREF_KEY_HWKEY_MENU_LONGPRESS, "0"));
-                mMenuDoubletapAction = Integer.valueOf(
-                        prefs.getString(GravityBoxSettings.PREF_KEY_HWKEY_MENU_DOUBLETAP, "0"));
-                mHomeLongpressAction = Integer.valueOf(
-                        prefs.getString(GravityBoxSettings.PREF_KEY_HWKEY_HOME_LONGPRESS, "0"));
-                mBackLongpressAction = Integer.valueOf(
-                        prefs.getString(GravityBoxSettings.PREF_KEY_HWKEY_BACK_LONGPRESS, "0"));
-                mBackDoubletapAction = Integer.valueOf(
-                        prefs.getString(GravityBoxSettings.PREF_KEY_HWKEY_BACK_DOUBLETAP, "0"));
-                mRecentsSingletapAction = Integer.valueOf(
-                        prefs.getString(GravityBoxSettings.PREF_KEY_HWKEY_RECENTS_SINGLETAP, "0"));
-                mRecentsLongpressAction = Integer.valueOf(
-                        prefs.getString(GravityBoxSettings.PREF_KEY_HWKEY_RECENTS_LONGPRESS, "0"));
+                setActionForHwKeyTrigger(HwKeyTrigger.MENU_LONGPRESS, Integer.valueOf(
+                        prefs.getString(GravityBoxSettings.PREF_KEY_HWKEY_MENU_LONGPRESS, "0")));
+                setActionForHwKeyTrigger(HwKeyTrigger.MENU_DOUBLETAP, Integer.valueOf(
+                        prefs.getString(GravityBoxSettings.PREF_KEY_HWKEY_MENU_DOUBLETAP, "0")));
+                setActionForHwKeyTrigger(HwKeyTrigger.HOME_LONGPRESS, Integer.valueOf(
+                        prefs.getString(GravityBoxSettings.PREF_KEY_HWKEY_HOME_LONGPRESS, "0")));
+                setActionForHwKeyTrigger(HwKeyTrigger.BACK_LONGPRESS, Integer.valueOf(
+                        prefs.getString(GravityBoxSettings.PREF_KEY_HWKEY_BACK_LONGPRESS, "0")));
+                setActionForHwKeyTrigger(HwKeyTrigger.BACK_DOUBLETAP, Integer.valueOf(
+                        prefs.getString(GravityBoxSettings.PREF_KEY_HWKEY_BACK_DOUBLETAP, "0")));
+                setActionForHwKeyTrigger(HwKeyTrigger.RECENTS_SINGLETAP, Integer.valueOf(
+                        prefs.getString(GravityBoxSettings.PREF_KEY_HWKEY_RECENTS_SINGLETAP, "0")));
+                setActionForHwKeyTrigger(HwKeyTrigger.RECENTS_LONGPRESS, Integer.valueOf(
+                        prefs.getString(GravityBoxSettings.PREF_KEY_HWKEY_RECENTS_LONGPRESS, "0")));
                 mDoubletapSpeed = Integer.valueOf(
                         prefs.getString(GravityBoxSettings.PREF_KEY_HWKEY_DOUBLETAP_SPEED, "400"));
+                mKeyGestures.setTapTimeout(mDoubletapSpeed);
                 mKillDelay = Integer.valueOf(
                         prefs.getString(GravityBoxSettings.PREF_KEY_HWKEY_KILL_DELAY, "1000"));
                 mLockscreenTorch = Integer.valueOf(
                         prefs.getString(GravityBoxSettings.PREF_KEY_HWKEY_LOCKSCREEN_TORCH, "0"));
-                mCustomKeySingletapAction = Integer.valueOf(prefs.getString(
-                        GravityBoxSettings.PREF_KEY_NAVBAR_CUSTOM_KEY_SINGLETAP, "12"));
-                mCustomKeyLongpressAction = Integer.valueOf(prefs.getString(
-                        GravityBoxSettings.PREF_KEY_NAVBAR_CUSTOM_KEY_LONGPRESS, "0"));
-                mCustomKeyDoubletapAction = Integer.valueOf(prefs.getString(
-                        GravityBoxSettings.PREF_KEY_NAVBAR_CUSTOM_KEY_DOUBLETAP, "0"));
+                setActionForHwKeyTrigger(HwKeyTrigger.CUSTOM_SINGLETAP, Integer.valueOf(prefs.getString(
+                        GravityBoxSettings.PREF_KEY_NAVBAR_CUSTOM_KEY_SINGLETAP, "12")));
+                setActionForHwKeyTrigger(HwKeyTrigger.CUSTOM_LONGPRESS, Integer.valueOf(prefs.getString(
+                        GravityBoxSettings.PREF_KEY_NAVBAR_CUSTOM_KEY_LONGPRESS, "0")));
+                setActionForHwKeyTrigger(HwKeyTrigger.CUSTOM_DOUBLETAP, Integer.valueOf(prefs.getString(
+                        GravityBoxSettings.PREF_KEY_NAVBAR_CUSTOM_KEY_DOUBLETAP, "0")));
             } catch (NumberFormatException e) {
                 XposedBridge.log(e);
             }
 
             mHomeDoubletapDisabled = prefs.getBoolean(
                     GravityBoxSettings.PREF_KEY_HWKEY_HOME_DOUBLETAP_DISABLE, false);
-            mVolumeRockerWake = prefs.getString(GravityBoxSettings.PREF_KEY_VOLUME_ROCKER_WAKE, "default");
+            mVolumeRockerWake = getVolumeRockerWakeMode(
+                    prefs.getString(GravityBoxSettings.PREF_KEY_VOLUME_ROCKER_WAKE, "default"));
             mHwKeysEnabled = !prefs.getBoolean(GravityBoxSettings.PREF_KEY_HWKEYS_DISABLE, false);
+            mCustomAppUri[0] = prefs.getString(GravityBoxSettings.PREF_KEY_HWKEY_CUSTOM_APP, null);
+            mCustomAppUri[1] = prefs.getString(GravityBoxSettings.PREF_KEY_HWKEY_CUSTOM_APP2, null);
+            mCustomAppPrestart = prefs.getBoolean(GravityBoxSettings.PREF_KEY_HWKEY_CUSTOM_APP_PRESTART, false);
 
             mPieMode = ModPieControls.PIE_DISABLED;
             try {
@@ -319,7 +338,7 @@ public class ModHwKeys {
             }
 
             final Class<?> classPhoneWindowManager = XposedHelpers.findClass(CLASS_PHONE_WINDOW_MANAGER, null);
-            classActivityManagerNative = XposedHelpers.findClass(CLASS_ACTIVITY_MANAGER_NATIVE, null);
+            ForegroundAppTracker.initZygote();
 
             if (Build.VERSION.SDK_INT > 16) {
                 XposedHelpers.findAndHookMethod(classPhoneWindowManager, "init",
@@ -334,127 +353,20 @@ public class ModHwKeys {
                     KeyEvent.class, int.class, boolean.class, new XC_MethodHook(XCallback.PRIORITY_HIGHEST) {
                 @Override
                 protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
-                    KeyEvent event = (KeyEvent) param.args[0];
-                    int keyCode = event.getKeyCode();
-                    boolean down = event.getAction() == KeyEvent.ACTION_DOWN;
-                    boolean keyguardOn = (Boolean) XposedHelpers.callMethod(mPhoneWindowManager, "keyguardOn");
-                    boolean isFromSystem = (event.getFlags() & KeyEvent.FLAG_FROM_SYSTEM) != 0;
-                    Handler handler = (Handler) XposedHelpers.getObjectField(param.thisObject, "mHandler");
-                    if (DEBUG) log("interceptKeyBeforeQueueing: keyCode=" + keyCode +
-                            "; action=" + event.getAction() + "; repeatCount=" + event.getRepeatCount());
-
-                    if (keyCode == KeyEvent.KEYCODE_VOLUME_UP) {
-                        if (!down) {
-                            handler.removeCallbacks(mResetBrightnessRunnable);
-                        } else {
-                            if (event.getRepeatCount() == 0) {
-                                handler.postDelayed(mResetBrightnessRunnable, 7000);
-                            }
-                        }
-                    }
-
-                    if (keyCode == KeyEvent.KEYCODE_VOLUME_DOWN && keyguardOn &&
-                            mLockscreenTorch == GravityBoxSettings.HWKEY_TORCH_VOLDOWN_LONGPRESS &&
-                            !(Boolean) XposedHelpers.callMethod(param.thisObject, "isMusicActive")) {
-                        if (!down) {
-                            handler.removeCallbacks(mLockscreenTorchRunnable);
-                        } else {
-                            if (event.getRepeatCount() == 0) {
-                                handler.postDelayed(mLockscreenTorchRunnable, 
-                                        ViewConfiguration.getLongPressTimeout());
-                            }
-                        }
-                    }
-
-                    if (!mVolumeRockerWake.equals("default") && 
-                            (keyCode == KeyEvent.KEYCODE_VOLUME_UP ||
-                                    keyCode == KeyEvent.KEYCODE_VOLUME_DOWN)) {
-                        int policyFlags = (Integer) param.args[1];
-                        if (mVolumeRockerWake.equals("enabled")) {
-                            policyFlags |= FLAG_WAKE;
-                            policyFlags |= FLAG_WAKE_DROPPED;
-                        } else if (mVolumeRockerWake.equals("disabled")) {
-                            policyFlags &= ~FLAG_WAKE;
-                            policyFlags &= ~FLAG_WAKE_DROPPED;
-                        }
-                        param.args[1] = policyFlags;
+                    // This runs for every key event on input dispatch path.
+                    // Get out as soon as possible for keys we have nothing to do with.
+                    final KeyEvent event = (KeyEvent) param.args[0];
+                    final int keyCode = event.getKeyCode();
+                    if (keyCode != KeyEvent.KEYCODE_VOLUME_UP && keyCode != KeyEvent.KEYCODE_VOLUME_DOWN &&
+                            keyCode != KeyEvent.KEYCODE_HOME && keyCode != KeyEvent.KEYCODE_SOFT_LEFT) {
                         return;
                     }
 
-                    if (keyCode == KeyEvent.KEYCODE_HOME) {
-                        if (!down) {
-                            handler.removeCallbacks(mLockscreenTorchRunnable);
-                            if (mIsHomeLongPressed) {
-                                mIsHomeLongPressed = false;
-                                param.setResult(0);
-                                return;
-                            }
-                            if (!areHwKeysEnabled() && 
-                                    event.getRepeatCount() == 0 &&
-                                    (event.getFlags() & KeyEvent.FLAG_FROM_SYSTEM) != 0) {
-                               if (DEBUG) log("HOME KeyEvent coming from HW key and keys disabled. Ignoring.");
-                               param.setResult(0);
-                               return;
-                           }
-                        } else if (keyguardOn) {
-                            if (event.getRepeatCount() == 0) {
-                                mIsHomeLongPressed = false;
-                                if (mLockscreenTorch == GravityBoxSettings.HWKEY_TORCH_HOME_LONGPRESS) {
-                                    handler.postDelayed(mLockscreenTorchRunnable, 
-                                            getLongpressTimeoutForAction(GravityBoxSettings.HWKEY_ACTION_TORCH));
-                                }
-                            } else {
-                                if (mLockscreenTorch == GravityBoxSettings.HWKEY_TORCH_HOME_LONGPRESS) {
-                                    param.setResult(0);
-                                }
-                                return;
-                            }
-                        }
-                    }
-
-                    if (keyCode == KeyEvent.KEYCODE_SOFT_LEFT) {
-                        if (!down) {
-                            mCustomKeyPressed = false;
-                            if (!mIsCustomKeyLongPressed && 
-                                    !mCustomKeyDoubletapPending && !mWasCustomKeyDoubletap) {
-                                if (DEBUG) log("Custom key singletap action");
-                                performAction(HwKeyTrigger.CUSTOM_SINGLETAP);
-                            }
-                            mIsCustomKeyLongPressed = false;
-                        } else {
-                            mCustomKeyPressed = true;
-                            if (event.getRepeatCount() == 0) {
-                                if (mCustomKeyDoubletapPending) {
-                                    handler.removeCallbacks(mCustomKeyDoubletapReset);
-                                    mWasCustomKeyDoubletap = true;
-                                    mCustomKeyDoubletapPending = false;
-                                    if (DEBUG) log("Custom key double-tap action");
-                                    performAction(HwKeyTrigger.CUSTOM_DOUBLETAP);
-                                } else if (mCustomKeyDoubletapAction != GravityBoxSettings.HWKEY_ACTION_DEFAULT
-                                            && isFromSystem) {
-                                    mCustomKeyDoubletapPending = true;
-                                    mWasCustomKeyDoubletap = false;
-                                    handler.postDelayed(mCustomKeyDoubletapReset, mDoubletapSpeed);
-                                }
-                                if (isFromSystem) {
-                                    XposedHelpers.callMethod(param.thisObject, "performHapticFeedbackLw",
-                                        new Class<?> [] { Class.forName(CLASS_WINDOW_STATE), int.class, boolean.class },
-                                        null, HapticFeedbackConstants.VIRTUAL_KEY, false);
-                                }
-                            } else {
-                                handler.removeCallbacks(mCustomKeyDoubletapReset);
-                                mCustomKeyDoubletapPending = false;
-                                mIsCustomKeyLongPressed = true;
-                                if (DEBUG) log("Custom key long-press action");
-                                performAction(HwKeyTrigger.CUSTOM_LONGPRESS);
-                                XposedHelpers.callMethod(param.thisObject, "performHapticFeedbackLw",
-                                        new Class<?> [] { Class.forName(CLASS_WINDOW_STATE), int.class, boolean.class },
-                                        null, HapticFeedbackConstants.LONG_PRESS, false);
-                            }
-                        }
-                        param.setResult(0);
-                        return;
-                    }
+                    final long start = DEBUG ? System.nanoTime() : 0;
+                    interceptKeyBeforeQueueing(param, event, keyCode);
+                    if (DEBUG) log("interceptKeyBeforeQueueing: keyCode=" + keyCode +
+                            "; action=" + event.getAction() + "; repeatCount=" + event.getRepeatCount() +
+                            "; handled within " + (System.nanoTime() - start) / 1000 + " us");
                 }
             });
 
@@ -463,111 +375,25 @@ public class ModHwKeys {
 
                 @Override
                 protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
-                    if ((Boolean) XposedHelpers.callMethod(mPhoneWindowManager, "keyguardOn")) return;
+                    if (isKeyguardOn()) return;
 
                     KeyEvent event = (KeyEvent) param.args[1];
                     int keyCode = event.getKeyCode();
-                    boolean down = event.getAction() == KeyEvent.ACTION_DOWN;
                     boolean isFromSystem = (event.getFlags() & KeyEvent.FLAG_FROM_SYSTEM) != 0;
-                    Handler mHandler = (Handler) XposedHelpers.getObjectField(param.thisObject, "mHandler");
                     if (DEBUG) log("interceptKeyBeforeDispatching: keyCode=" + keyCode +
                             "; isInjected=" + (((Integer)param.args[2] & 0x01000000) != 0) +
                             "; fromSystem=" + isFromSystem);
 
                     if (keyCode == KeyEvent.KEYCODE_MENU && isFromSystem &&
                         (hasAction(HwKey.MENU) || !areHwKeysEnabled())) {
-
-                        if (!down) {
-                            mMenuKeyPressed = false;
-                            mHandler.removeCallbacks(mMenuLongPress);
-                            if (mIsMenuLongPressed) {
-                                mIsMenuLongPressed = false;
-                                param.setResult(-1);
-                                return;
-                            }
-                            if (event.getRepeatCount() == 0) {
-                                if (!areHwKeysEnabled()) {
-                                    if (DEBUG) log("MENU KeyEvent coming from HW key and keys disabled. Ignoring.");
-                                    param.setResult(-1);
-                                    return;
-                                } else if (mIsMenuDoubleTap) {
-                                    // we are still waiting for double-tap
-                                    if (DEBUG) log("MENU doubletap pending. Ignoring.");
-                                    param.setResult(-1);
-                                    return;
-                                }
-                            }
-                        } else {
-                            if (event.getRepeatCount() == 0) {
-                                mMenuKeyPressed = true;
-                                if (mIsMenuDoubleTap) {
-                                    performAction(HwKeyTrigger.MENU_DOUBLETAP);
-                                    mHandler.removeCallbacks(mMenuDoubleTapReset);
-                                    mIsMenuDoubleTap = false;
-                                    param.setResult(-1);
-                                    return;
-                                } else {
-                                    mIsMenuLongPressed = false;
-                                    mIsMenuDoubleTap = false;
-                                    if (mMenuDoubletapAction != GravityBoxSettings.HWKEY_ACTION_DEFAULT) {
-                                        mIsMenuDoubleTap = true;
-                                        mHandler.postDelayed(mMenuDoubleTapReset, mDoubletapSpeed);
-                                        param.setResult(-1);
-                                    }
-                                    if (mMenuLongpressAction != GravityBoxSettings.HWKEY_ACTION_DEFAULT) {
-                                        mHandler.postDelayed(mMenuLongPress, 
-                                                getLongpressTimeoutForAction(mMenuLongpressAction));
-                                    }
-                                }
-                            } else {
-                                if (mMenuLongpressAction != GravityBoxSettings.HWKEY_ACTION_DEFAULT) {
-                                    param.setResult(-1);
-                                }
-                                return;
-                            }
-                        }
+                        handleGestureKey(HwKey.MENU, event);
+                        param.setResult(-1);
+                        return;
                     }
 
                     if (keyCode == KeyEvent.KEYCODE_BACK && isFromSystem &&
                             (hasAction(HwKey.BACK) || !areHwKeysEnabled())) {
-
-                        if (!down) {
-                            mBackKeyPressed = false;
-                            mHandler.removeCallbacks(mBackLongPress);
-                            if (mIsBackLongPressed) {
-                                mIsBackLongPressed = false;
-                            } else if (areHwKeysEnabled() && !mIsBackDoubleTap && !mWasBackDoubleTap) {
-                                // inject BACK key event as it was previously eaten by us
-                                if (DEBUG) log("Triggering original DOWN/UP events for BACK key");
-                                injectKey(KeyEvent.KEYCODE_BACK);
-                            } else {
-                                if (DEBUG) log("BACK KeyEvent coming from HW key and keys disabled; " +
-                                		"or pending double-tap. Ignoring.");
-                            }
-                        } else {
-                            if (event.getRepeatCount() == 0) {
-                                mBackKeyPressed = true;
-                                mWasBackDoubleTap = mIsBackDoubleTap;
-                                if (mIsBackDoubleTap) {
-                                    performAction(HwKeyTrigger.BACK_DOUBLETAP);
-                                    mHandler.removeCallbacks(mBackDoubleTapReset);
-                                    mIsBackDoubleTap = false;
-                                    param.setResult(-1);
-                                    return;
-                                } else {
-                                    mIsBackLongPressed = false;
-                                    mIsBackDoubleTap = false;
-                                    if (mBackDoubletapAction != GravityBoxSettings.HWKEY_ACTION_DEFAULT) {
-                                        mIsBackDoubleTap = true;
-                                        mHandler.postDelayed(mBackDoubleTapReset, mDoubletapSpeed);
-                                    }
-                                    if (mBackLongpressAction != GravityBoxSettings.HWKEY_ACTION_DEFAULT) {
-                                        mHandler.postDelayed(mBackLongPress, 
-                                                getLongpressTimeoutForAction(mBackLongpressAction));
-                                    }
-                                }
-                            }
-                        }
+                        handleGestureKey(HwKey.BACK, event);
                         param.setResult(-1);
                         return;
                     }
@@ -575,32 +401,7 @@ public class ModHwKeys {
                     if (keyCode == KeyEvent.KEYCODE_APP_SWITCH) {
                         if (!hasAction(HwKey.RECENTS) && areHwKeysEnabled()) return;
 
-                        if (!down) {
-                            mHandler.removeCallbacks(mRecentsLongPress);
-                            if (!mIsRecentsLongPressed) {
-                                if (!areHwKeysEnabled() &&
-                                        event.getRepeatCount() == 0 && 
-                                        ((event.getFlags() & KeyEvent.FLAG_FROM_SYSTEM) != 0)) {
-                                    if (DEBUG) log("APP_SWITCH KeyEvent coming from HW key and keys disabled. Ignoring.");
-                                    param.setResult(-1);
-                                    return;
-                                }
-                                if (mRecentsSingletapAction != GravityBoxSettings.HWKEY_ACTION_DEFAULT) {
-                                    performAction(HwKeyTrigger.RECENTS_SINGLETAP);
-                                } else {
-                                    toggleRecentApps();
-                                }
-                            }
-                            mIsRecentsLongPressed = false;
-                        } else {
-                            if (event.getRepeatCount() == 0) {
-                                mIsRecentsLongPressed = false;
-                                if (mRecentsLongpressAction != GravityBoxSettings.HWKEY_ACTION_DEFAULT) {
-                                    mHandler.postDelayed(mRecentsLongPress, 
-                                            getLongpressTimeoutForAction(mRecentsLongpressAction));
-                                }
-                            }
-                        }
+                        handleGestureKey(HwKey.RECENTS, event);
                         param.setResult(-1);
                         return;
                     }
@@ -621,7 +422,7 @@ public class ModHwKeys {
                     } else {
                         XposedHelpers.setBooleanField(param.thisObject, "mHomeLongPressed", true);
                     }
-                    performAction(HwKeyTrigger.HOME_LONGPRESS);
+                    performAction(HwKey.HOME, KeyGestureDetector.GESTURE_LONGPRESS);
 
                     return null;
                 }
@@ -634,10 +435,10 @@ public class ModHwKeys {
                     @Override
                     protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
                         int keyCode = (Integer) param.args[0];
-                        if (!mVolumeRockerWake.equals("default") && 
+                        if (mVolumeRockerWake != VOLUME_ROCKER_WAKE_DEFAULT && 
                                 (keyCode == KeyEvent.KEYCODE_VOLUME_DOWN ||
                                  keyCode == KeyEvent.KEYCODE_VOLUME_UP)) {
-                            param.setResult(mVolumeRockerWake.equals("enabled") ? true : false);
+                            param.setResult(mVolumeRockerWake == VOLUME_ROCKER_WAKE_ENABLED);
                         }
                     }
                 });
@@ -666,6 +467,12 @@ public class ModHwKeys {
         protected void afterHookedMethod(MethodHookParam param) throws Throwable {
             mPhoneWindowManager = param.thisObject;
             mContext = (Context) XposedHelpers.getObjectField(mPhoneWindowManager, "mContext");
+            // handles used on key event paths are resolved once
+            mHandler = (Handler) XposedHelpers.getObjectField(mPhoneWindowManager, "mHandler");
+            final Class<?> classPhoneWindowManager = XposedHelpers.findClass(CLASS_PHONE_WINDOW_MANAGER, null);
+            mKeyguardOnMethod = XposedHelpers.findMethodExact(classPhoneWindowManager, "keyguardOn");
+            mPerformHapticFeedbackMethod = XposedHelpers.findMethodExact(classPhoneWindowManager,
+                    "performHapticFeedbackLw", CLASS_WINDOW_STATE, int.class, boolean.class);
             mGbContext = mContext.createPackageContext(GravityBox.PACKAGE_NAME, Context.CONTEXT_IGNORE_SECURITY);
             XposedHelpers.setIntField(mPhoneWindowManager, "mAllowAllRotations", 
                     mPrefs.getBoolean(GravityBoxSettings.PREF_KEY_DISPLAY_ALLOW_ALL_ROTATIONS, false) ? 1 : 0);
@@ -679,6 +486,7 @@ public class ModHwKeys {
             mStrExpandedDesktopDisabled = res.getString(R.string.hwkey_action_expanded_desktop_disabled);
 
             mAppLauncher = new AppLauncher(mContext, mPrefs);
+            ForegroundAppTracker.init(mContext);
 
             IntentFilter intentFilter = new IntentFilter();
             intentFilter.addAction(GravityBoxSettings.ACTION_PREF_HWKEY_MENU_LONGPRESS_CHANGED);
@@ -700,96 +508,154 @@ public class ModHwKeys {
             intentFilter.addAction(GravityBoxSettings.ACTION_PREF_HWKEY_LOCKSCREEN_TORCH_CHANGED);
             intentFilter.addAction(ACTION_TOGGLE_EXPANDED_DESKTOP);
             intentFilter.addAction(GravityBoxSettings.ACTION_PREF_NAVBAR_CHANGED);
+            intentFilter.addAction(GravityBoxSettings.ACTION_PREF_HWKEY_CUSTOM_APP_CHANGED);
             mContext.registerReceiver(mBroadcastReceiver, intentFilter);
 
+            IntentFilter packageFilter = new IntentFilter();
+            packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+            packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+            packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+            packageFilter.addDataScheme("package");
+            mContext.registerReceiver(mBroadcastReceiver, packageFilter);
+
+            resolveCustomApp(0);
+            resolveCustomApp(1);
+
             if (DEBUG) log("Phone window manager initialized");
         }
     };
 
-    private static boolean areHwKeysEnabled() {
-        return (mHwKeysEnabled ||
-                  !ModPieControls.isPieEnabled(mContext, mPieMode, mExpandedDesktopMode));
-    }
-
-    private static Runnable mMenuLongPress = new Runnable() {
+    private static void interceptKeyBeforeQueueing(XC_MethodHook.MethodHookParam param,
+            KeyEvent event, int keyCode) throws Throwable {
+        final boolean down = event.getAction() == KeyEvent.ACTION_DOWN;
+        final boolean isFromSystem = (event.getFlags() & KeyEvent.FLAG_FROM_SYSTEM) != 0;
 
-        @Override
-        public void run() {
-            if (DEBUG) log("mMenuLongPress runnable launched");
-            mIsMenuLongPressed = true;
-            performAction(HwKeyTrigger.MENU_LONGPRESS);
+        if (keyCode == KeyEvent.KEYCODE_VOLUME_UP) {
+            if (!down) {
+                mHandler.removeCallbacks(mResetBrightnessRunnable);
+            } else {
+                if (event.getRepeatCount() == 0) {
+                    mHandler.postDelayed(mResetBrightnessRunnable, 7000);
+                }
+            }
         }
-    };
-
-    private static Runnable mMenuDoubleTapReset = new Runnable() {
 
-        @Override
-        public void run() {
-            mIsMenuDoubleTap = false;
-            // doubletap timed out and since we blocked default MENU key action while waiting for doubletap
-            // let's inject it now additionally, but only in case it's not still pressed as we might still be waiting
-            // for long-press action
-            if (!mMenuKeyPressed && areHwKeysEnabled()) {
-                if (DEBUG) log("MENU key double tap timed out and key not pressed; injecting MENU key");
-                injectKey(KeyEvent.KEYCODE_MENU);
+        if (keyCode == KeyEvent.KEYCODE_VOLUME_DOWN &&
+                mLockscreenTorch == GravityBoxSettings.HWKEY_TORCH_VOLDOWN_LONGPRESS) {
+            if (!down) {
+                mHandler.removeCallbacks(mLockscreenTorchRunnable);
+            } else {
+                // music state is checked when long-press timeout expires
+                if (event.getRepeatCount() == 0 && isKeyguardOn()) {
+                    mHandler.postDelayed(mLockscreenTorchRunnable, 
+                            ViewConfiguration.getLongPressTimeout());
+                }
             }
         }
-    };
 
-    private static Runnable mBackLongPress = new Runnable() {
+        if (mVolumeRockerWake != VOLUME_ROCKER_WAKE_DEFAULT && 
+                (keyCode == KeyEvent.KEYCODE_VOLUME_UP ||
+                        keyCode == KeyEvent.KEYCODE_VOLUME_DOWN)) {
+            int policyFlags = (Integer) param.args[1];
+            if (mVolumeRockerWake == VOLUME_ROCKER_WAKE_ENABLED) {
+                policyFlags |= FLAG_WAKE;
+                policyFlags |= FLAG_WAKE_DROPPED;
+            } else if (mVolumeRockerWake == VOLUME_ROCKER_WAKE_DISABLED) {
+                policyFlags &= ~FLAG_WAKE;
+                policyFlags &= ~FLAG_WAKE_DROPPED;
+            }
+            param.args[1] = policyFlags;
+            return;
+        }
 
-        @Override
-        public void run() {
-            if (DEBUG) log("mBackLongPress runnable launched");
-            mIsBackLongPressed = true;
-            performAction(HwKeyTrigger.BACK_LONGPRESS);
+        if (keyCode == KeyEvent.KEYCODE_HOME && down && event.getRepeatCount() == 0 && mCustomAppPrestart) {
+            prestartCustomApp(mKeyGestures.getAction(HwKey.HOME.ordinal(),
+                    KeyGestureDetector.GESTURE_LONGPRESS));
         }
-    };
 
-    private static Runnable mBackDoubleTapReset = new Runnable() {
+        if (keyCode == KeyEvent.KEYCODE_HOME) {
+            if (!down) {
+                mHandler.removeCallbacks(mLockscreenTorchRunnable);
+                cancelPrestartCustomApp();
+                if (mIsHomeLongPressed) {
+                    mIsHomeLongPressed = false;
+                    param.setResult(0);
+                    return;
+                }
+                if (!areHwKeysEnabled() && 
+                        event.getRepeatCount() == 0 &&
+                        (event.getFlags() & KeyEvent.FLAG_FROM_SYSTEM) != 0) {
+                   if (DEBUG) log("HOME KeyEvent coming from HW key and keys disabled. Ignoring.");
+                   param.setResult(0);
+                   return;
+               }
+            } else if (isKeyguardOn()) {
+                if (event.getRepeatCount() == 0) {
+                    mIsHomeLongPressed = false;
+                    if (mLockscreenTorch == GravityBoxSettings.HWKEY_TORCH_HOME_LONGPRESS) {
+                        mHandler.postDelayed(mLockscreenTorchRunnable, 
+                                getLongpressTimeoutForAction(GravityBoxSettings.HWKEY_ACTION_TORCH));
+                    }
+                } else {
+                    if (mLockscreenTorch == GravityBoxSettings.HWKEY_TORCH_HOME_LONGPRESS) {
+                        param.setResult(0);
+                    }
+                    return;
+                }
+            }
+        }
 
-        @Override
-        public void run() {
-            mIsBackDoubleTap = false;
-            // doubletap timed out and since we blocked default BACK key action while waiting for doubletap
-            // let's inject it now additionally, but only in case it's not still pressed as we might still be waiting
-            // for long-press action
-            if (!mBackKeyPressed && areHwKeysEnabled()) {
-                if (DEBUG) log("BACK key double tap timed out and key not pressed; injecting BACK key");
-                injectKey(KeyEvent.KEYCODE_BACK);
+        if (keyCode == KeyEvent.KEYCODE_SOFT_LEFT) {
+            handleGestureKey(HwKey.CUSTOM, event);
+            if (down && event.getRepeatCount() == 0 && isFromSystem) {
+                performHapticFeedback(HapticFeedbackConstants.VIRTUAL_KEY, false);
             }
+            param.setResult(0);
+            return;
         }
-    };
+    }
 
-    private static Runnable mRecentsLongPress = new Runnable() {
+    private static boolean areHwKeysEnabled() {
+        return (mHwKeysEnabled ||
+                  !ModPieControls.isPieEnabled(mContext, mPieMode, mExpandedDesktopMode));
+    }
 
-        @Override
-        public void run() {
-            if (DEBUG) log("mRecentsLongPress runnable launched");
-            mIsRecentsLongPressed = true;
-            performAction(HwKeyTrigger.RECENTS_LONGPRESS);
+    private static int getVolumeRockerWakeMode(String value) {
+        if ("enabled".equals(value)) return VOLUME_ROCKER_WAKE_ENABLED;
+        if ("disabled".equals(value)) return VOLUME_ROCKER_WAKE_DISABLED;
+        return VOLUME_ROCKER_WAKE_DEFAULT;
+    }
+
+    private static boolean isKeyguardOn() {
+        try {
+            return (Boolean) mKeyguardOnMethod.invoke(mPhoneWindowManager);
+        } catch (Throwable t) {
+            XposedBridge.log(t);
+            return false;
         }
-    };
+    }
 
-    private static Runnable mCustomKeyDoubletapReset = new Runnable() {
-        @Override
-        public void run() {
-            mCustomKeyDoubletapPending = false;
-            // doubletap timed out and since we blocked single-tap action while waiting for doubletap
-            // let's inject it now additionally, but only in case it's not still pressed as we might still be waiting
-            // for long-press action
-            if (!mCustomKeyPressed) {
-                if (DEBUG) log("Custom key double tap timed out and key not pressed; injecting key");
-                injectKey(KeyEvent.KEYCODE_SOFT_LEFT);
-            }
+    private static void performHapticFeedback(int effectId, boolean always) {
+        try {
+            mPerformHapticFeedbackMethod.invoke(mPhoneWindowManager, null, effectId, always);
+        } catch (Throwable t) {
+            XposedBridge.log(t);
         }
-    };
+    }
 
     private static Runnable mLockscreenTorchRunnable = new Runnable() {
 
         @Override
         public void run() {
             if (DEBUG) log("mLockscreenTorchRunnable runnable launched");
+            if (mLockscreenTorch == GravityBoxSettings.HWKEY_TORCH_VOLDOWN_LONGPRESS) {
+                try {
+                    // volume down long-press is left to music player
+                    if ((Boolean) XposedHelpers.callMethod(mPhoneWindowManager, "isMusicActive")) return;
+                } catch (Throwable t) {
+                    XposedBridge.log(t);
+                }
+            }
             if (mLockscreenTorch == GravityBoxSettings.HWKEY_TORCH_HOME_LONGPRESS) {
                 mIsHomeLongPressed = true;
             }
@@ -823,54 +689,94 @@ public class ModHwKeys {
         }
     };
 
-    private static int getActionForHwKeyTrigger(HwKeyTrigger keyTrigger) {
-        int action = GravityBoxSettings.HWKEY_ACTION_DEFAULT;
-
-        if (keyTrigger == HwKeyTrigger.MENU_LONGPRESS) {
-            action = mMenuLongpressAction;
-        } else if (keyTrigger == HwKeyTrigger.MENU_DOUBLETAP) {
-            action = mMenuDoubletapAction;
-        } else if (keyTrigger == HwKeyTrigger.HOME_LONGPRESS) {
-            action = mHomeLongpressAction;
-        } else if (keyTrigger == HwKeyTrigger.BACK_LONGPRESS) {
-            action = mBackLongpressAction;
-        } else if (keyTrigger == HwKeyTrigger.BACK_DOUBLETAP) {
-            action = mBackDoubletapAction;
-        } else if (keyTrigger == HwKeyTrigger.RECENTS_SINGLETAP) {
-            action = mRecentsSingletapAction;
-        } else if (keyTrigger == HwKeyTrigger.RECENTS_LONGPRESS) {
-            action = mRecentsLongpressAction;
-        } else if (keyTrigger == HwKeyTrigger.CUSTOM_SINGLETAP) {
-            action = mCustomKeySingletapAction;
-        } else if (keyTrigger == HwKeyTrigger.CUSTOM_LONGPRESS) {
-            action = mCustomKeyLongpressAction;
-        } else if (keyTrigger == HwKeyTrigger.CUSTOM_DOUBLETAP) {
-            action = mCustomKeyDoubletapAction;
+    private static void setActionForHwKeyTrigger(HwKeyTrigger keyTrigger, int action) {
+        mKeyGestures.setAction(keyTrigger.key.ordinal(), keyTrigger.gesture, action);
+        if (DEBUG) log("Action for HWKEY trigger " + keyTrigger + " set to: " + action);
+    }
+
+    private static boolean hasAction(HwKey key) {
+        boolean retVal = (key == HwKey.CUSTOM) || mKeyGestures.hasAction(key.ordinal());
+        if (DEBUG) log("HWKEY " + key + " has action = " + retVal);
+        return retVal;
+    }
+
+    private static KeyGestureDetector.Host mKeyGestureHost = new KeyGestureDetector.Host() {
+        @Override
+        public long uptimeMillis() {
+            return SystemClock.uptimeMillis();
         }
 
-        if (DEBUG) log("Action for HWKEY trigger " + keyTrigger + " = " + action);
-        return action;
+        @Override
+        public void requestTimeout(long uptimeMillis) {
+            if (mHandler == null) return;
+
+            mHandler.removeCallbacks(mKeyGestureTimeout);
+            if (uptimeMillis != KeyGestureDetector.NO_TIMEOUT) {
+                mHandler.postAtTime(mKeyGestureTimeout, uptimeMillis);
+            }
+        }
+
+        @Override
+        public long getLongPressTimeout(int key, int action) {
+            return getLongpressTimeoutForAction(action);
+        }
+
+        @Override
+        public void onGesture(int key, int gesture, int flags) {
+            onKeyGesture(HW_KEYS[key], gesture, flags);
+        }
+    };
+
+    private static Runnable mKeyGestureTimeout = new Runnable() {
+        @Override
+        public void run() {
+            mKeyGestures.onTimeout();
+        }
+    };
+
+    private static void handleGestureKey(HwKey key, KeyEvent event) {
+        if (event.getAction() == KeyEvent.ACTION_DOWN) {
+            if (event.getRepeatCount() == 0) {
+                mKeyGestures.onKeyDown(key.ordinal(), event.getFlags());
+                if (mCustomAppPrestart) {
+                    prestartCustomApp(mKeyGestures.getAction(key.ordinal(),
+                            KeyGestureDetector.GESTURE_LONGPRESS));
+                }
+            }
+        } else {
+            cancelPrestartCustomApp();
+            mKeyGestures.onKeyUp(key.ordinal(), (event.getFlags() & KeyEvent.FLAG_CANCELED) != 0);
+        }
     }
 
-    private static boolean hasAction(HwKey key) {
-        boolean retVal = false;
-        if (key == HwKey.MENU) {
-            retVal |= getActionForHwKeyTrigger(HwKeyTrigger.MENU_LONGPRESS) != GravityBoxSettings.HWKEY_ACTION_DEFAULT;
-            retVal |= getActionForHwKeyTrigger(HwKeyTrigger.MENU_DOUBLETAP) != GravityBoxSettings.HWKEY_ACTION_DEFAULT;
-        } else if (key == HwKey.HOME) {
-            retVal |= getActionForHwKeyTrigger(HwKeyTrigger.HOME_LONGPRESS) != GravityBoxSettings.HWKEY_ACTION_DEFAULT;
-        } else if (key == HwKey.BACK) {
-            retVal |= getActionForHwKeyTrigger(HwKeyTrigger.BACK_LONGPRESS) != GravityBoxSettings.HWKEY_ACTION_DEFAULT;
-            retVal |= getActionForHwKeyTrigger(HwKeyTrigger.BACK_DOUBLETAP) != GravityBoxSettings.HWKEY_ACTION_DEFAULT;
-        } else if (key == HwKey.RECENTS) {
-            retVal |= getActionForHwKeyTrigger(HwKeyTrigger.RECENTS_SINGLETAP) != GravityBoxSettings.HWKEY_ACTION_DEFAULT;
-            retVal |= getActionForHwKeyTrigger(HwKeyTrigger.RECENTS_LONGPRESS) != GravityBoxSettings.HWKEY_ACTION_DEFAULT;
-        } else if (key == HwKey.CUSTOM) {
-            retVal = true;
+    private static void onKeyGesture(HwKey key, int gesture, int flags) {
+        if (DEBUG) log("HWKEY " + key + " gesture " + gesture + " recognized");
+
+        if (gesture == KeyGestureDetector.GESTURE_SINGLETAP) {
+            // we consumed original key events so single tap has to replay default key function
+            if (key == HwKey.MENU || key == HwKey.BACK) {
+                if (areHwKeysEnabled()) {
+                    injectKey(key == HwKey.MENU ? KeyEvent.KEYCODE_MENU : KeyEvent.KEYCODE_BACK);
+                } else {
+                    if (DEBUG) log(key + " KeyEvent coming from HW key and keys disabled. Ignoring.");
+                }
+                return;
+            }
+            if (key == HwKey.RECENTS) {
+                if (!areHwKeysEnabled() && (flags & KeyEvent.FLAG_FROM_SYSTEM) != 0) {
+                    if (DEBUG) log("APP_SWITCH KeyEvent coming from HW key and keys disabled. Ignoring.");
+                    return;
+                }
+                if (mKeyGestures.getAction(key.ordinal(), gesture) == GravityBoxSettings.HWKEY_ACTION_DEFAULT) {
+                    toggleRecentApps();
+                    return;
+                }
+            }
+        } else if (gesture == KeyGestureDetector.GESTURE_LONGPRESS && key == HwKey.CUSTOM) {
+            performHapticFeedback(HapticFeedbackConstants.LONG_PRESS, false);
         }
 
-        if (DEBUG) log("HWKEY " + key + " has action = " + retVal);
-        return retVal;
+        performAction(key, gesture);
     }
 
     private static int getLongpressTimeoutForAction(int action) {
@@ -878,9 +784,9 @@ public class ModHwKeys {
                 mKillDelay : ViewConfiguration.getLongPressTimeout();
     }
 
-    private static void performAction(HwKeyTrigger keyTrigger) {
-        int action = getActionForHwKeyTrigger(keyTrigger);
-        if (DEBUG) log("Performing action " + action + " for HWKEY trigger " + keyTrigger.toString());
+    private static void performAction(HwKey key, int gesture) {
+        int action = mKeyGestures.getAction(key.ordinal(), gesture);
+        if (DEBUG) log("Performing action " + action + " for HWKEY " + key + " gesture " + gesture);
 
         if (action == GravityBoxSettings.HWKEY_ACTION_DEFAULT) return;
 
@@ -931,59 +837,34 @@ public class ModHwKeys {
     }
 
     private static void killForegroundApp() {
-        Handler handler = (Handler) XposedHelpers.getObjectField(mPhoneWindowManager, "mHandler");
-        if (handler == null) return;
+        if (mHandler == null) return;
 
-        handler.post(
+        final long triggerTime = SystemClock.uptimeMillis();
+        mHandler.post(
             new Runnable() {
                 @Override
                 public void run() {
                     try {
-                        final Intent intent = new Intent(Intent.ACTION_MAIN);
-                        final PackageManager pm = mContext.getPackageManager();
-                        String defaultHomePackage = "com.android.launcher";
-                        intent.addCategory(Intent.CATEGORY_HOME);
-                        
-                        final ResolveInfo res = pm.resolveActivity(intent, 0);
-                        if (res.activityInfo != null && !res.activityInfo.packageName.equals("android")) {
-                            defaultHomePackage = res.activityInfo.packageName;
-                        }
-        
-                        Object mgr = XposedHelpers.callStaticMethod(classActivityManagerNative, "getDefault");
-        
-                        @SuppressWarnings("unchecked")
-                        List<RunningAppProcessInfo> apps = (List<RunningAppProcessInfo>) 
-                                XposedHelpers.callMethod(mgr, "getRunningAppProcesses");
-        
+                        // foreground app is kept up to date by tracker so no need to query activity manager
+                        final ForegroundAppTracker.AppRecord app = ForegroundAppTracker.getForegroundApp();
                         String targetKilled = null;
-                        for (RunningAppProcessInfo appInfo : apps) {  
-                            int uid = appInfo.uid;  
-                            // Make sure it's a foreground user application (not system,  
-                            // root, phone, etc.)  
-                            if (uid >= Process.FIRST_APPLICATION_UID && uid <= Process.LAST_APPLICATION_UID  
-                                    && appInfo.importance == RunningAppProcessInfo.IMPORTANCE_FOREGROUND &&
-                                    !mKillIgnoreList.contains(appInfo.processName) &&
-                                    !appInfo.processName.equals(defaultHomePackage)) {  
-                                if (DEBUG) log("Killing process ID " + appInfo.pid + ": " + appInfo.processName);
-                                Process.killProcess(appInfo.pid);
-                                targetKilled = appInfo.processName;
-                                try {
-                                    targetKilled = (String) pm.getApplicationLabel(
-                                            pm.getApplicationInfo(targetKilled, 0));
-                                } catch (PackageManager.NameNotFoundException nfe) {
-                                    //
-                                }
-                                break;
-                            }  
+                        // Make sure it's a foreground user application (not system,
+                        // root, phone, etc.)
+                        if (app != null &&
+                                app.uid >= Process.FIRST_APPLICATION_UID && app.uid <= Process.LAST_APPLICATION_UID &&
+                                !mKillIgnoreList.contains(app.processName) &&
+                                !app.packageName.equals(ForegroundAppTracker.getHomePackage()) &&
+                                ForegroundAppTracker.isAlive(app)) {
+                            if (DEBUG) log("Killing process ID " + app.pid + ": " + app.processName);
+                            Process.killProcess(app.pid);
+                            ForegroundAppTracker.onAppKilled(app);
+                            if (DEBUG) log("Process killed within " +
+                                    (SystemClock.uptimeMillis() - triggerTime) + " ms since action triggered");
+                            targetKilled = ForegroundAppTracker.getAppLabel(app.packageName);
                         }
-        
+
                         if (targetKilled != null) {
-                            Class<?>[] paramArgs = new Class<?>[3];
-                            paramArgs[0] = XposedHelpers.findClass(CLASS_WINDOW_STATE, null);
-                            paramArgs[1] = int.class;
-                            paramArgs[2] = boolean.class;
-                            XposedHelpers.callMethod(mPhoneWindowManager, "performHapticFeedbackLw",
-                                    paramArgs, null, HapticFeedbackConstants.FLAG_IGNORE_GLOBAL_SETTING, true);
+                            performHapticFeedback(HapticFeedbackConstants.FLAG_IGNORE_GLOBAL_SETTING, true);
                             Toast.makeText(mContext, 
                                     String.format(mStrAppKilled, targetKilled), Toast.LENGTH_SHORT).show();
                         } else {
@@ -998,37 +879,19 @@ public class ModHwKeys {
     }
 
     private static void switchToLastApp() {
-        Handler handler = (Handler) XposedHelpers.getObjectField(mPhoneWindowManager, "mHandler");
-        if (handler == null) return;
+        if (mHandler == null) return;
 
-        handler.post(
+        mHandler.post(
             new Runnable() {
                 @Override
                 public void run() {
-                    int lastAppId = 0;
-                    int looper = 1;
-                    String packageName;
-                    final Intent intent = new Intent(Intent.ACTION_MAIN);
-                    final ActivityManager am = (ActivityManager) mContext
-                            .getSystemService(Context.ACTIVITY_SERVICE);
-                    String defaultHomePackage = "com.android.launcher";
-                    intent.addCategory(Intent.CATEGORY_HOME);
-                    final ResolveInfo res = mContext.getPackageManager().resolveActivity(intent, 0);
-                    if (res.activityInfo != null && !res.activityInfo.packageName.equals("android")) {
-                        defaultHomePackage = res.activityInfo.packageName;
-                    }
-                    List <ActivityManager.RunningTaskInfo> tasks = am.getRunningTasks(5);
-                    // lets get enough tasks to find something to switch to
-                    // Note, we'll only get as many as the system currently has - up to 5
-                    while ((lastAppId == 0) && (looper < tasks.size())) {
-                        packageName = tasks.get(looper).topActivity.getPackageName();
-                        if (!packageName.equals(defaultHomePackage) && !packageName.equals("com.android.systemui")) {
-                            lastAppId = tasks.get(looper).id;
-                        }
-                        looper++;
-                    }
-                    if (lastAppId != 0) {
-                        am.moveTaskToFront(lastAppId, ActivityManager.MOVE_TASK_NO_USER_ACTION);
+                    // recent tasks are tracked as they get resumed so there's nothing to query here
+                    final ForegroundAppTracker.AppRecord lastApp = ForegroundAppTracker.getPreviousApp();
+                    if (lastApp != null) {
+                        if (DEBUG) log("Switching to task " + lastApp.taskId + ": " + lastApp.packageName);
+                        final ActivityManager am = (ActivityManager) mContext
+                                .getSystemService(Context.ACTIVITY_SERVICE);
+                        am.moveTaskToFront(lastApp.taskId, ActivityManager.MOVE_TASK_NO_USER_ACTION);
                     } else {
                         Toast.makeText(mContext, mStrNoPrevApp, Toast.LENGTH_SHORT).show();
                     }
@@ -1061,26 +924,63 @@ public class ModHwKeys {
         }
     }
 
+    private static int getCustomAppIndex(int action) {
+        if (action == GravityBoxSettings.HWKEY_ACTION_CUSTOM_APP) return 0;
+        if (action == GravityBoxSettings.HWKEY_ACTION_CUSTOM_APP2) return 1;
+        return -1;
+    }
+
+    private static void resolveCustomApp(int index) {
+        mCustomAppIntent[index] = null;
+        mCustomAppInfo[index] = null;
+        if (mCustomAppUri[index] == null || mContext == null) return;
+
+        try {
+            final PackageManager pm = mContext.getPackageManager();
+            final Intent intent = Intent.parseUri(mCustomAppUri[index], 0);
+            intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TOP);
+            if (intent.getComponent() == null) {
+                final ResolveInfo ri = pm.resolveActivity(intent, 0);
+                if (ri == null || ri.activityInfo == null) {
+                    if (DEBUG) log("Custom app " + index + " cannot be resolved: " + mCustomAppUri[index]);
+                    return;
+                }
+                // leave it up to chooser if there's no default activity
+                if (!ri.activityInfo.packageName.equals("android")) {
+                    intent.setComponent(new ComponentName(ri.activityInfo.packageName, ri.activityInfo.name));
+                    mCustomAppInfo[index] = ri.activityInfo;
+                }
+            } else {
+                mCustomAppInfo[index] = pm.getActivityInfo(intent.getComponent(), 0);
+            }
+            mCustomAppIntent[index] = intent;
+            if (DEBUG) log("Custom app " + index + " resolved to: " + intent.getComponent());
+        } catch (PackageManager.NameNotFoundException e) {
+            if (DEBUG) log("Custom app " + index + " not found: " + mCustomAppUri[index]);
+        } catch (Throwable t) {
+            XposedBridge.log(t);
+        }
+    }
+
     private static void launchCustomApp(final int action) {
-        Handler handler = (Handler) XposedHelpers.getObjectField(mPhoneWindowManager, "mHandler");
-        if (handler == null) return;
-        mPrefs.reload();
+        if (mHandler == null) return;
 
-        handler.post(
+        mHandler.post(
             new Runnable() {
                 @Override
                 public void run() {
+                    final int index = getCustomAppIndex(action);
                     try {
-                        String appInfo = (action == GravityBoxSettings.HWKEY_ACTION_CUSTOM_APP) ?
-                                mPrefs.getString(GravityBoxSettings.PREF_KEY_HWKEY_CUSTOM_APP, null) :
-                                    mPrefs.getString(GravityBoxSettings.PREF_KEY_HWKEY_CUSTOM_APP2, null);
-                        if (appInfo == null) {
+                        if (mCustomAppUri[index] == null) {
                             Toast.makeText(mContext, mStrCustomAppNone, Toast.LENGTH_SHORT).show();
                             return;
                         }
 
-                        Intent i = Intent.parseUri(appInfo, 0);
-                        i.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TOP);
+                        final Intent i = mCustomAppIntent[index];
+                        if (i == null) {
+                            Toast.makeText(mContext, mStrCustomAppMissing, Toast.LENGTH_SHORT).show();
+                            return;
+                        }
                         mContext.startActivity(i);
                     } catch (ActivityNotFoundException e) {
                         Toast.makeText(mContext, mStrCustomAppMissing, Toast.LENGTH_SHORT).show();
@@ -1092,11 +992,55 @@ public class ModHwKeys {
         );
     }
 
+    // Starts process of custom app assigned to long-press once key is held for half
+    // of long-press timeout so that most of app startup is done by the time long-press fires
+    // while plain taps released sooner don't spawn any process
+    private static void prestartCustomApp(int action) {
+        final int index = getCustomAppIndex(action);
+        if (index < 0 || mHandler == null) return;
+        final ActivityInfo ai = mCustomAppInfo[index];
+        if (ai == null) return;
+
+        mHandler.removeCallbacks(mPrestartCustomAppRunnable);
+        mPrestartAppInfo = ai;
+        mHandler.postDelayed(mPrestartCustomAppRunnable, ViewConfiguration.getLongPressTimeout() / 2);
+    }
+
+    private static void cancelPrestartCustomApp() {
+        if (mHandler == null) return;
+        mHandler.removeCallbacks(mPrestartCustomAppRunnable);
+    }
+
+    private static Runnable mPrestartCustomAppRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final ActivityInfo ai = mPrestartAppInfo;
+            if (ai == null) return;
+            try {
+                final Object am = XposedHelpers.callStaticMethod(
+                        XposedHelpers.findClass(CLASS_ACTIVITY_MANAGER_NATIVE, null), "getDefault");
+                final ComponentName cn = new ComponentName(ai.packageName, ai.name);
+                synchronized (am) {
+                    try {
+                        XposedHelpers.callMethod(am, "startProcessLocked", ai.processName,
+                                ai.applicationInfo, false, 0, "activity", cn, false, false);
+                    } catch (NoSuchMethodError e) {
+                        // KitKat has additional keepIfLarge argument
+                        XposedHelpers.callMethod(am, "startProcessLocked", ai.processName,
+                                ai.applicationInfo, false, 0, "activity", cn, false, false, true);
+                    }
+                }
+                if (DEBUG) log("Process prestarted: " + ai.processName);
+            } catch (Throwable t) {
+                XposedBridge.log(t);
+            }
+        }
+    };
+
     private static void injectKey(final int keyCode) {
-        Handler handler = (Handler) XposedHelpers.getObjectField(mPhoneWindowManager, "mHandler");
-        if (handler == null) return;
+        if (mHandler == null) return;
 
-        handler.post(new Runnable() {
+        mHandler.post(new Runnable() {
             @Override
             public void run() {
                 try {
@@ -1117,10 +1061,9 @@ public class ModHwKeys {
     }
 
     private static void toggleExpandedDesktop() {
-        Handler handler = (Handler) XposedHelpers.getObjectField(mPhoneWindowManager, "mHandler");
-        if (handler == null) return;
+        if (mHandler == null) return;
 
-        handler.post(new Runnable() {
+        mHandler.post(new Runnable() {
             @Override
             public void run() {
                 try {
@@ -1154,10 +1097,9 @@ public class ModHwKeys {
     }
 
     private static void showAppLauncher() {
-        Handler handler = (Handler) XposedHelpers.getObjectField(mPhoneWindowManager, "mHandler");
-        if (handler == null || mAppLauncher == null) return;
+        if (mHandler == null || mAppLauncher == null) return;
 
-        handler.post(new Runnable() {
+        mHandler.post(new Runnable() {
             @Override
             public void run() {
                 mAppLauncher.showDialog();
@@ -16,7 +16,6 @@
 package com.ceco.gm2.gravitybox;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
@@ -29,8 +28,10 @@ import com.ceco.gm2.gravitybox.preference.AppPickerPreference;
 import android.app.Activity;
 import android.appwidget.AppWidgetHostView;
 import android.appwidget.AppWidgetProviderInfo;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.ActivityInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
@@ -41,11 +42,14 @@ import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
+import android.graphics.Point;
 import android.graphics.RectF;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.text.Editable;
 import android.text.TextWatcher;
 import android.util.TypedValue;
@@ -110,6 +114,21 @@ public class ModLockscreen {
     private static Context mGbContext;
     private static boolean mTorchEnabled;
 
+    // Runs quick unlock verification and wallpaper decoding off the UI thread
+    private static Handler mWorkerHandler;
+
+    // Lockscreen wallpaper decoded at display size; kept across keyguard view re-creations
+    private static final Object mWallpaperLock = new Object();
+    private static Bitmap mWallpaperBitmap;
+    private static long mWallpaperTimestamp;
+    private static long mWallpaperLength;
+
+    // Quick unlock
+    // updated right after preferences get reloaded, i.e. after key input view got inflated
+    private static volatile boolean mQuickUnlockEnabled;
+    // length of last quickly unlocked password; kept in memory only, never persisted
+    private static volatile int mQuickUnlockLengthHint;
+
     // Battery Arc
     private static HandleDrawable mHandleDrawable;
     private static Paint mArcPaint;
@@ -127,6 +146,7 @@ public class ModLockscreen {
     public static void initZygote(final XSharedPreferences prefs) {
         try {
             mPrefs = prefs;
+            mQuickUnlockEnabled = prefs.getBoolean(GravityBoxSettings.PREF_KEY_LOCKSCREEN_QUICK_UNLOCK, false);
             final Class<?> kgViewManagerClass = XposedHelpers.findClass(CLASS_KGVIEW_MANAGER, null);
             final Class<?> kgHostViewClass = XposedHelpers.findClass(CLASS_KG_HOSTVIEW, null);
             final Class<?> kgSelectorViewClass = XposedHelpers.findClass(CLASS_KG_SELECTOR_VIEW, null);
@@ -173,6 +193,8 @@ public class ModLockscreen {
                 @Override
                 protected void afterHookedMethod(final MethodHookParam param) throws Throwable {
                     mPrefs.reload();
+                    mQuickUnlockEnabled = mPrefs.getBoolean(
+                            GravityBoxSettings.PREF_KEY_LOCKSCREEN_QUICK_UNLOCK, false);
 
                     FrameLayout keyguardView = (FrameLayout) XposedHelpers.getObjectField(
                             param.thisObject, "mKeyguardView");
@@ -181,9 +203,24 @@ public class ModLockscreen {
                             GravityBoxSettings.PREF_KEY_LOCKSCREEN_BACKGROUND, 
                             GravityBoxSettings.LOCKSCREEN_BG_DEFAULT);
 
-                    Context context = (Context) XposedHelpers.getObjectField(param.thisObject, "mContext");
+                    final Context context = (Context) XposedHelpers.getObjectField(param.thisObject, "mContext");
                     if (context != null && mGbContext == null) {
                         mGbContext = context.createPackageContext(GravityBox.PACKAGE_NAME, 0);
+                        // decode new wallpaper as soon as it's picked so keyguard inflation finds it cached
+                        context.registerReceiver(new BroadcastReceiver() {
+                            @Override
+                            public void onReceive(Context ctx, Intent intent) {
+                                getWorkerHandler().post(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        getLockscreenWallpaper(context);
+                                    }
+                                });
+                            }
+                        }, new IntentFilter(GravityBoxSettings.ACTION_PREF_LOCKSCREEN_BG_CHANGED));
+                    }
+                    if (!bgType.equals(GravityBoxSettings.LOCKSCREEN_BG_IMAGE)) {
+                        clearLockscreenWallpaper();
                     }
 
                     if (!bgType.equals(GravityBoxSettings.LOCKSCREEN_BG_DEFAULT)) {
@@ -198,14 +235,12 @@ public class ModLockscreen {
                             flayout.setBackgroundColor(color);
                             if (DEBUG) log("inflateKeyguardView: background color set");
                         } else if (bgType.equals(GravityBoxSettings.LOCKSCREEN_BG_IMAGE)) {
-                            String wallpaperFile = mGbContext.getFilesDir() + "/lockwallpaper";
-                            Bitmap background = BitmapFactory.decodeFile(wallpaperFile);
+                            Bitmap background = getLockscreenWallpaper(context);
                             Drawable d = new BitmapDrawable(context.getResources(), background);
                             ImageView mLockScreenWallpaperImage = new ImageView(context);
                             mLockScreenWallpaperImage.setScaleType(ScaleType.CENTER_CROP);
                             mLockScreenWallpaperImage.setImageDrawable(d);
                             flayout.addView(mLockScreenWallpaperImage, -1, -1);
-                            keyguardView.addView(flayout,0);
                             if (DEBUG) log("inflateKeyguardView: background image set");
                          }
                          keyguardView.addView(flayout,0);
@@ -429,40 +464,28 @@ public class ModLockscreen {
                 protected void afterHookedMethod(final MethodHookParam param) throws Throwable {
                     final TextView passwordEntry = 
                             (TextView) XposedHelpers.getObjectField(param.thisObject, "mPasswordEntry");
+                    // key input view is inflated before preferences get reloaded in inflateKeyguardView
+                    // so the watcher is always attached and checks whether quick unlock is enabled
                     if (passwordEntry != null) {
-                        passwordEntry.addTextChangedListener(new TextWatcher() {
-                            @Override
-                            public void afterTextChanged(Editable s) {
-                                if (!mPrefs.getBoolean(
-                                        GravityBoxSettings.PREF_KEY_LOCKSCREEN_QUICK_UNLOCK, false)) return;
-
-                                final Object callback = 
-                                        XposedHelpers.getObjectField(param.thisObject, "mCallback");
-                                final Object lockPatternUtils = 
-                                        XposedHelpers.getObjectField(param.thisObject, "mLockPatternUtils");
-                                String entry = passwordEntry.getText().toString();
-
-                                if (callback != null && lockPatternUtils != null &&
-                                        entry.length() > 3 && 
-                                        (Boolean) XposedHelpers.callMethod(
-                                                lockPatternUtils, "checkPassword", entry)) {
-                                    XposedHelpers.callMethod(callback, "reportSuccessfulUnlockAttempt");
-                                    XposedHelpers.callMethod(callback, "dismiss", true);
-                                }
-                            }
-                            @Override
-                            public void beforeTextChanged(CharSequence arg0,
-                                    int arg1, int arg2, int arg3) {
-                            }
-                            @Override
-                            public void onTextChanged(CharSequence arg0,
-                                    int arg1, int arg2, int arg3) {
-                            }
-                        });
+                        passwordEntry.addTextChangedListener(
+                                new QuickUnlockWatcher(param.thisObject, passwordEntry));
                     }
                 }
             });
 
+            try {
+                XposedHelpers.findAndHookMethod(kgAbsKeyInputViewClass, "verifyPasswordAndUnlock",
+                        new XC_MethodHook() {
+                    @Override
+                    protected void beforeHookedMethod(final MethodHookParam param) throws Throwable {
+                        // user had to confirm password; it might have changed so length hint is not reliable
+                        mQuickUnlockLengthHint = 0;
+                    }
+                });
+            } catch (Throwable t) {
+                XposedBridge.log(t);
+            }
+
             XposedHelpers.findAndHookMethod(kgViewMediatorClass, "adjustStatusBarLocked", new XC_MethodHook() {
                 @Override
                 protected void afterHookedMethod(final MethodHookParam param) throws Throwable {
@@ -646,20 +669,199 @@ public class ModLockscreen {
         }
     };
 
+    private static synchronized Handler getWorkerHandler() {
+        if (mWorkerHandler == null) {
+            HandlerThread thread = new HandlerThread("GbLockscreenWorker");
+            thread.start();
+            mWorkerHandler = new Handler(thread.getLooper());
+        }
+        return mWorkerHandler;
+    }
+
+    // Returns cached wallpaper unless the file was replaced since it was decoded
+    private static Bitmap getLockscreenWallpaper(Context context) {
+        final File file = new File(mGbContext.getFilesDir() + "/lockwallpaper");
+        synchronized (mWallpaperLock) {
+            final long timestamp = file.lastModified();
+            final long length = file.length();
+            if (mWallpaperBitmap != null &&
+                    timestamp == mWallpaperTimestamp && length == mWallpaperLength) {
+                return mWallpaperBitmap;
+            }
+
+            final long startTime = DEBUG ? SystemClock.uptimeMillis() : 0;
+            mWallpaperBitmap = timestamp == 0 ? null : decodeWallpaper(context, file.getAbsolutePath());
+            mWallpaperTimestamp = timestamp;
+            mWallpaperLength = length;
+            if (DEBUG) log("Lockscreen wallpaper decoded in " + (SystemClock.uptimeMillis() - startTime) + "ms");
+            return mWallpaperBitmap;
+        }
+    }
+
+    private static void clearLockscreenWallpaper() {
+        synchronized (mWallpaperLock) {
+            mWallpaperBitmap = null;
+            mWallpaperTimestamp = 0;
+            mWallpaperLength = 0;
+        }
+    }
+
+    // Decodes image just big enough to cover the display with the same orientation as image
+    private static Bitmap decodeWallpaper(Context context, String path) {
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, opts);
+        final int width = opts.outWidth;
+        final int height = opts.outHeight;
+        if (width <= 0 || height <= 0) return null;
+
+        final Point size = new Point();
+        ((WindowManager) context.getSystemService(Context.WINDOW_SERVICE))
+                .getDefaultDisplay().getRealSize(size);
+        final int shortSide = Math.min(size.x, size.y);
+        final int longSide = Math.max(size.x, size.y);
+        final int displayWidth = width > height ? longSide : shortSide;
+        final int displayHeight = width > height ? shortSide : longSide;
+        final float scale = Math.min(1f, Math.max((float) displayWidth / width,
+                (float) displayHeight / height));
+        final int dstWidth = Math.round(width * scale);
+        final int dstHeight = Math.round(height * scale);
+
+        opts.inJustDecodeBounds = false;
+        opts.inSampleSize = 1;
+        while (width / (opts.inSampleSize * 2) >= dstWidth &&
+                height / (opts.inSampleSize * 2) >= dstHeight) {
+            opts.inSampleSize *= 2;
+        }
+        // JPEG has no alpha channel
+        if ("image/jpeg".equals(opts.outMimeType)) {
+            opts.inPreferredConfig = Bitmap.Config.RGB_565;
+            opts.inDither = true;
+        }
+
+        Bitmap bitmap = BitmapFactory.decodeFile(path, opts);
+        if (bitmap != null && (bitmap.getWidth() != dstWidth || bitmap.getHeight() != dstHeight)) {
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap, dstWidth, dstHeight, true);
+            if (scaled != bitmap) {
+                bitmap.recycle();
+                bitmap = scaled;
+            }
+        }
+        if (DEBUG && bitmap != null) log("Lockscreen wallpaper " + width + "x" + height + " decoded as " +
+                bitmap.getWidth() + "x" + bitmap.getHeight() + "; inSampleSize=" + opts.inSampleSize +
+                "; config=" + bitmap.getConfig());
+        return bitmap;
+    }
+
+    // Verifies password entry on worker thread as user types. Only the latest entry is verified;
+    // entries superseded by further typing are dropped before they reach checkPassword.
+    private static class QuickUnlockWatcher implements TextWatcher {
+        private final Object mKeyInputView;
+        private final TextView mPasswordEntry;
+        private String mPendingEntry;
+        private long mPendingTime;
+
+        QuickUnlockWatcher(Object keyInputView, TextView passwordEntry) {
+            mKeyInputView = keyInputView;
+            mPasswordEntry = passwordEntry;
+        }
+
+        private Runnable mVerifyRunnable = new Runnable() {
+            @Override
+            public void run() {
+                final String entry;
+                final long time;
+                synchronized (QuickUnlockWatcher.this) {
+                    entry = mPendingEntry;
+                    time = mPendingTime;
+                    mPendingEntry = null;
+                }
+                if (entry != null) {
+                    verify(entry, time);
+                }
+            }
+        };
+
+        private void verify(final String entry, long time) {
+            final Object lockPatternUtils = 
+                    XposedHelpers.getObjectField(mKeyInputView, "mLockPatternUtils");
+            if (lockPatternUtils == null) return;
+
+            final long checkStart = DEBUG ? SystemClock.uptimeMillis() : 0;
+            final boolean match = (Boolean) XposedHelpers.callMethod(
+                    lockPatternUtils, "checkPassword", entry);
+            if (DEBUG) log("Quick unlock: checkPassword took " + (SystemClock.uptimeMillis() - checkStart) +
+                    "ms; keystroke to result " + (SystemClock.uptimeMillis() - time) + "ms");
+            if (!match) return;
+
+            mPasswordEntry.post(new Runnable() {
+                @Override
+                public void run() {
+                    // entry might have changed while being verified
+                    if (!mQuickUnlockEnabled || !entry.equals(mPasswordEntry.getText().toString())) return;
+                    final Object callback = XposedHelpers.getObjectField(mKeyInputView, "mCallback");
+                    if (callback == null) return;
+
+                    mQuickUnlockLengthHint = entry.length();
+                    XposedHelpers.callMethod(callback, "reportSuccessfulUnlockAttempt");
+                    XposedHelpers.callMethod(callback, "dismiss", true);
+                }
+            });
+        }
+
+        @Override
+        public void afterTextChanged(Editable s) {
+            final long time = SystemClock.uptimeMillis();
+            final String entry = s.toString();
+            final int length = entry.length();
+            final int lengthHint = mQuickUnlockLengthHint;
+            // longer entry than the hint is still verified in case password got changed meanwhile
+            final boolean shouldVerify = mQuickUnlockEnabled &&
+                    length > 3 && (lengthHint == 0 || length >= lengthHint);
+
+            synchronized (this) {
+                mPendingEntry = shouldVerify ? entry : null;
+                mPendingTime = time;
+            }
+            final Handler handler = getWorkerHandler();
+            handler.removeCallbacks(mVerifyRunnable);
+            if (shouldVerify) {
+                handler.post(mVerifyRunnable);
+            }
+            if (DEBUG) log("Quick unlock: afterTextChanged took " + 
+                    (SystemClock.uptimeMillis() - time) + "ms; length=" + length +
+                    "; hint=" + lengthHint + "; verify=" + shouldVerify);
+        }
+
+        @Override
+        public void beforeTextChanged(CharSequence arg0, int arg1, int arg2, int arg3) {
+        }
+
+        @Override
+        public void onTextChanged(CharSequence arg0, int arg1, int arg2, int arg3) {
+        }
+    }
+
     private static class AppInfo {
         public String key;
         public Intent intent;
         public Drawable icon;
         public String name;
+        // custom icon file, if any, and its modification time
+        public String iconPath;
+        public long iconStamp;
     }
 
     private static AppInfo getAppInfo(Context context, String app) {
         try {
-            if (mAppInfoCache.containsKey(app)) {
+            final AppInfo cached = mAppInfoCache.get(app);
+            if (cached != null && (cached.iconPath == null ||
+                    new File(cached.iconPath).lastModified() == cached.iconStamp)) {
                 if (DEBUG) log("AppInfo: returning from cache for " + app);
-                return mAppInfoCache.get(app);
+                return cached;
             }
 
+            final long startTime = DEBUG ? SystemClock.uptimeMillis() : 0;
             AppInfo appInfo = new AppInfo();
             appInfo.key = app;
             appInfo.intent = Intent.parseUri(app, 0);
@@ -669,30 +871,28 @@ public class ModLockscreen {
             final int mode = appInfo.intent.getIntExtra("mode", AppPickerPreference.MODE_APP);
             Bitmap appIcon = null;
             final Resources res = context.getResources();
+            final int sizePx = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 40, 
+                    res.getDisplayMetrics());
             if (mode == AppPickerPreference.MODE_APP) {
                 PackageManager pm = context.getPackageManager();
                 ActivityInfo ai = pm.getActivityInfo(appInfo.intent.getComponent(), 0);
                 appInfo.name = (String) ai.loadLabel(pm);
-                appIcon = Utils.drawableToBitmap(ai.loadIcon(pm));
+                appIcon = renderIcon(ai.loadIcon(pm), sizePx);
             } else if (mode == AppPickerPreference.MODE_SHORTCUT) {
                 appInfo.name = appInfo.intent.getStringExtra("label");
-                final String appIconPath = appInfo.intent.getStringExtra("icon");
-                if (appIconPath != null) {
-                    File f = new File(appIconPath);
-                    FileInputStream fis = new FileInputStream(f);
-                    appIcon = BitmapFactory.decodeStream(fis);
-                    fis.close();
+                appInfo.iconPath = appInfo.intent.getStringExtra("icon");
+                if (appInfo.iconPath != null) {
+                    appInfo.iconStamp = new File(appInfo.iconPath).lastModified();
+                    appIcon = decodeIcon(appInfo.iconPath, sizePx);
                 }
             }
             if (appIcon != null) {
-                int sizePx = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 40, 
-                        res.getDisplayMetrics());
-                appIcon = Bitmap.createScaledBitmap(appIcon, sizePx, sizePx, true);
                 appInfo.icon = new BitmapDrawable(res, appIcon);
             }
 
             mAppInfoCache.put(appInfo.key, appInfo);
-            if (DEBUG) log("AppInfo: storing to cache for " + app);
+            if (DEBUG) log("AppInfo: storing to cache for " + app + "; took " +
+                    (SystemClock.uptimeMillis() - startTime) + "ms");
             return appInfo;
         } catch (Throwable t) {
             log("Error getting app info for " + app + "! Error: " + t.getMessage());
@@ -700,6 +900,44 @@ public class ModLockscreen {
         }
     }
 
+    // Draws icon directly at target size instead of scaling its intrinsic size bitmap
+    private static Bitmap renderIcon(Drawable d, int size) {
+        if (d == null) return null;
+
+        Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        if (d instanceof BitmapDrawable) {
+            d = d.mutate();
+            ((BitmapDrawable) d).setFilterBitmap(true);
+        }
+        d.setBounds(0, 0, size, size);
+        d.draw(canvas);
+        return bitmap;
+    }
+
+    private static Bitmap decodeIcon(String path, int size) {
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, opts);
+        if (opts.outWidth <= 0 || opts.outHeight <= 0) return null;
+
+        opts.inJustDecodeBounds = false;
+        opts.inSampleSize = 1;
+        while (opts.outWidth / (opts.inSampleSize * 2) >= size &&
+                opts.outHeight / (opts.inSampleSize * 2) >= size) {
+            opts.inSampleSize *= 2;
+        }
+        Bitmap bitmap = BitmapFactory.decodeFile(path, opts);
+        if (bitmap != null && (bitmap.getWidth() != size || bitmap.getHeight() != size)) {
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap, size, size, true);
+            if (scaled != bitmap) {
+                bitmap.recycle();
+                bitmap = scaled;
+            }
+        }
+        return bitmap;
+    }
+
     private static Object createTargetDrawable(Resources res, AppInfo appInfo) throws Throwable {
         if (mTargetDrawableConstructor == null) {
             mTargetDrawableConstructor = XposedHelpers.findConstructorExact(
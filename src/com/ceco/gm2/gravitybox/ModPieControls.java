@@ -31,7 +31,9 @@ import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.database.ContentObserver;
 import android.graphics.PixelFormat;
+import android.os.Bundle;
 import android.os.Handler;
+import android.os.ResultReceiver;
 import android.provider.Settings;
 import android.util.TypedValue;
 import android.view.MotionEvent;
@@ -68,6 +70,13 @@ public class ModPieControls {
     public static final int PIE_ENABLED_ED = 2;
     public static final int PIE_ENABLED_ED_NAVBAR_HIDDEN = 3;
 
+    public static final String ACTION_GET_PIE_METRICS = "gravitybox.intent.action.GET_PIE_METRICS";
+    public static final String ACTION_RESET_PIE_METRICS = "gravitybox.intent.action.RESET_PIE_METRICS";
+    public static final int RESULT_PIE_METRICS = 0;
+    public static final String EXTRA_PIE_SIZE = "pieSize";
+    public static final String EXTRA_PIE_TRIGGER_SLOTS = "pieTriggerSlots";
+    public static final String EXTRA_PIE_TRIGGER_SIZE = "pieTriggerSize";
+
     private static PieController mPieController;
     private static PieLayout mPieContainer;
     private static int mPieTriggerSlots;
@@ -156,6 +165,21 @@ public class ModPieControls {
                 mExpandedDesktopMode = intent.getIntExtra(
                         GravityBoxSettings.EXTRA_ED_MODE, GravityBoxSettings.ED_DISABLED);
                 attachPie();
+            } else if (intent.getAction().equals(ACTION_GET_PIE_METRICS) &&
+                    intent.hasExtra("receiver")) {
+                ResultReceiver receiver = intent.getParcelableExtra("receiver");
+                Bundle data = new Bundle();
+                data.putInt(EXTRA_PIE_SIZE, mPieSize);
+                data.putInt(EXTRA_PIE_TRIGGER_SLOTS, mPieTriggerSlots);
+                data.putInt(EXTRA_PIE_TRIGGER_SIZE, mPieTriggerSize);
+                if (mPieContainer != null) {
+                    mPieContainer.getMetrics().writeToBundle(data);
+                }
+                receiver.send(RESULT_PIE_METRICS, data);
+            } else if (intent.getAction().equals(ACTION_RESET_PIE_METRICS)) {
+                if (mPieContainer != null) {
+                    mPieContainer.getMetrics().reset();
+                }
             }
         }
     };
@@ -294,6 +318,8 @@ public class ModPieControls {
                     IntentFilter intentFilter = new IntentFilter();
                     intentFilter.addAction(GravityBoxSettings.ACTION_PREF_PIE_CHANGED);
                     intentFilter.addAction(GravityBoxSettings.ACTION_PREF_EXPANDED_DESKTOP_MODE_CHANGED);
+                    intentFilter.addAction(ACTION_GET_PIE_METRICS);
+                    intentFilter.addAction(ACTION_RESET_PIE_METRICS);
                     mContext.registerReceiver(mBroadcastReceiver, intentFilter);
 
                     mSettingsObserver = new PieSettingsObserver(new Handler());
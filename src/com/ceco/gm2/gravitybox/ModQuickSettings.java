@@ -19,12 +19,13 @@ import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
 
 import com.ceco.gm2.gravitybox.Utils.MethodState;
 import com.ceco.gm2.gravitybox.quicksettings.AQuickSettingsTile;
@@ -40,6 +41,7 @@ import com.ceco.gm2.gravitybox.quicksettings.ScreenshotTile;
 import com.ceco.gm2.gravitybox.quicksettings.SleepTile;
 import com.ceco.gm2.gravitybox.quicksettings.StayAwakeTile;
 import com.ceco.gm2.gravitybox.quicksettings.TileOrderActivity;
+import com.ceco.gm2.gravitybox.quicksettings.TileRefreshScheduler;
 import com.ceco.gm2.gravitybox.quicksettings.TorchTile;
 import com.ceco.gm2.gravitybox.quicksettings.GravityBoxTile;
 import com.ceco.gm2.gravitybox.quicksettings.SyncTile;
@@ -63,6 +65,7 @@ import android.media.AudioManager;
 import android.net.ConnectivityManager;
 import android.os.Build;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.util.TypedValue;
 import android.view.LayoutInflater;
@@ -116,7 +119,8 @@ public class ModQuickSettings {
     private static Method methodGetColumnSpan;
     private static List<String> mCustomSystemTileKeys;
     private static List<Integer> mCustomGbTileKeys;
-    private static Map<String, Integer> mAospTileTags;
+    private static Set<String> mTileKeys;
+    private static Map<View, String> mUntaggedTileKeys;
     private static Object mQuickSettings;
     private static WifiManagerWrapper mWifiManager;
     private static Set<String> mOverrideTileKeys;
@@ -129,9 +133,17 @@ public class ModQuickSettings {
     private static float mSwipeDirection;
     private static boolean mTrackingSwipe;
     private static boolean mSwipeTriggered;
+    private static boolean mCollapseSuppressed;
 
     private static ArrayList<AQuickSettingsTile> mTiles;
+    private static Map<String, AQuickSettingsTile> mTileInstances;
+    private static Map<String, TileFactory> mTileFactories;
+    private static LayoutInflater mLayoutInflater;
     private static Map<String, View> mAllTileViews;
+    private static Map<Integer, TileLayoutSpec> mTileLayoutSpecs = new HashMap<Integer, TileLayoutSpec>();
+    private static Map<View, TileLayoutViews> mTileLayoutViews = new HashMap<View, TileLayoutViews>();
+    private static int mImgResId = -1;
+    private static int mRssiImgResId = -1;
 
     private static List<BroadcastSubReceiver> mBroadcastSubReceivers;
 
@@ -174,18 +186,9 @@ public class ModQuickSettings {
             mCustomGbTileKeys.add(R.id.wifi_tileview);
         }
 
-        Map<String, Integer> tmpMap = new HashMap<String, Integer>();
-        tmpMap.put("user_textview", 1);
-        tmpMap.put("brightness_textview", 2);
-        tmpMap.put("settings", 3);
-        tmpMap.put("wifi_textview", 4);
-        tmpMap.put("rssi_textview", 5);
-        tmpMap.put("auto_rotate_textview", 6);
-        tmpMap.put("battery_textview", 7);
-        tmpMap.put("airplane_mode_textview", 8);
-        tmpMap.put("bluetooth_textview", 9);
-        mAospTileTags = Collections.unmodifiableMap(tmpMap);
-
+        mTileKeys = new HashSet<String>(mCustomSystemTileKeys);
+        // weak keys so views dropped by panel rebuilds don't stay reachable
+        mUntaggedTileKeys = new WeakHashMap<View, String>();
         mAllTileViews = new HashMap<String, View>();
     }
 
@@ -193,6 +196,10 @@ public class ModQuickSettings {
         XposedBridge.log(TAG + ": " + message);
     }
 
+    private interface TileFactory {
+        AQuickSettingsTile create();
+    }
+
     private static BroadcastReceiver mBroadcastReceiver = new BroadcastReceiver() {
 
         @Override
@@ -233,11 +240,26 @@ public class ModQuickSettings {
     private static String getTileKey(View view) {
         if (view == null) return null;
 
+        // tiles tagged during creation carry their key directly
+        final Object tag = view.getTag();
+        if (tag instanceof String && mTileKeys.contains(tag)) {
+            return (String) tag;
+        }
+
+        // untagged tiles (e.g. MTK system tiles) are looked up only once
+        if (mUntaggedTileKeys.containsKey(view)) {
+            return mUntaggedTileKeys.get(view);
+        }
+        final String key = findTileKey(view);
+        mUntaggedTileKeys.put(view, key);
+        return key;
+    }
+
+    private static String findTileKey(View view) {
         Resources res = mContext.getResources();
         for (String key : mCustomSystemTileKeys) {
             int resId = res.getIdentifier(key, "id", PACKAGE_NAME);
-            if (view.findViewById(resId) != null || 
-                    view.findViewWithTag(mAospTileTags.get(key)) != null) {
+            if (view.findViewById(resId) != null) {
                 return key;
             }
         }
@@ -252,45 +274,175 @@ public class ModQuickSettings {
         return null;
     }
 
+    private static void registerTile(int tileViewId, TileFactory factory) {
+        mTileFactories.put(mGbContext.getResources().getResourceEntryName(tileViewId), factory);
+    }
+
+    // Tiles are instantiated only when active and destroyed once they get deactivated
+    // so inactive tiles don't inflate views nor register any receivers or observers
+    private static void updateTileInstances() {
+        if (mTileFactories == null) return;
+
+        final long startTime = SystemClock.uptimeMillis();
+        boolean prefsReloaded = false;
+        for (Map.Entry<String, TileFactory> entry : mTileFactories.entrySet()) {
+            final String key = entry.getKey();
+            final boolean active = mActiveTileKeys == null || mActiveTileKeys.contains(key);
+            AQuickSettingsTile tile = mTileInstances.get(key);
+            if (active && tile == null) {
+                if (!prefsReloaded) {
+                    // tile initializes from preferences so make sure they are current
+                    mPrefs.reload();
+                    prefsReloaded = true;
+                }
+                tile = entry.getValue().create();
+                tile.setupQuickSettingsTile(mContainerView, mLayoutInflater, mPrefs, mQuickSettings);
+                mTileInstances.put(key, tile);
+                mTiles.add(tile);
+                mBroadcastSubReceivers.add(tile);
+                if (DEBUG) log("updateTileInstances: created " + key);
+            } else if (!active && tile != null) {
+                tile.destroyQuickSettingsTile();
+                mTileInstances.remove(key);
+                mTiles.remove(tile);
+                mBroadcastSubReceivers.remove(tile);
+                mTileLayoutViews.remove(mAllTileViews.remove(key));
+                if (DEBUG) log("updateTileInstances: destroyed " + key);
+            }
+        }
+
+        if (DEBUG) {
+            final Runtime rt = Runtime.getRuntime();
+            log("updateTileInstances: " + mTiles.size() + " of " + mTileFactories.size() +
+                    " tiles instantiated; took " + (SystemClock.uptimeMillis() - startTime) +
+                    "ms; heap used " + ((rt.totalMemory() - rt.freeMemory()) / 1024) + "kB");
+        }
+    }
+
     private static void updateTileOrderAndVisibility() {
         if (mActiveTileKeys == null) {
             if (DEBUG) log("updateTileOrderAndVisibility: mActiveTileKeys is null - skipping");
             return;
         }
 
+        updateTileInstances();
+
         final List<View> dynamicTiles = new ArrayList<View>();
 
         final int tileCount = mContainerView.getChildCount();
-        for(int i = tileCount - 1; i >= 0; i--) {
+        for (int i = 0; i < tileCount; i++) {
             View view = mContainerView.getChildAt(i);
             final String key = getTileKey(view);
             if (key != null) {
                 if (!mAllTileViews.containsKey(key)) {
                     mAllTileViews.put(key, view);
                 }
-                mContainerView.removeView(view);
             } else if (view != null) {
                 // found tile that's not in our custom list
                 // might be dynamic tile (e.g. alarm) or some ROM specific tile?
-                // remove it and store it so it could be added in the end
+                // keep it so it could be placed in the end
                 dynamicTiles.add(view);
-                mContainerView.removeView(view);
             }
         }
 
+        final List<View> targetOrder = new ArrayList<View>();
         for (String key : mActiveTileKeys) {
-            if (mAllTileViews.containsKey(key)) {
-                mContainerView.addView(mAllTileViews.get(key));
+            final View view = mAllTileViews.get(key);
+            if (view != null && !targetOrder.contains(view)) {
+                targetOrder.add(view);
+            }
+        }
+
+        // tiles from dynamic list go as last (e.g. alarm tile)
+        targetOrder.addAll(dynamicTiles);
+
+        if (reorderViews(mContainerView, targetOrder)) {
+            // trigger layout refresh
+            XposedHelpers.callMethod(mContainerView, "updateResources");
+        } else if (DEBUG) {
+            log("updateTileOrderAndVisibility: tile order unchanged");
+        }
+    }
+
+    // Brings children of parent into target order touching only views that need to move.
+    // Views already in correct relative order (longest increasing subsequence) stay in place,
+    // views not contained in target are removed. Returns true if anything has changed.
+    private static boolean reorderViews(ViewGroup parent, List<View> target) {
+        final Map<View, Integer> targetPositions = new HashMap<View, Integer>();
+        for (int i = 0; i < target.size(); i++) {
+            targetPositions.put(target.get(i), i);
+        }
+
+        boolean changed = false;
+        for (int i = parent.getChildCount() - 1; i >= 0; i--) {
+            final View view = parent.getChildAt(i);
+            if (!targetPositions.containsKey(view)) {
+                parent.removeView(view);
+                changed = true;
+            }
+        }
+
+        final int childCount = parent.getChildCount();
+        final int[] positions = new int[childCount];
+        for (int i = 0; i < childCount; i++) {
+            positions[i] = targetPositions.get(parent.getChildAt(i));
+        }
+        final boolean[] inPlace = getLongestIncreasingSubsequence(positions);
+        final Set<View> stableViews = new HashSet<View>();
+        for (int i = 0; i < childCount; i++) {
+            if (inPlace[i]) {
+                stableViews.add(parent.getChildAt(i));
+            }
+        }
+
+        // each moved view is placed right after its predecessor from target order
+        for (int i = 0; i < target.size(); i++) {
+            final View view = target.get(i);
+            if (stableViews.contains(view)) continue;
+
+            if (view.getParent() == parent) {
+                parent.removeView(view);
             }
+            final int index = (i == 0) ? 0 : parent.indexOfChild(target.get(i - 1)) + 1;
+            parent.addView(view, index);
+            changed = true;
         }
 
-        // add tiles from dynamic list as last (e.g. alarm tile we previously removed)
-        for (View v : dynamicTiles) {
-            mContainerView.addView(v);
+        return changed;
+    }
+
+    // Returns mask of elements forming the longest strictly increasing subsequence of values
+    private static boolean[] getLongestIncreasingSubsequence(int[] values) {
+        final int n = values.length;
+        final int[] tailIndices = new int[n];
+        final int[] predecessors = new int[n];
+        int length = 0;
+
+        for (int i = 0; i < n; i++) {
+            int lo = 0;
+            int hi = length;
+            while (lo < hi) {
+                final int mid = (lo + hi) >>> 1;
+                if (values[tailIndices[mid]] < values[i]) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            predecessors[i] = lo > 0 ? tailIndices[lo - 1] : -1;
+            tailIndices[lo] = i;
+            if (lo == length) {
+                length++;
+            }
         }
 
-        // trigger layout refresh
-        XposedHelpers.callMethod(mContainerView, "updateResources");
+        final boolean[] mask = new boolean[n];
+        int k = length > 0 ? tailIndices[length - 1] : -1;
+        while (k >= 0) {
+            mask[k] = true;
+            k = predecessors[k];
+        }
+        return mask;
     }
 
     private static TextView findTileTextView(ViewGroup viewGroup) {
@@ -313,36 +465,45 @@ public class ModQuickSettings {
         return textView;
     }
 
-    private static void updateTileLayout(FrameLayout container, int orientation) {
-        if (container == null) return;
+    // Tile layout values for given orientation and column count
+    private static class TileLayoutSpec {
+        final int textSize;
+        final int imgMarginTop;
+        final int imgMarginBottom;
 
-        int tileCount = container.getChildCount();
-        int textSize = 12;
+        TileLayoutSpec(int textSize, int imgMarginTop, int imgMarginBottom) {
+            this.textSize = textSize;
+            this.imgMarginTop = imgMarginTop;
+            this.imgMarginBottom = imgMarginBottom;
+        }
+    }
 
-        final Resources res = container.getResources();
-        final Context context = container.getContext();
-        int imgMarginTop = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP,
-                27, res.getDisplayMetrics());
-        int imgMarginBottom = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP,
-                17, res.getDisplayMetrics());
-        final int imgResId = res.getIdentifier("image", "id", PACKAGE_NAME);
-        final int rssiImgResId = res.getIdentifier("rssi_image", "id", PACKAGE_NAME);
-
-        if (orientation == Configuration.ORIENTATION_PORTRAIT || !Utils.isPhoneUI(context)) {
+    // Views of a tile affected by tile layout, looked up only once per tile
+    private static class TileLayoutViews {
+        TextView textView;
+        View imageView;
+        TileLayoutSpec appliedSpec;
+    }
+
+    private static TileLayoutSpec getTileLayoutSpec(Resources res, boolean useColumns) {
+        final int specKey = useColumns ? mNumColumns : 0;
+        TileLayoutSpec spec = mTileLayoutSpecs.get(specKey);
+        if (spec != null) return spec;
+
+        int textSize = 12;
+        int imgMarginTop = 27;
+        int imgMarginBottom = 17;
+        if (useColumns) {
             switch (mNumColumns) {
                 case 4: 
                     textSize = 10;
-                    imgMarginTop = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP,
-                            17, res.getDisplayMetrics());
-                    imgMarginBottom = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP,
-                            10, res.getDisplayMetrics());
+                    imgMarginTop = 17;
+                    imgMarginBottom = 10;
                     break;
                 case 5:
-                    imgMarginTop = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP,
-                            10, res.getDisplayMetrics());
-                    imgMarginBottom = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP,
-                            5, res.getDisplayMetrics());
                     textSize = 8; 
+                    imgMarginTop = 10;
+                    imgMarginBottom = 5;
                     break;
                 case 3:
                 default:
@@ -351,43 +512,83 @@ public class ModQuickSettings {
             }
         }
 
+        spec = new TileLayoutSpec(textSize,
+                (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP,
+                        imgMarginTop, res.getDisplayMetrics()),
+                (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP,
+                        imgMarginBottom, res.getDisplayMetrics()));
+        mTileLayoutSpecs.put(specKey, spec);
+        return spec;
+    }
+
+    private static TileLayoutViews getTileLayoutViews(ViewGroup viewGroup) {
+        TileLayoutViews views = mTileLayoutViews.get(viewGroup);
+        if (views != null) return views;
+
+        views = new TileLayoutViews();
+        views.textView = findTileTextView(viewGroup);
+
+        // adjust layout in case it's AOSP 4.3 tile
+        if (Build.VERSION.SDK_INT > 17 && mImgResId != 0 && mRssiImgResId != 0) {
+            View img = viewGroup.findViewById(mImgResId);
+            if (img != null) {
+                // basic tile
+                if (img.getLayoutParams() instanceof LinearLayout.LayoutParams) {
+                    views.imageView = img;
+                }
+            } else {
+                // RSSI special tile
+                img = viewGroup.findViewById(mRssiImgResId);
+                if (img != null && img.getParent() instanceof FrameLayout) {
+                    FrameLayout fl = (FrameLayout) img.getParent();
+                    if (fl.getLayoutParams() instanceof LinearLayout.LayoutParams) {
+                        views.imageView = fl;
+                    }
+                }
+            }
+        }
+
+        mTileLayoutViews.put(viewGroup, views);
+        return views;
+    }
+
+    private static void updateTileLayout(FrameLayout container, int orientation) {
+        if (container == null) return;
+
+        final Resources res = container.getResources();
+        final Context context = container.getContext();
+        if (mImgResId == -1) {
+            mImgResId = res.getIdentifier("image", "id", PACKAGE_NAME);
+            mRssiImgResId = res.getIdentifier("rssi_image", "id", PACKAGE_NAME);
+        }
+
+        final TileLayoutSpec spec = getTileLayoutSpec(res,
+                orientation == Configuration.ORIENTATION_PORTRAIT || !Utils.isPhoneUI(context));
+
+        final int tileCount = container.getChildCount();
         for(int i = 0; i < tileCount; i++) {
-            ViewGroup viewGroup = (ViewGroup) mContainerView.getChildAt(i);
+            ViewGroup viewGroup = (ViewGroup) container.getChildAt(i);
             if (viewGroup != null) {
-                TextView textView = findTileTextView(viewGroup);
-                if (textView != null) {
-                    textView.setTextSize(1, textSize);
-                    textView.setSingleLine(false);
-                    textView.setAllCaps(true);
+                final TileLayoutViews views = getTileLayoutViews(viewGroup);
+                if (views.appliedSpec == spec) continue;
+
+                if (views.textView != null) {
+                    views.textView.setTextSize(1, spec.textSize);
+                    views.textView.setSingleLine(false);
+                    views.textView.setAllCaps(true);
                 }
 
-                // adjust layout in case it's AOSP 4.3 tile
-                if (Build.VERSION.SDK_INT > 17 && imgResId != 0 && rssiImgResId != 0) {
-                    View img = viewGroup.findViewById(imgResId);
-                    if (img != null) {
-                        // basic tile
-                        if (img.getLayoutParams() instanceof LinearLayout.LayoutParams) {
-                            LinearLayout.LayoutParams lp = (LinearLayout.LayoutParams) img.getLayoutParams();
-                            lp.topMargin = imgMarginTop;
-                            lp.bottomMargin = imgMarginBottom;
-                            img.setLayoutParams(lp);
-                            img.requestLayout();
-                        }
-                    } else {
-                        // RSSI special tile
-                        img = viewGroup.findViewById(rssiImgResId);
-                        if (img != null && img.getParent() instanceof FrameLayout) {
-                            FrameLayout fl = (FrameLayout) img.getParent();
-                            if (fl.getLayoutParams() instanceof LinearLayout.LayoutParams) {
-                                LinearLayout.LayoutParams lp = (LinearLayout.LayoutParams) fl.getLayoutParams();
-                                lp.topMargin = imgMarginTop;
-                                lp.bottomMargin = imgMarginBottom;
-                                fl.setLayoutParams(lp);
-                                fl.requestLayout();
-                            }
-                        }
+                if (views.imageView != null) {
+                    LinearLayout.LayoutParams lp = 
+                            (LinearLayout.LayoutParams) views.imageView.getLayoutParams();
+                    if (lp.topMargin != spec.imgMarginTop || lp.bottomMargin != spec.imgMarginBottom) {
+                        lp.topMargin = spec.imgMarginTop;
+                        lp.bottomMargin = spec.imgMarginBottom;
+                        views.imageView.setLayoutParams(lp);
                     }
                 }
+
+                views.appliedSpec = spec;
             }
         }
     }
@@ -505,12 +706,59 @@ public class ModQuickSettings {
                         } else {
                             if (DEBUG) log("animateCollapsePanels: all notifications removed " +
                                     "but showing QuickSettings - do nothing");
+                            mCollapseSuppressed = true;
                             param.setResult(null);
                         }
                     }
                 }
+
+                @Override
+                protected void afterHookedMethod(final MethodHookParam param) throws Throwable {
+                    // let tiles release resources as soon as collapse starts
+                    if (!mCollapseSuppressed) {
+                        notifyTilesHidden();
+                    }
+                    mCollapseSuppressed = false;
+                }
             });
 
+            // let tile refresh scheduler know when notification panel becomes (in)visible
+            Set<XC_MethodHook.Unhook> panelHooks = new HashSet<XC_MethodHook.Unhook>();
+            Set<XC_MethodHook.Unhook> hooks = XposedBridge.hookAllMethods(phoneStatusBarClass,
+                    "makeExpandedVisible", new XC_MethodHook() {
+                @Override
+                protected void afterHookedMethod(final MethodHookParam param) throws Throwable {
+                    TileRefreshScheduler.setPanelVisible(true);
+                }
+            });
+            boolean panelTrackable = !hooks.isEmpty();
+            panelHooks.addAll(hooks);
+            hooks = XposedBridge.hookAllMethods(phoneStatusBarClass,
+                    "makeExpandedInvisible", new XC_MethodHook() {
+                @Override
+                protected void afterHookedMethod(final MethodHookParam param) throws Throwable {
+                    TileRefreshScheduler.setPanelVisible(false);
+                    notifyTilesHidden();
+                }
+            });
+            panelTrackable &= !hooks.isEmpty();
+            panelHooks.addAll(hooks);
+            if (!panelTrackable) {
+                // cannot track panel visibility so never defer tile refreshes
+                if (DEBUG) log("Panel visibility not trackable - tile refreshes won't be deferred");
+                for (XC_MethodHook.Unhook unhook : panelHooks) {
+                    unhook.unhook();
+                }
+                TileRefreshScheduler.setPanelVisible(true);
+            }
+
+            XposedBridge.hookAllMethods(phoneStatusBarClass, "flipToNotifications", new XC_MethodHook() {
+                @Override
+                protected void afterHookedMethod(final MethodHookParam param) throws Throwable {
+                    notifyTilesHidden();
+                }
+            });
+
             XposedHelpers.findAndHookMethod(mQuickSettingsTileViewClass, "setColumnSpan",
                     int.class, XC_MethodReplacement.DO_NOTHING);
         } catch (Throwable t) {
@@ -530,6 +778,11 @@ public class ModQuickSettings {
             mContainerView = (ViewGroup) XposedHelpers.getObjectField(param.thisObject, "mContainerView");
             mWifiManager = new WifiManagerWrapper(mContext);
 
+            final Resources gbRes = mGbContext.getResources();
+            for (Integer id : mCustomGbTileKeys) {
+                mTileKeys.add(gbRes.getResourceEntryName(id));
+            }
+
             IntentFilter intentFilter = new IntentFilter(GravityBoxSettings.ACTION_PREF_QUICKSETTINGS_CHANGED);
             intentFilter.addAction(GravityBoxSettings.ACTION_PREF_QUICKAPP_CHANGED);
             intentFilter.addAction(GravityBoxSettings.ACTION_PREF_EXPANDED_DESKTOP_MODE_CHANGED);
@@ -560,93 +813,143 @@ public class ModQuickSettings {
             if (DEBUG) log("about to add tiles");
 
             try {
-                LayoutInflater inflater = (LayoutInflater) param.args[1];
+                mLayoutInflater = (LayoutInflater) param.args[1];
 
                 mTiles = new ArrayList<AQuickSettingsTile>();
+                mTileInstances = new HashMap<String, AQuickSettingsTile>();
+                mBroadcastSubReceivers = new ArrayList<BroadcastSubReceiver>();
+                mTileFactories = new LinkedHashMap<String, TileFactory>();
 
                 if (Utils.isMtkDevice()) {
-                    WifiTile wt = new WifiTile(mContext, mGbContext, mStatusBar, mPanelBar, mWifiManager);
-                    wt.setupQuickSettingsTile(mContainerView, inflater, mPrefs, mQuickSettings);
-                    mTiles.add(wt);
+                    registerTile(R.id.wifi_tileview, new TileFactory() {
+                        @Override
+                        public AQuickSettingsTile create() {
+                            return new WifiTile(mContext, mGbContext, mStatusBar, mPanelBar, mWifiManager);
+                        }
+                    });
                 }
 
                 if (Utils.hasNfc(mContext)) {
-                    NfcTile nfcTile = new NfcTile(mContext, mGbContext, mStatusBar, mPanelBar);
-                    nfcTile.setupQuickSettingsTile(mContainerView, inflater, mPrefs, mQuickSettings);
-                    mTiles.add(nfcTile);
+                    registerTile(R.id.nfc_tileview, new TileFactory() {
+                        @Override
+                        public AQuickSettingsTile create() {
+                            return new NfcTile(mContext, mGbContext, mStatusBar, mPanelBar);
+                        }
+                    });
                 }
 
                 if (Utils.hasGPS(mContext)) {
-                    GpsTile gpsTile = new GpsTile(mContext, mGbContext, mStatusBar, mPanelBar);
-                    gpsTile.setupQuickSettingsTile(mContainerView, inflater, mPrefs, mQuickSettings);
-                    mTiles.add(gpsTile);
+                    registerTile(R.id.gps_tileview, new TileFactory() {
+                        @Override
+                        public AQuickSettingsTile create() {
+                            return new GpsTile(mContext, mGbContext, mStatusBar, mPanelBar);
+                        }
+                    });
                 }
 
-                RingerModeTile rmTile = new RingerModeTile(mContext, mGbContext, mStatusBar, mPanelBar);
-                rmTile.setupQuickSettingsTile(mContainerView, inflater, mPrefs, mQuickSettings);
-                mTiles.add(rmTile);
+                registerTile(R.id.ringer_mode_tileview, new TileFactory() {
+                    @Override
+                    public AQuickSettingsTile create() {
+                        return new RingerModeTile(mContext, mGbContext, mStatusBar, mPanelBar);
+                    }
+                });
 
-                VolumeTile volTile = new VolumeTile(mContext, mGbContext, mStatusBar, mPanelBar);
-                volTile.setupQuickSettingsTile(mContainerView, inflater, mPrefs, mQuickSettings);
-                mTiles.add(volTile);
+                registerTile(R.id.volume_tileview, new TileFactory() {
+                    @Override
+                    public AQuickSettingsTile create() {
+                        return new VolumeTile(mContext, mGbContext, mStatusBar, mPanelBar);
+                    }
+                });
 
                 if (!Utils.isWifiOnly(mContext)) {
-                    NetworkModeTile nmTile = new NetworkModeTile(mContext, mGbContext, mStatusBar, mPanelBar);
-                    nmTile.setupQuickSettingsTile(mContainerView, inflater, mPrefs, mQuickSettings);
-                    mTiles.add(nmTile);
+                    registerTile(R.id.network_mode_tileview, new TileFactory() {
+                        @Override
+                        public AQuickSettingsTile create() {
+                            return new NetworkModeTile(mContext, mGbContext, mStatusBar, mPanelBar);
+                        }
+                    });
                 }
 
-                SyncTile syncTile = new SyncTile(mContext, mGbContext, mStatusBar, mPanelBar);
-                syncTile.setupQuickSettingsTile(mContainerView, inflater, mPrefs, mQuickSettings);
-                mTiles.add(syncTile);
+                registerTile(R.id.sync_tileview, new TileFactory() {
+                    @Override
+                    public AQuickSettingsTile create() {
+                        return new SyncTile(mContext, mGbContext, mStatusBar, mPanelBar);
+                    }
+                });
 
-                WifiApTile wifiApTile = new WifiApTile(mContext, mGbContext, mStatusBar, mPanelBar, mWifiManager);
-                wifiApTile.setupQuickSettingsTile(mContainerView, inflater, mPrefs, mQuickSettings);
-                mTiles.add(wifiApTile);
+                registerTile(R.id.wifi_ap_tileview, new TileFactory() {
+                    @Override
+                    public AQuickSettingsTile create() {
+                        return new WifiApTile(mContext, mGbContext, mStatusBar, mPanelBar, mWifiManager);
+                    }
+                });
 
                 if (Utils.hasFlash(mContext)) {
-                    TorchTile torchTile = new TorchTile(mContext, mGbContext, mStatusBar, mPanelBar);
-                    torchTile.setupQuickSettingsTile(mContainerView, inflater, mPrefs, mQuickSettings);
-                    mTiles.add(torchTile);
+                    registerTile(R.id.torch_tileview, new TileFactory() {
+                        @Override
+                        public AQuickSettingsTile create() {
+                            return new TorchTile(mContext, mGbContext, mStatusBar, mPanelBar);
+                        }
+                    });
                 }
 
-                SleepTile sleepTile = new SleepTile(mContext, mGbContext, mStatusBar, mPanelBar);
-                sleepTile.setupQuickSettingsTile(mContainerView, inflater, mPrefs, mQuickSettings);
-                mTiles.add(sleepTile);
-
-                StayAwakeTile swTile = new StayAwakeTile(mContext, mGbContext, mStatusBar, mPanelBar);
-                swTile.setupQuickSettingsTile(mContainerView, inflater, mPrefs, mQuickSettings);
-                mTiles.add(swTile);
+                registerTile(R.id.sleep_tileview, new TileFactory() {
+                    @Override
+                    public AQuickSettingsTile create() {
+                        return new SleepTile(mContext, mGbContext, mStatusBar, mPanelBar);
+                    }
+                });
 
-                QuickRecordTile qrTile = new QuickRecordTile(mContext, mGbContext, mStatusBar, mPanelBar);
-                qrTile.setupQuickSettingsTile(mContainerView, inflater, mPrefs, mQuickSettings);
-                mTiles.add(qrTile);
+                registerTile(R.id.stay_awake_tileview, new TileFactory() {
+                    @Override
+                    public AQuickSettingsTile create() {
+                        return new StayAwakeTile(mContext, mGbContext, mStatusBar, mPanelBar);
+                    }
+                });
 
-                QuickAppTile qAppTile = new QuickAppTile(mContext, mGbContext, mStatusBar, mPanelBar);
-                qAppTile.setupQuickSettingsTile(mContainerView, inflater, mPrefs, mQuickSettings);
-                mTiles.add(qAppTile);
+                registerTile(R.id.quickrecord_tileview, new TileFactory() {
+                    @Override
+                    public AQuickSettingsTile create() {
+                        return new QuickRecordTile(mContext, mGbContext, mStatusBar, mPanelBar);
+                    }
+                });
 
-                ExpandedDesktopTile edTile = new ExpandedDesktopTile(mContext, mGbContext, mStatusBar, mPanelBar);
-                edTile.setupQuickSettingsTile(mContainerView, inflater, mPrefs, mQuickSettings);
-                mTiles.add(edTile);
+                registerTile(R.id.quickapp_tileview, new TileFactory() {
+                    @Override
+                    public AQuickSettingsTile create() {
+                        return new QuickAppTile(mContext, mGbContext, mStatusBar, mPanelBar);
+                    }
+                });
 
-                ScreenshotTile ssTile = new ScreenshotTile(mContext, mGbContext, mStatusBar, mPanelBar);
-                ssTile.setupQuickSettingsTile(mContainerView, inflater, mPrefs, mQuickSettings);
-                mTiles.add(ssTile);
+                registerTile(R.id.expanded_tileview, new TileFactory() {
+                    @Override
+                    public AQuickSettingsTile create() {
+                        return new ExpandedDesktopTile(mContext, mGbContext, mStatusBar, mPanelBar);
+                    }
+                });
 
-                GravityBoxTile gbTile = new GravityBoxTile(mContext, mGbContext, mStatusBar, mPanelBar);
-                gbTile.setupQuickSettingsTile(mContainerView, inflater, mPrefs, mQuickSettings);
-                mTiles.add(gbTile);
+                registerTile(R.id.screenshot_tileview, new TileFactory() {
+                    @Override
+                    public AQuickSettingsTile create() {
+                        return new ScreenshotTile(mContext, mGbContext, mStatusBar, mPanelBar);
+                    }
+                });
 
-                CameraTile camTile = new CameraTile(mContext, mGbContext, mStatusBar, mPanelBar);
-                camTile.setupQuickSettingsTile(mContainerView, inflater, mPrefs, mQuickSettings);
-                mTiles.add(camTile);
+                registerTile(R.id.gravitybox_tileview, new TileFactory() {
+                    @Override
+                    public AQuickSettingsTile create() {
+                        return new GravityBoxTile(mContext, mGbContext, mStatusBar, mPanelBar);
+                    }
+                });
 
-                mBroadcastSubReceivers = new ArrayList<BroadcastSubReceiver>();
-                for (AQuickSettingsTile t : mTiles) {
-                    mBroadcastSubReceivers.add(t);
-                }
+                registerTile(R.id.camera_tileview, new TileFactory() {
+                    @Override
+                    public AQuickSettingsTile create() {
+                        return new CameraTile(mContext, mGbContext, mStatusBar, mPanelBar);
+                    }
+                });
 
+                updateTileInstances();
                 updateTileOrderAndVisibility();
             } catch (Throwable t) {
                 XposedBridge.log(t);
@@ -818,6 +1121,14 @@ public class ModQuickSettings {
         return false;
     }
 
+    private static void notifyTilesHidden() {
+        if (mTiles == null) return;
+
+        for (AQuickSettingsTile t : mTiles) {
+            t.onTilesHidden();
+        }
+    }
+
     private static void switchToNotifications() {
         if (mStatusBar == null) return;
         try {
@@ -838,6 +1149,7 @@ public class ModQuickSettings {
             mNotificationButton.setVisibility(View.GONE);
             mNotificationButton.setAlpha(0f);
             mClearButton.setVisibility(View.VISIBLE);
+            notifyTilesHidden();
         } catch (Throwable t) {
             XposedBridge.log(t);
         }
@@ -1036,7 +1348,7 @@ public class ModQuickSettings {
                     CLASS_QS_TILEVIEW, CLASS_QS_MODEL_RCB, new XC_MethodHook() {
                 @Override
                 protected void afterHookedMethod(final MethodHookParam param) throws Throwable {
-                    ((View)param.args[0]).setTag(mAospTileTags.get("user_textview"));
+                    ((View)param.args[0]).setTag("user_textview");
                 }
             });
         } catch (Throwable t) {
@@ -1048,7 +1360,7 @@ public class ModQuickSettings {
                     CLASS_QS_TILEVIEW, CLASS_QS_MODEL_RCB, new XC_MethodHook() {
                 @Override
                 protected void afterHookedMethod(final MethodHookParam param) throws Throwable {
-                    ((View)param.args[0]).setTag(mAospTileTags.get("brightness_textview"));
+                    ((View)param.args[0]).setTag("brightness_textview");
                 }
             });
         } catch (Throwable t) {
@@ -1060,7 +1372,7 @@ public class ModQuickSettings {
                     CLASS_QS_TILEVIEW, CLASS_QS_MODEL_RCB, new XC_MethodHook() {
                 @Override
                 protected void afterHookedMethod(final MethodHookParam param) throws Throwable {
-                    ((View)param.args[0]).setTag(mAospTileTags.get("settings"));
+                    ((View)param.args[0]).setTag("settings");
                 }
             });
         } catch (Throwable t) {
@@ -1073,7 +1385,7 @@ public class ModQuickSettings {
                 @Override
                 protected void afterHookedMethod(final MethodHookParam param) throws Throwable {
                     final View tile = (View) param.args[0];
-                    tile.setTag(mAospTileTags.get("wifi_textview"));
+                    tile.setTag("wifi_textview");
                     if (mOverrideTileKeys.contains("wifi_textview")) {
                         tile.setOnClickListener(new View.OnClickListener() {
                             @Override
@@ -1106,7 +1418,7 @@ public class ModQuickSettings {
                 @Override
                 protected void afterHookedMethod(final MethodHookParam param) throws Throwable {
                     final View tile = (View) param.args[0];
-                    tile.setTag(mAospTileTags.get("rssi_textview"));
+                    tile.setTag("rssi_textview");
                     if (mOverrideTileKeys.contains("rssi_textview")) {
                         tile.setOnClickListener(new View.OnClickListener() {
                             @Override
@@ -1173,7 +1485,7 @@ public class ModQuickSettings {
                 @Override
                 protected void afterHookedMethod(final MethodHookParam param) throws Throwable {
                     final View tile = (View) param.args[0];
-                    tile.setTag(mAospTileTags.get("auto_rotate_textview"));
+                    tile.setTag("auto_rotate_textview");
                     if (mOverrideTileKeys.contains("auto_rotate_textview")) {
                         tile.setOnClickListener(new View.OnClickListener() {
                             @Override
@@ -1200,7 +1512,7 @@ public class ModQuickSettings {
                     CLASS_QS_TILEVIEW, CLASS_QS_MODEL_RCB, new XC_MethodHook() {
                 @Override
                 protected void afterHookedMethod(final MethodHookParam param) throws Throwable {
-                    ((View)param.args[0]).setTag(mAospTileTags.get("battery_textview"));
+                    ((View)param.args[0]).setTag("battery_textview");
                 }
             });
         } catch (Throwable t) {
@@ -1213,7 +1525,7 @@ public class ModQuickSettings {
                 @Override
                 protected void afterHookedMethod(final MethodHookParam param) throws Throwable {
                     final View tile = (View) param.args[0];
-                    tile.setTag(mAospTileTags.get("airplane_mode_textview"));
+                    tile.setTag("airplane_mode_textview");
                     if (mOverrideTileKeys.contains("airplane_mode_textview")) {
                         tile.setOnClickListener(new View.OnClickListener() {
                             @SuppressLint("NewApi")
@@ -1250,7 +1562,7 @@ public class ModQuickSettings {
                 @Override
                 protected void afterHookedMethod(final MethodHookParam param) throws Throwable {
                     final View tile = (View) param.args[0];
-                    tile.setTag(mAospTileTags.get("bluetooth_textview"));
+                    tile.setTag("bluetooth_textview");
                     if (mOverrideTileKeys.contains("bluetooth_textview")) {
                         tile.setOnClickListener(new View.OnClickListener() {
                             @Override
@@ -1288,7 +1600,7 @@ public class ModQuickSettings {
                 @Override
                 protected void afterHookedMethod(final MethodHookParam param) throws Throwable {
                     final View tile = (View) param.args[0];
-                    tile.setTag(mAospTileTags.get("gps_textview"));
+                    tile.setTag("gps_textview");
                     if (mOverrideTileKeys.contains("gps_textview")) {
                         tile.setOnClickListener(new View.OnClickListener() {
                             @Override
@@ -1322,4 +1634,4 @@ public class ModQuickSettings {
             XposedBridge.log(t);
         }
     }
-}
+}
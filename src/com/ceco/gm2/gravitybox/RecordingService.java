@@ -16,6 +16,7 @@
 package com.ceco.gm2.gravitybox;
 
 import java.io.File;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
@@ -23,11 +24,14 @@ import java.util.Locale;
 import android.app.Notification;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.media.MediaRecorder;
 import android.os.Environment;
+import android.os.Handler;
 import android.os.IBinder;
 import android.util.Log;
 
@@ -40,13 +44,72 @@ public class RecordingService extends Service {
     public static final String EXTRA_RECORDING_STATUS = "recordingStatus";
     public static final String EXTRA_STATUS_MESSAGE = "statusMessage";
     public static final String EXTRA_AUDIO_FILENAME = "audioFileName";
+    public static final String EXTRA_BIT_RATE = "bitRate";
 
     public static final int RECORDING_STATUS_IDLE = 0;
     public static final int RECORDING_STATUS_STARTED = 1;
     public static final int RECORDING_STATUS_STOPPED = 2;
     public static final int RECORDING_STATUS_ERROR = -1;
 
+    public static final String DEFAULT_ENCODING_PROFILE = "aac_128";
+
+    public static class EncodingProfile {
+        public final int outputFormat;
+        public final int audioEncoder;
+        public final int sampleRate;
+        public final int bitRate;
+        public final String fileExtension;
+        // used when recording via MediaCodec into raw stream
+        public final String mimeType;
+        public final String streamExtension;
+        public final byte[] streamHeader;
+
+        private EncodingProfile(int outputFormat, int audioEncoder, int sampleRate, int bitRate,
+                String fileExtension, String mimeType, String streamExtension, String streamHeader) {
+            this.outputFormat = outputFormat;
+            this.audioEncoder = audioEncoder;
+            this.sampleRate = sampleRate;
+            this.bitRate = bitRate;
+            this.fileExtension = fileExtension;
+            this.mimeType = mimeType;
+            this.streamExtension = streamExtension;
+            this.streamHeader = streamHeader == null ? null : streamHeader.getBytes();
+        }
+
+        public boolean isAac() {
+            return audioEncoder == MediaRecorder.AudioEncoder.AAC;
+        }
+
+        public static EncodingProfile fromKey(String key) {
+            if ("aac_64".equals(key)) {
+                return aac(64000);
+            } else if ("aac_192".equals(key)) {
+                return aac(192000);
+            } else if ("amr_wb".equals(key)) {
+                return new EncodingProfile(MediaRecorder.OutputFormat.THREE_GPP,
+                        MediaRecorder.AudioEncoder.AMR_WB, 16000, 23850,
+                        "3gp", "audio/amr-wb", "awb", "#!AMR-WB\n");
+            } else if ("amr_nb".equals(key)) {
+                return new EncodingProfile(MediaRecorder.OutputFormat.THREE_GPP,
+                        MediaRecorder.AudioEncoder.AMR_NB, 8000, 12200,
+                        "3gp", "audio/3gpp", "amr", "#!AMR\n");
+            } else {
+                return aac(128000);
+            }
+        }
+
+        private static EncodingProfile aac(int bitRate) {
+            return new EncodingProfile(MediaRecorder.OutputFormat.MPEG_4,
+                    MediaRecorder.AudioEncoder.AAC, 44100, bitRate,
+                    "m4a", "audio/mp4a-latm", "aac", null);
+        }
+    }
+
     private MediaRecorder mRecorder;
+    private SilenceSkippingRecorder mSilenceSkippingRecorder;
+    private String mAudioFileName;
+    private EncodingProfile mProfile;
+    private Handler mHandler;
     private int mRecordingStatus = RECORDING_STATUS_IDLE;
     private Notification mRecordingNotif;
     private PendingIntent mPendingIntent;
@@ -61,6 +124,7 @@ public class RecordingService extends Service {
         super.onCreate();
 
         mRecordingStatus = RECORDING_STATUS_IDLE;
+        mHandler = new Handler();
 
         Notification.Builder builder = new Notification.Builder(this);
         builder.setContentTitle(getString(R.string.quick_settings_qr_recording));
@@ -95,6 +159,7 @@ public class RecordingService extends Service {
         @Override
         public void onError(MediaRecorder mr, int what, int extra) {
             mRecordingStatus = RECORDING_STATUS_ERROR;
+            releaseRecorder();
 
             String statusMessage = "Error in MediaRecorder while recording: " + what + "; " + extra;
             Intent i = new Intent(ACTION_RECORDING_STATUS_CHANGED);
@@ -105,7 +170,31 @@ public class RecordingService extends Service {
         }
     };
 
-    private String prepareOutputFile() {
+    private SilenceSkippingRecorder.OnFinishedListener mSilenceSkippingRecorderListener = 
+            new SilenceSkippingRecorder.OnFinishedListener() {
+        @Override
+        public void onFinished(final String error) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onSilenceSkippingRecorderFinished(error);
+                }
+            });
+        }
+    };
+
+    private void onSilenceSkippingRecorderFinished(String error) {
+        mSilenceSkippingRecorder = null;
+        mRecordingStatus = error == null ? RECORDING_STATUS_STOPPED : RECORDING_STATUS_ERROR;
+
+        Intent i = new Intent(ACTION_RECORDING_STATUS_CHANGED);
+        i.putExtra(EXTRA_RECORDING_STATUS, mRecordingStatus);
+        i.putExtra(EXTRA_STATUS_MESSAGE, error == null ? "" : error);
+        sendBroadcast(i);
+        stopForeground(true);
+    }
+
+    private String prepareOutputFile(String extension) {
         File outputDir = new File(Environment.getExternalStorageDirectory() + "/AudioRecordings");
         if (!outputDir.exists()) {
             if (!outputDir.mkdir()) {
@@ -114,33 +203,57 @@ public class RecordingService extends Service {
             }
         }
         String fileName = "AUDIO_" + new SimpleDateFormat(
-                "yyyyMMdd_HHmmss", Locale.US).format(new Date()) + ".3gp";
+                "yyyyMMdd_HHmmss", Locale.US).format(new Date()) + "." + extension;
         return (outputDir.getAbsolutePath() + "/" + fileName);
     }
 
     private void startRecording() {
+        if (mRecorder != null || mSilenceSkippingRecorder != null) return;
+
+        final SharedPreferences prefs = getSharedPreferences(
+                getPackageName() + "_preferences", Context.MODE_WORLD_READABLE);
+        mProfile = EncodingProfile.fromKey(prefs.getString(
+                GravityBoxSettings.PREF_KEY_QUICKRECORD_QUALITY, DEFAULT_ENCODING_PROFILE));
+        final boolean skipSilence = prefs.getBoolean(
+                GravityBoxSettings.PREF_KEY_QUICKRECORD_SKIP_SILENCE, false);
+
         String statusMessage = "";
-        String audioFileName = prepareOutputFile();
+        mAudioFileName = prepareOutputFile(skipSilence ? 
+                mProfile.streamExtension : mProfile.fileExtension);
         try {
-            mRecorder = new MediaRecorder();
-            mRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
-            mRecorder.setOutputFormat(MediaRecorder.OutputFormat.THREE_GPP);
-            mRecorder.setOutputFile(audioFileName);
-            mRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.AMR_NB);
-            mRecorder.setOnErrorListener(mOnErrorListener);
-            mRecorder.prepare();
-            mRecorder.start();
+            if (mAudioFileName == null) {
+                throw new IOException("Cannot prepare output file");
+            }
+            if (skipSilence) {
+                mSilenceSkippingRecorder = new SilenceSkippingRecorder(mProfile, mAudioFileName,
+                        mSilenceSkippingRecorderListener);
+                mSilenceSkippingRecorder.start();
+            } else {
+                mRecorder = new MediaRecorder();
+                mRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
+                mRecorder.setOutputFormat(mProfile.outputFormat);
+                mRecorder.setOutputFile(mAudioFileName);
+                mRecorder.setAudioEncoder(mProfile.audioEncoder);
+                mRecorder.setAudioSamplingRate(mProfile.sampleRate);
+                mRecorder.setAudioEncodingBitRate(mProfile.bitRate);
+                mRecorder.setAudioChannels(1);
+                mRecorder.setOnErrorListener(mOnErrorListener);
+                mRecorder.prepare();
+                mRecorder.start();
+            }
             mRecordingStatus = RECORDING_STATUS_STARTED;
             startForeground(1, mRecordingNotif);
         } catch (Exception e) {
             e.printStackTrace();
+            releaseRecorder();
             mRecordingStatus = RECORDING_STATUS_ERROR;
             statusMessage = e.getMessage();
         } finally {
             Intent i = new Intent(ACTION_RECORDING_STATUS_CHANGED);
             i.putExtra(EXTRA_RECORDING_STATUS, mRecordingStatus);
             if (mRecordingStatus == RECORDING_STATUS_STARTED) {
-                i.putExtra(EXTRA_AUDIO_FILENAME, audioFileName);
+                i.putExtra(EXTRA_AUDIO_FILENAME, mAudioFileName);
+                i.putExtra(EXTRA_BIT_RATE, mProfile.bitRate);
             }
             i.putExtra(EXTRA_STATUS_MESSAGE, statusMessage); 
             sendBroadcast(i);
@@ -148,19 +261,23 @@ public class RecordingService extends Service {
     }
 
     private void stopRecording() {
+        if (mSilenceSkippingRecorder != null) {
+            // status is reported once recorder thread has written out remaining audio
+            mSilenceSkippingRecorder.stopRecording();
+            return;
+        }
         if (mRecorder == null) return;
 
         String statusMessage = "";
         try {
             mRecorder.stop();
-            mRecorder.release();
-            mRecorder = null;
             mRecordingStatus = RECORDING_STATUS_STOPPED;
         } catch (Exception e) {
             e.printStackTrace();
             mRecordingStatus = RECORDING_STATUS_ERROR;
             statusMessage = e.getMessage();
         } finally {
+            releaseRecorder();
             Intent i = new Intent(ACTION_RECORDING_STATUS_CHANGED);
             i.putExtra(EXTRA_RECORDING_STATUS, mRecordingStatus);
             i.putExtra(EXTRA_STATUS_MESSAGE, statusMessage);
@@ -169,6 +286,16 @@ public class RecordingService extends Service {
         }
     }
 
+    private void releaseRecorder() {
+        if (mRecorder != null) {
+            mRecorder.release();
+            mRecorder = null;
+        }
+        if (mSilenceSkippingRecorder != null) {
+            mSilenceSkippingRecorder.stopRecording();
+        }
+    }
+
     @Override
     public void onDestroy() {
         stopRecording();
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2013 Peter Gregus for GravityBox Project (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.gm2.gravitybox;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import com.ceco.gm2.gravitybox.RecordingService.EncodingProfile;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaRecorder;
+import android.os.Process;
+import android.util.Log;
+
+// Records microphone via AudioRecord and encodes with MediaCodec so that longer pauses
+// can be left out of the recording. MediaRecorder offers no way to do that.
+// Output is a raw stream (ADTS for AAC, AMR file format for AMR) written through a buffer.
+public class SilenceSkippingRecorder extends Thread {
+    private static final String TAG = "GB:SilenceSkippingRecorder";
+    private static final boolean DEBUG = false;
+
+    // peak amplitude below which audio is considered silent (about -32 dBFS)
+    private static final int SILENCE_THRESHOLD = 800;
+    // silence shorter than this is kept so speech does not sound chopped
+    private static final int SILENCE_HANGOVER_MS = 1000;
+    private static final int READ_SAMPLES = 2048;
+    private static final long CODEC_TIMEOUT_US = 10000;
+    private static final int MAX_EOS_WAIT_RETRIES = 100;
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    private static final int[] ADTS_SAMPLE_RATES = {
+        96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350
+    };
+
+    public interface OnFinishedListener {
+        // Called on recorder thread; error is null when recording finished fine
+        void onFinished(String error);
+    }
+
+    private final EncodingProfile mProfile;
+    private final String mPath;
+    private final OnFinishedListener mListener;
+    private volatile boolean mStopRequested;
+
+    private MediaCodec mCodec;
+    private ByteBuffer[] mOutputBuffers;
+    private MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    private OutputStream mOutput;
+    private byte[] mFrameBuffer = new byte[4096];
+    private byte[] mAdtsHeader = new byte[7];
+    private long mSkippedSamples;
+
+    public SilenceSkippingRecorder(EncodingProfile profile, String path, OnFinishedListener listener) {
+        super("GbSilenceSkippingRecorder");
+        mProfile = profile;
+        mPath = path;
+        mListener = listener;
+    }
+
+    public void stopRecording() {
+        mStopRequested = true;
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+
+        String error = null;
+        AudioRecord record = null;
+        try {
+            final int sampleRate = mProfile.sampleRate;
+            final int minBufferSize = AudioRecord.getMinBufferSize(sampleRate,
+                    AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+            record = new AudioRecord(MediaRecorder.AudioSource.MIC, sampleRate,
+                    AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT,
+                    Math.max(minBufferSize, READ_SAMPLES * 2) * 2);
+            if (record.getState() != AudioRecord.STATE_INITIALIZED) {
+                throw new IllegalStateException("AudioRecord initialization failed");
+            }
+
+            MediaFormat format = MediaFormat.createAudioFormat(mProfile.mimeType, sampleRate, 1);
+            format.setInteger(MediaFormat.KEY_BIT_RATE, mProfile.bitRate);
+            if (mProfile.isAac()) {
+                format.setInteger(MediaFormat.KEY_AAC_PROFILE,
+                        MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+            }
+            mCodec = MediaCodec.createEncoderByType(mProfile.mimeType);
+            mCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mCodec.start();
+            final ByteBuffer[] inputBuffers = mCodec.getInputBuffers();
+            mOutputBuffers = mCodec.getOutputBuffers();
+
+            mOutput = new BufferedOutputStream(new FileOutputStream(mPath), OUTPUT_BUFFER_SIZE);
+            if (mProfile.streamHeader != null) {
+                mOutput.write(mProfile.streamHeader, 0, mProfile.streamHeader.length);
+            }
+
+            final byte[] pcm = new byte[READ_SAMPLES * 2];
+            final long hangoverSamples = (long) sampleRate * SILENCE_HANGOVER_MS / 1000;
+            long silentSamples = 0;
+            long encodedSamples = 0;
+
+            record.startRecording();
+            while (!mStopRequested) {
+                final int read = record.read(pcm, 0, pcm.length);
+                if (read < 0) {
+                    throw new IllegalStateException("AudioRecord read failed: " + read);
+                }
+
+                final int samples = read / 2;
+                if (isSilent(pcm, read)) {
+                    silentSamples += samples;
+                } else {
+                    silentSamples = 0;
+                }
+                if (silentSamples > hangoverSamples) {
+                    mSkippedSamples += samples;
+                    drainEncoder(false);
+                    continue;
+                }
+
+                int offset = 0;
+                while (offset < read) {
+                    final int index = mCodec.dequeueInputBuffer(CODEC_TIMEOUT_US);
+                    if (index < 0) {
+                        drainEncoder(false);
+                        continue;
+                    }
+                    final ByteBuffer input = inputBuffers[index];
+                    input.clear();
+                    final int count = Math.min(read - offset, input.remaining());
+                    input.put(pcm, offset, count);
+                    final long ptsUs = encodedSamples * 1000000 / sampleRate;
+                    mCodec.queueInputBuffer(index, 0, count, ptsUs, 0);
+                    encodedSamples += count / 2;
+                    offset += count;
+                }
+                drainEncoder(false);
+            }
+
+            // Signal end of stream and write out what is left in encoder
+            int index;
+            while ((index = mCodec.dequeueInputBuffer(CODEC_TIMEOUT_US)) < 0) {
+                drainEncoder(false);
+            }
+            mCodec.queueInputBuffer(index, 0, 0, encodedSamples * 1000000 / sampleRate,
+                    MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            drainEncoder(true);
+
+            if (DEBUG) Log.d(TAG, "Recording finished: encoded " + (encodedSamples / sampleRate) +
+                    "s, skipped " + (mSkippedSamples / sampleRate) + "s of silence");
+        } catch (Throwable t) {
+            Log.e(TAG, "Recording failed", t);
+            error = t.getMessage() != null ? t.getMessage() : t.toString();
+        } finally {
+            if (record != null) {
+                try {
+                    if (record.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING) {
+                        record.stop();
+                    }
+                } catch (Throwable t) { }
+                record.release();
+            }
+            if (mCodec != null) {
+                try {
+                    mCodec.stop();
+                } catch (Throwable t) { }
+                mCodec.release();
+                mCodec = null;
+            }
+            if (mOutput != null) {
+                try {
+                    mOutput.close();
+                } catch (Throwable t) {
+                    Log.e(TAG, "Error closing output file", t);
+                    if (error == null) error = t.getMessage();
+                }
+                mOutput = null;
+            }
+        }
+
+        if (mListener != null) {
+            mListener.onFinished(error);
+        }
+    }
+
+    private static boolean isSilent(byte[] pcm, int length) {
+        for (int i = 0; i + 1 < length; i += 2) {
+            final int sample = (short) ((pcm[i] & 0xff) | (pcm[i + 1] << 8));
+            if (sample > SILENCE_THRESHOLD || sample < -SILENCE_THRESHOLD) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void drainEncoder(boolean endOfStream) throws Exception {
+        int retries = 0;
+        while (true) {
+            final int index = mCodec.dequeueOutputBuffer(mBufferInfo, endOfStream ? CODEC_TIMEOUT_US : 0);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                // don't wait forever for codec that never signals end of stream
+                if (!endOfStream || ++retries > MAX_EOS_WAIT_RETRIES) return;
+            } else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                mOutputBuffers = mCodec.getOutputBuffers();
+            } else if (index >= 0) {
+                final ByteBuffer output = mOutputBuffers[index];
+                final int size = mBufferInfo.size;
+                // codec config is not stored; ADTS headers carry stream parameters
+                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && size > 0) {
+                    if (mFrameBuffer.length < size) {
+                        mFrameBuffer = new byte[size];
+                    }
+                    output.position(mBufferInfo.offset);
+                    output.get(mFrameBuffer, 0, size);
+                    if (mProfile.isAac()) {
+                        writeAdtsHeader(size);
+                    }
+                    mOutput.write(mFrameBuffer, 0, size);
+                }
+                mCodec.releaseOutputBuffer(index, false);
+                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void writeAdtsHeader(int frameLength) throws Exception {
+        final int length = frameLength + mAdtsHeader.length;
+        int freqIndex = 4;
+        for (int i = 0; i < ADTS_SAMPLE_RATES.length; i++) {
+            if (ADTS_SAMPLE_RATES[i] == mProfile.sampleRate) {
+                freqIndex = i;
+                break;
+            }
+        }
+        final int profile = 2; // AAC LC
+        final int channels = 1;
+
+        mAdtsHeader[0] = (byte) 0xFF;
+        mAdtsHeader[1] = (byte) 0xF1;
+        mAdtsHeader[2] = (byte) (((profile - 1) << 6) + (freqIndex << 2) + (channels >> 2));
+        mAdtsHeader[3] = (byte) (((channels & 3) << 6) + (length >> 11));
+        mAdtsHeader[4] = (byte) ((length & 0x7FF) >> 3);
+        mAdtsHeader[5] = (byte) (((length & 7) << 5) + 0x1F);
+        mAdtsHeader[6] = (byte) 0xFC;
+        mOutput.write(mAdtsHeader, 0, mAdtsHeader.length);
+    }
+}
@@ -20,18 +20,23 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
+import android.os.SystemClock;
+import android.util.Log;
 
 import com.ceco.gm2.gravitybox.R;
 
 public class TorchService extends Service {
     private static final String TAG = "GB:TorchService";
+    private static final boolean DEBUG = false;
 
     public static final String ACTION_TOGGLE_TORCH = "gravitybox.intent.action.TOGGLE_TORCH";
     public static final String ACTION_TORCH_STATUS_CHANGED = "gravitybox.intent.action.TORCH_STATUS_CHANGED";
@@ -41,10 +46,19 @@ public class TorchService extends Service {
     public static final int TORCH_STATUS_ERROR = -1;
 
     private Camera mCamera;
+    private Camera.Parameters mCamParams;
+    private SurfaceTexture mSurfaceTexture;
     private int mTorchStatus = TORCH_STATUS_OFF;
     private Notification mTorchNotif;
     private PendingIntent mPendingIntent;
     private WakeLock mPartialWakeLock;
+    private Handler mHandler;
+
+    // torch-on latency statistics kept for the life of the process
+    private static int sColdCount;
+    private static long sColdTotalTime;
+    private static int sWarmCount;
+    private static long sWarmTotalTime;
 
     @Override
     public IBinder onBind(Intent intent) {
@@ -56,6 +70,7 @@ public class TorchService extends Service {
         super.onCreate();
 
         mTorchStatus = TORCH_STATUS_OFF;
+        mHandler = new Handler();
 
         Notification.Builder builder = new Notification.Builder(this);
         builder.setContentTitle(getString(R.string.quick_settings_torch_on));
@@ -85,21 +100,27 @@ public class TorchService extends Service {
         if (mTorchStatus != TORCH_STATUS_ON) {
             setTorchOn();
         } else {
-            setTorchOff();
+            setTorchOff(true);
         }
     }
 
     private synchronized void setTorchOn() {
+        final long startTime = SystemClock.uptimeMillis();
+        // camera kept open by warm mode only needs flash mode switched and preview started
+        final boolean warm = mCamera != null;
+        mHandler.removeCallbacks(mReleaseWarmCameraRunnable);
         try {
             if (mCamera == null) {
                 mCamera = Camera.open();
+                mCamParams = mCamera.getParameters();
+                mSurfaceTexture = new SurfaceTexture(0);
+                mCamera.setPreviewTexture(mSurfaceTexture);
             }
-            Camera.Parameters camParams = mCamera.getParameters();
-            camParams.setFlashMode(Camera.Parameters.FLASH_MODE_TORCH);
-            mCamera.setParameters(camParams);
-            mCamera.setPreviewTexture(new SurfaceTexture(0));
+            mCamParams.setFlashMode(Camera.Parameters.FLASH_MODE_TORCH);
+            mCamera.setParameters(mCamParams);
             mCamera.startPreview();
             mTorchStatus = TORCH_STATUS_ON;
+            recordLatency(warm, SystemClock.uptimeMillis() - startTime);
             startForeground(2, mTorchNotif);
 
             PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE); 
@@ -108,6 +129,7 @@ public class TorchService extends Service {
         } catch (Exception e) {
             mTorchStatus = TORCH_STATUS_ERROR;
             e.printStackTrace();
+            releaseCamera();
         } finally {
             Intent i = new Intent(ACTION_TORCH_STATUS_CHANGED);
             i.putExtra(EXTRA_TORCH_STATUS, mTorchStatus);
@@ -118,36 +140,101 @@ public class TorchService extends Service {
         }
     }
 
-    private synchronized void setTorchOff() {
+    private synchronized void setTorchOff(boolean keepWarm) {
+        boolean warm = false;
         try {
             if (mPartialWakeLock != null && mPartialWakeLock.isHeld()) {
                 mPartialWakeLock.release();
                 mPartialWakeLock = null;
             }
             if (mCamera != null) {
-                Camera.Parameters camParams = mCamera.getParameters();
-                camParams.setFlashMode(Camera.Parameters.FLASH_MODE_OFF);
-                mCamera.setParameters(camParams);
+                mCamParams.setFlashMode(Camera.Parameters.FLASH_MODE_OFF);
+                mCamera.setParameters(mCamParams);
                 mCamera.stopPreview();
-                mCamera.release();
-                mCamera = null;
+
+                // keep camera open for a while so torch can be turned on again quickly
+                final int warmTimeout = keepWarm ? getWarmTimeout() : 0;
+                if (warmTimeout > 0) {
+                    warm = true;
+                    mHandler.removeCallbacks(mReleaseWarmCameraRunnable);
+                    mHandler.postDelayed(mReleaseWarmCameraRunnable, warmTimeout);
+                } else {
+                    releaseCamera();
+                }
             }
             mTorchStatus = TORCH_STATUS_OFF;
         } catch (Exception e) {
             mTorchStatus = TORCH_STATUS_ERROR;
             e.printStackTrace();
+            releaseCamera();
         } finally {
             Intent i = new Intent(ACTION_TORCH_STATUS_CHANGED);
             i.putExtra(EXTRA_TORCH_STATUS, mTorchStatus);
             sendBroadcast(i);
             stopForeground(true);
-            stopSelf();
+            if (!warm) {
+                stopSelf();
+            }
+        }
+    }
+
+    private Runnable mReleaseWarmCameraRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (TorchService.this) {
+                if (mTorchStatus == TORCH_STATUS_ON) return;
+
+                if (DEBUG) Log.d(TAG, "Warm mode idle timeout: releasing camera");
+                releaseCamera();
+                stopSelf();
+            }
+        }
+    };
+
+    private void releaseCamera() {
+        mHandler.removeCallbacks(mReleaseWarmCameraRunnable);
+        if (mCamera != null) {
+            try {
+                mCamera.release();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            mCamera = null;
+        }
+        mCamParams = null;
+        if (mSurfaceTexture != null) {
+            mSurfaceTexture.release();
+            mSurfaceTexture = null;
+        }
+    }
+
+    private int getWarmTimeout() {
+        final SharedPreferences prefs = getSharedPreferences(
+                getPackageName() + "_preferences", Context.MODE_WORLD_READABLE);
+        try {
+            return Integer.valueOf(prefs.getString(
+                    GravityBoxSettings.PREF_KEY_TORCH_WARM_TIMEOUT, "0")) * 1000;
+        } catch (NumberFormatException nfe) {
+            return 0;
+        }
+    }
+
+    private static void recordLatency(boolean warm, long latency) {
+        if (warm) {
+            sWarmCount++;
+            sWarmTotalTime += latency;
+        } else {
+            sColdCount++;
+            sColdTotalTime += latency;
         }
+        if (DEBUG) Log.d(TAG, "Torch on in " + latency + "ms (" + (warm ? "warm" : "cold") + "); " +
+                "avg cold=" + (sColdCount > 0 ? sColdTotalTime / sColdCount : 0) + "ms (" + sColdCount + "), " +
+                "avg warm=" + (sWarmCount > 0 ? sWarmTotalTime / sWarmCount : 0) + "ms (" + sWarmCount + ")");
     }
 
     @Override
     public void onDestroy() {
-        setTorchOff();
+        setTorchOff(false);
         super.onDestroy();
     }
 }
\ No newline at end of file
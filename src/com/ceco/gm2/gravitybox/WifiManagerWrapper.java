@@ -71,17 +71,19 @@ public class WifiManagerWrapper {
         this(context, null);
     }
 
+    // passing null removes current listener
     public void setWifiApStateChangeListener(WifiApStateChangeListener listener) {
-        if (listener == null) return;
-
         mApStateChangeListener = listener;
-        registerApStateChangeReceiver();
+        if (listener != null) {
+            registerApStateChangeReceiver();
+        } else {
+            unregisterApStateChangeReceiver();
+        }
     }
 
+    // passing null removes current listener
     public void setWifiStateChangeListener(WifiStateChangeListener listener) {
-        if (listener != null) {
-            mWifiStateChangeListener = listener;
-        }
+        mWifiStateChangeListener = listener;
     }
 
     private void registerApStateChangeReceiver() {
@@ -106,6 +108,14 @@ public class WifiManagerWrapper {
         mContext.registerReceiver(mApStateChangeReceiver, intentFilter);
     }
 
+    private void unregisterApStateChangeReceiver() {
+        if (mContext == null || mApStateChangeReceiver == null)
+            return;
+
+        mContext.unregisterReceiver(mApStateChangeReceiver);
+        mApStateChangeReceiver = null;
+    }
+
     public int getWifiState() {
         return mWifiManager.getWifiState();
     }
@@ -154,8 +164,9 @@ public class WifiManagerWrapper {
         return (getWifiApState() == WIFI_AP_STATE_ENABLED);
     }
 
+    // returns false if the request could not be passed to the system
     @SuppressLint("NewApi")
-    public void setWifiApEnabled(boolean enable) {
+    public boolean setWifiApEnabled(boolean enable) {
         try {
             final ContentResolver cr = mContext.getContentResolver();
 
@@ -195,8 +206,10 @@ public class WifiManagerWrapper {
                     }
                 }
             }
+            return true;
         } catch (Throwable t) {
             XposedBridge.log(t);
+            return false;
         }
     }
 }
\ No newline at end of file
@@ -269,9 +269,17 @@ public class PieController implements PieLayout.OnSnapListener, PieItem.PieOnCli
     private BroadcastReceiver mBatteryReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            mBatteryLevel = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, 0);
-            mBatteryStatus = intent.getIntExtra(BatteryManager.EXTRA_STATUS,
+            final int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, 0);
+            final int status = intent.getIntExtra(BatteryManager.EXTRA_STATUS,
                     BatteryManager.BATTERY_STATUS_UNKNOWN);
+            // battery broadcasts come often, skip those not changing what we display
+            if (level == mBatteryLevel && status == mBatteryStatus) return;
+
+            mBatteryLevel = level;
+            mBatteryStatus = status;
+            if (mSysInfo != null) {
+                mSysInfo.updateBatteryLevel();
+            }
         }
     };
 
@@ -279,6 +287,9 @@ public class PieController implements PieLayout.OnSnapListener, PieItem.PieOnCli
         @Override
         public void onServiceStateChanged(ServiceState serviceState) {
             mServiceState = serviceState;
+            if (mSysInfo != null) {
+                mSysInfo.updateNetworkState();
+            }
         }
     };
 
@@ -423,7 +434,7 @@ public class PieController implements PieLayout.OnSnapListener, PieItem.PieOnCli
 
             mPosition = position;
             Point center = new Point((int) event.getRawX(), (int) event.getRawY());
-            mPieContainer.activate(center, position);
+            mPieContainer.activate(center, position, event.getEventTime());
             mPieContainer.invalidate();
         }
     }
@@ -105,11 +105,15 @@ public class PieItem extends PieLayout.PieDrawable {
     }
 
     public void show(boolean show) {
+        final int oldFlags = flags;
         if (show) {
             flags |= PieLayout.PieDrawable.VISIBLE;
         } else {
             flags &= ~PieLayout.PieDrawable.VISIBLE;
         }
+        if (flags != oldFlags) {
+            mPieLayout.invalidateStaticLayer();
+        }
     }
 
     public void setSelected(boolean selected) {
@@ -123,7 +127,9 @@ public class PieItem extends PieLayout.PieDrawable {
 
     public void setAlpha(float alpha) {
         if (mView != null) {
+            if (mView.getAlpha() == alpha) return;
             mView.setAlpha(alpha);
+            mPieLayout.invalidateStaticLayer();
         }
     }
 
@@ -131,6 +137,7 @@ public class PieItem extends PieLayout.PieDrawable {
         if (mView instanceof ImageView) {
             ImageView imageView = (ImageView)mView;
             imageView.setImageDrawable(drawable);
+            mPieLayout.invalidateStaticLayer();
         }
     }
 
@@ -138,6 +145,7 @@ public class PieItem extends PieLayout.PieDrawable {
         mBackgroundPaint.setColor(colorInfo.bgColor);
         mSelectedPaint.setColor(colorInfo.selectedColor);
         mOutlinePaint.setColor(colorInfo.outlineColor);
+        mPieLayout.invalidateStaticLayer();
 
         if (mView instanceof ImageView) {
             ImageView imageView = (ImageView)mView;
@@ -192,6 +200,13 @@ public class PieItem extends PieLayout.PieDrawable {
         }
     }
 
+    // Area covered by this item without its outline; used to update it within cached static layer
+    /* package */ boolean getBounds(RectF out) {
+        if (mPath == null) return false;
+        mPath.computeBounds(out, true);
+        return true;
+    }
+
     @Override
     public PieItem interact(float alpha, int radius) {
         if (hit(alpha, radius)) {
@@ -20,10 +20,14 @@ import android.animation.ValueAnimator;
 import android.content.Context;
 import android.content.res.Configuration;
 import android.content.res.Resources;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Paint.Style;
 import android.graphics.Point;
+import android.graphics.PorterDuff;
+import android.graphics.RectF;
 import android.os.Looper;
 import android.os.SystemClock;
 import android.view.MotionEvent;
@@ -36,6 +40,7 @@ import com.ceco.gm2.gravitybox.pie.PieController.Position;
 import de.robv.android.xposed.XposedBridge;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -53,6 +58,10 @@ public class PieLayout extends FrameLayout implements View.OnTouchListener {
     /* DEBUG */
     private long mActivateStartDebug = 0;
 
+    private PieMetrics mMetrics = new PieMetrics();
+    private long mTriggerTime;
+    private long mSelectionTime;
+
     private static final int TIME_FADEIN = 600;
     private static final int TIME_FADEIN_DELAY = 1000;
 
@@ -65,6 +74,16 @@ public class PieLayout extends FrameLayout implements View.OnTouchListener {
     private Paint mSnapPaint = new Paint();
     private Paint mSnapActivePaint = new Paint();
 
+    // Static parts of the pie (item backgrounds, outlines and icons) are rendered once into
+    // this layer. Each frame then only blits it and draws the selected item and animated slices.
+    private Bitmap mStaticLayer;
+    private Canvas mStaticCanvas = new Canvas();
+    private int mStaticLayerRadius;
+    private Position mStaticLayerPosition;
+    private boolean mStaticLayerDirty = true;
+    private int mOutlinePadding;
+    private RectF mTmpRect = new RectF();
+
     private float mSnapRadius;
     private float mSnapRadiusSqr;
     private float mSnapThreshold;
@@ -181,6 +200,13 @@ public class PieLayout extends FrameLayout implements View.OnTouchListener {
     private List<PieDrawable> mDrawableCache = new ArrayList<PieDrawable>();
     private PieItem mActiveItem;
 
+    // Touch lookup built at layout time: items are found by quantised angle and radius band,
+    // so a move event needs neither sqrt nor atan2 and allocates nothing.
+    private static final int HIT_ANGLE_STEPS = 512;
+    private PieItem[] mHitTable = new PieItem[0];
+    private float[] mHitBandRadiusSqr = new float[0];
+    private int mHitBands;
+
     private class SnapPoint {
         private final int mX;
         private final int mY;
@@ -273,6 +299,10 @@ public class PieLayout extends FrameLayout implements View.OnTouchListener {
         mSnapThresholdSqr = mSnapThreshold * mSnapThreshold;
 
         mPadding = mGbResources.getDimensionPixelSize(R.dimen.pie_padding);
+
+        // wide enough to cover item outline including its anti-aliased edge
+        mOutlinePadding = mGbResources.getDimensionPixelSize(R.dimen.pie_outline) + 2;
+        mStaticLayerDirty = true;
     }
 
     private void getColors() {
@@ -308,18 +338,43 @@ public class PieLayout extends FrameLayout implements View.OnTouchListener {
         setOnTouchListener(this);
     }
 
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+
+        if (mStaticLayer != null) {
+            mStaticCanvas.setBitmap(null);
+            mStaticLayer.recycle();
+            mStaticLayer = null;
+        }
+        mStaticLayerDirty = true;
+    }
+
     @Override
     public void onDraw(Canvas canvas) {
         if (mActive) {
             if (DEBUG) {
                 log("onDraw: (" + canvas.getWidth() + "," + canvas.getHeight() + ")");
             }
+            final long frameStartNanos = System.nanoTime();
+            final long frameStart = SystemClock.uptimeMillis();
             if (mActivateStartDebug != 0) {
-                log("First draw within "
-                        + (SystemClock.uptimeMillis() - mActivateStartDebug) + " ms");
+                log("First draw within " + (frameStart - mActivateStartDebug) + " ms");
+            }
+            if (mTriggerTime != 0) {
+                mMetrics.firstFrameLatency.record(frameStart - mTriggerTime);
+                mTriggerTime = 0;
+            }
+            if (mSelectionTime != 0) {
+                mMetrics.selectionLatency.record(frameStart - mSelectionTime);
+                mSelectionTime = 0;
             }
-            mActivateStartDebug = 0;
 
+            boolean layerUpdated = false;
+            if (mStaticLayerDirty || mStaticLayer == null || mStaticLayerPosition != mPosition) {
+                updateStaticLayer();
+                layerUpdated = true;
+            }
 
             mBackgroundPaint.setAlpha((int) (mBackgroundFraction * mBackgroundTargetAlpha));
             canvas.drawPaint(mBackgroundPaint);
@@ -330,31 +385,120 @@ public class PieLayout extends FrameLayout implements View.OnTouchListener {
                 }
             }
 
+            if (mStaticLayer != null) {
+                canvas.drawBitmap(mStaticLayer, mCenter.x - mStaticLayerRadius,
+                        mCenter.y - mStaticLayerRadius, null);
+            }
+
             // At the pie's internal view the center is always at (0,0) compensate for that!
             int state = canvas.save();
-            switch (mPosition) {
-                case LEFT:
-                    canvas.rotate(90);
-                    canvas.translate(mCenter.y, -mCenter.x);
-                    break;
-                case BOTTOM:
-                    canvas.translate(mCenter.x, mCenter.y);
-                    break;
-                case RIGHT:
-                    canvas.rotate(270);
-                    canvas.translate(-mCenter.y, mCenter.x);
-                    break;
-                case TOP:
-                    canvas.rotate(180);
-                    canvas.translate(-mCenter.x, -mCenter.y);
-            }
+            canvas.translate(mCenter.x, mCenter.y);
+            canvas.rotate(getRotation(mPosition));
 
+            // only what changes from frame to frame is drawn directly
             for (PieDrawable drawable : mDrawableCache) {
-                drawable.draw(canvas, mPosition);
+                if (!isStatic(drawable)) {
+                    drawable.draw(canvas, mPosition);
+                }
+            }
+            if (mActiveItem != null) {
+                mActiveItem.draw(canvas, mPosition);
             }
 
             canvas.restoreToCount(state);
+
+            mMetrics.frameTime.record((System.nanoTime() - frameStartNanos) / 1000);
+            if (DEBUG) {
+                log("Frame drawn within " + (SystemClock.uptimeMillis() - frameStart) + " ms"
+                        + (layerUpdated ? " (static layer updated)" : ""));
+            }
+            mActivateStartDebug = 0;
+        }
+    }
+
+    private static float getRotation(Position position) {
+        switch (position) {
+            case LEFT: return 90;
+            case RIGHT: return 270;
+            case TOP: return 180;
+            default: return 0;
+        }
+    }
+
+    private static boolean isStatic(PieDrawable drawable) {
+        // slices listening to the background animation change their look on each frame
+        return !(drawable instanceof ValueAnimator.AnimatorUpdateListener);
+    }
+
+    /**
+     * Marks the cached static layer as outdated. It gets redrawn with the next frame.
+     * Must be called whenever the look of a static {@link PieDrawable} changes.
+     */
+    public void invalidateStaticLayer() {
+        mStaticLayerDirty = true;
+    }
+
+    private void updateStaticLayer() {
+        int outer = 0;
+        for (PieDrawable drawable : mDrawableCache) {
+            if (isStatic(drawable)) {
+                outer = Math.max(outer, drawable.mOuter);
+            }
+        }
+        final int radius = (int) Math.ceil(outer * mPieScale) + mOutlinePadding;
+
+        if (mStaticLayer == null || mStaticLayerRadius != radius) {
+            if (mStaticLayer != null) {
+                mStaticCanvas.setBitmap(null);
+                mStaticLayer.recycle();
+            }
+            mStaticLayer = Bitmap.createBitmap(2 * radius, 2 * radius, Bitmap.Config.ARGB_8888);
+            mStaticCanvas.setBitmap(mStaticLayer);
+            mStaticLayerRadius = radius;
+        } else {
+            mStaticLayer.eraseColor(Color.TRANSPARENT);
+        }
+
+        int state = mStaticCanvas.save();
+        mStaticCanvas.translate(radius, radius);
+        mStaticCanvas.rotate(getRotation(mPosition));
+        for (PieDrawable drawable : mDrawableCache) {
+            // selected item is drawn with each frame on top of the layer
+            if (isStatic(drawable) && drawable != mActiveItem) {
+                drawable.draw(mStaticCanvas, mPosition);
+            }
+        }
+        mStaticCanvas.restoreToCount(state);
+
+        mStaticLayerPosition = mPosition;
+        mStaticLayerDirty = false;
+    }
+
+    // Redraws only the areas of items affected by selection change instead of the whole layer
+    private void updateStaticLayerSelection(PieItem oldItem, PieItem newItem) {
+        if (mStaticLayer == null || mStaticLayerDirty) return;
+
+        redrawStaticLayerArea(oldItem, newItem);
+        redrawStaticLayerArea(newItem, newItem);
+    }
+
+    // Area is cleared and all static items are drawn again clipped to it so that outlines
+    // shared with neighbouring items come out the same as with full redraw
+    private void redrawStaticLayerArea(PieItem item, PieItem selectedItem) {
+        if (item == null || !item.getBounds(mTmpRect)) return;
+
+        int state = mStaticCanvas.save();
+        mStaticCanvas.translate(mStaticLayerRadius, mStaticLayerRadius);
+        mStaticCanvas.rotate(getRotation(mStaticLayerPosition));
+        mTmpRect.inset(-mOutlinePadding, -mOutlinePadding);
+        mStaticCanvas.clipRect(mTmpRect);
+        mStaticCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+        for (PieDrawable drawable : mDrawableCache) {
+            if (isStatic(drawable) && drawable != selectedItem) {
+                drawable.draw(mStaticCanvas, mStaticLayerPosition);
+            }
         }
+        mStaticCanvas.restoreToCount(state);
     }
 
     @Override
@@ -387,37 +531,23 @@ public class PieLayout extends FrameLayout implements View.OnTouchListener {
                     }
                 }
 
-                double distance = Math.sqrt(Math.pow(mCenter.x - x, 2) + Math.pow(mCenter.y - y, 2));
-
-                float alpha = (float) ((distance > 1.0f)
-                        ? Math.toDegrees(Math.atan2(y - mCenter.y, x - mCenter.x)) : 0.0f);
-                if (alpha < 0.0f) {
-                    alpha = 360 + alpha;
-                }
-                alpha = (360 + alpha + (mPosition.INDEX - 1) * 90) % 360;
-
-                // since everything is drawn with mPieScale we need to take this into account,
-                // since the PieDrawables expect normalized coordinates.
-                int radius = (int) (distance / mPieScale);
+                PieItem newItem = findItem(x - mCenter.x, y - mCenter.y);
 
                 if (DEBUG_INPUT) {
-                    log("interact on: (" + alpha + "," + distance + ")");
+                    log("interact on: (" + x + "," + y + ") -> "
+                            + (newItem != null ? newItem.tag : null));
                 }
 
-                PieItem newItem = null;
-                for (PieDrawable drawable : mDrawableCache) {
-                    PieItem tmp = drawable.interact(alpha, radius);
-                    if (tmp != null) {
-                        newItem = tmp;
-                    }
-                }
                 if (newItem != mActiveItem) {
                     if (newItem != null) {
+                        // latency is measured from input event until selection gets drawn
+                        mSelectionTime = event.getEventTime();
                         newItem.setSelected(true);
                     }
                     if (mActiveItem != null) {
                         mActiveItem.setSelected(false);
                     }
+                    updateStaticLayerSelection(mActiveItem, newItem);
                     mActiveItem = newItem;
                 }
             }
@@ -479,6 +609,7 @@ public class PieLayout extends FrameLayout implements View.OnTouchListener {
                 }
             }
             mLayoutDoneForPosition = mPosition;
+            buildHitTable();
         }
 
         float estimatedWidth = 0.0f;
@@ -511,6 +642,110 @@ public class PieLayout extends FrameLayout implements View.OnTouchListener {
         if (DEBUG) log("Layout finished within " + (SystemClock.uptimeMillis() - start) + " ms");
     }
 
+    /**
+     * Pseudo angle of the given vector in range [0, 4). It grows monotonically with
+     * the real angle (0 - 360 degrees, clockwise on screen) and is cheaper than atan2.
+     */
+    private static float pseudoAngle(float dx, float dy) {
+        if (dy >= 0) {
+            return dx >= 0 ? dy / (dx + dy) : 1 - dx / (dy - dx);
+        } else {
+            return dx < 0 ? 2 - dy / (-dx - dy) : 3 + dx / (dx - dy);
+        }
+    }
+
+    // Real angle in degrees at the center of given pseudo angle step
+    private static float getStepAngle(int step) {
+        final float pseudo = (step + 0.5f) * 4 / HIT_ANGLE_STEPS;
+        final int quadrant = (int) pseudo;
+        final float fraction = pseudo - quadrant;
+        return quadrant * 90 + (float) Math.toDegrees(Math.atan2(fraction, 1 - fraction));
+    }
+
+    private void buildHitTable() {
+        // Radius bands are formed by borders of all drawables. A drawable gets hit when
+        // inner < radius < outer with radius being the integer normalized distance.
+        int count = 0;
+        int[] borders = new int[mDrawableCache.size() * 2];
+        for (PieDrawable drawable : mDrawableCache) {
+            borders[count++] = drawable.mInner + 1;
+            borders[count++] = drawable.mOuter;
+        }
+        Arrays.sort(borders, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || borders[i] != borders[unique - 1]) {
+                borders[unique++] = borders[i];
+            }
+        }
+
+        mHitBands = Math.max(0, unique - 1);
+        mHitBandRadiusSqr = new float[unique];
+        for (int i = 0; i < unique; i++) {
+            // since everything is drawn with mPieScale we need to take this into account,
+            // since the PieDrawables expect normalized coordinates.
+            final float radius = borders[i] * mPieScale;
+            mHitBandRadiusSqr[i] = radius * radius;
+        }
+
+        final int size = mHitBands * HIT_ANGLE_STEPS;
+        if (mHitTable.length < size) {
+            mHitTable = new PieItem[size];
+        }
+        final int rotation = (mPosition.INDEX - 1) * 90;
+        for (int step = 0; step < HIT_ANGLE_STEPS; step++) {
+            final float alpha = (360 + getStepAngle(step) + rotation) % 360;
+            for (int band = 0; band < mHitBands; band++) {
+                PieItem item = null;
+                for (PieDrawable drawable : mDrawableCache) {
+                    PieItem tmp = drawable.interact(alpha, borders[band]);
+                    if (tmp != null) {
+                        item = tmp;
+                    }
+                }
+                mHitTable[band * HIT_ANGLE_STEPS + step] = item;
+            }
+        }
+
+        if (DEBUG) verifyHitTable();
+    }
+
+    private PieItem findItem(float dx, float dy) {
+        if (mHitBands == 0) return null;
+
+        final float distanceSqr = dx * dx + dy * dy;
+        if (distanceSqr < mHitBandRadiusSqr[0] || distanceSqr >= mHitBandRadiusSqr[mHitBands]) {
+            return null;
+        }
+        int band = 0;
+        while (distanceSqr >= mHitBandRadiusSqr[band + 1]) {
+            band++;
+        }
+        int step = (int) (pseudoAngle(dx, dy) * HIT_ANGLE_STEPS / 4);
+        if (step >= HIT_ANGLE_STEPS) {
+            step = HIT_ANGLE_STEPS - 1;
+        }
+        return mHitTable[band * HIT_ANGLE_STEPS + step];
+    }
+
+    // Checks that the center of every visible item resolves to the item itself
+    private void verifyHitTable() {
+        final int rotation = (mPosition.INDEX - 1) * 90;
+        for (PieDrawable drawable : mDrawableCache) {
+            if (!(drawable instanceof PieItem)) continue;
+
+            final double angle = Math.toRadians(drawable.mStart + drawable.mSweep / 2 - rotation);
+            final float radius = (drawable.mInner + drawable.mOuter) / 2.0f * mPieScale;
+            final PieItem found = findItem((float) (Math.cos(angle) * radius),
+                    (float) (Math.sin(angle) * radius));
+            if (found != drawable) {
+                log("Hit table mismatch for " + ((PieItem) drawable).tag + ": found "
+                        + (found != null ? found.tag : null));
+            }
+        }
+        log("Hit table built: " + mHitBands + " bands x " + HIT_ANGLE_STEPS + " steps");
+    }
+
     @Override
     protected void onConfigurationChanged(Configuration newConfig) {
         super.onConfigurationChanged(newConfig);
@@ -522,12 +757,17 @@ public class PieLayout extends FrameLayout implements View.OnTouchListener {
         getDimensions();
     }
 
-    public void activate(Point center, Position position) {
+    /**
+     * @param triggerTime uptime of the input event that triggered the pie
+     */
+    public void activate(Point center, Position position, long triggerTime) {
         if (Looper.myLooper() != Looper.getMainLooper()) {
             log("Activation not on main thread: " + Thread.currentThread().getName());
         }
 
         if (DEBUG) mActivateStartDebug = SystemClock.uptimeMillis();
+        mTriggerTime = triggerTime;
+        mSelectionTime = 0;
 
         mPosition = position;
         mLayoutDoneForPosition = null;
@@ -569,6 +809,7 @@ public class PieLayout extends FrameLayout implements View.OnTouchListener {
 
         if (mActiveItem != null) {
             mActiveItem.setSelected(false);
+            updateStaticLayerSelection(mActiveItem, null);
         }
         mActiveItem = null;
 
@@ -577,17 +818,20 @@ public class PieLayout extends FrameLayout implements View.OnTouchListener {
 
     public void clearSlices() {
         mSlices.clear();
+        mStaticLayerDirty = true;
         // empty draw cache only if we are not active, otherwise this is postponed to the
         // next #onLayout() call
         if (!mActive) {
             mAnimationListenerCache.clear();
             mDrawableCache.clear();
             mActiveItem = null;
+            mHitBands = 0;
         }
     }
 
     public void addSlice(PieSlice slice) {
         mSlices.add(slice);
+        mStaticLayerDirty = true;
     }
 
     public boolean isShowing() {
@@ -600,9 +844,18 @@ public class PieLayout extends FrameLayout implements View.OnTouchListener {
         setupSnapPoints(getWidth(), getHeight());
     }
 
+    public PieMetrics getMetrics() {
+        return mMetrics;
+    }
+
     public void setPieSize(int pieSize) {
+        if (mPieScale != (float) pieSize / 1000f) {
+            // statistics of different sizes should not be mixed
+            mMetrics.reset();
+        }
         mPieScale = (float) pieSize / 1000f;
         getDimensions();
         setupSnapPoints(getWidth(), getHeight());
+        buildHitTable();
     }
 }
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2013 Peter Gregus for GravityBox Project (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.gm2.gravitybox.pie;
+
+import android.os.Bundle;
+
+/**
+ * Always-on pie performance statistics.
+ * <p>
+ * Samples are counted into fixed histograms so recording costs a few comparisons
+ * and allocates nothing. All methods are expected to be called on the main thread.
+ */
+public class PieMetrics {
+    public static final String KEY_FIRST_FRAME_LATENCY = "pie_first_frame_latency";
+    public static final String KEY_FRAME_TIME = "pie_frame_time";
+    public static final String KEY_SELECTION_LATENCY = "pie_selection_latency";
+
+    // upper bucket bounds; latencies in milliseconds, frame times in microseconds
+    private static final int[] LATENCY_BOUNDS = {
+        5, 10, 15, 20, 25, 30, 40, 50, 60, 70, 80, 100, 120, 150, 200, 250, 300, 400, 500, 750, 1000
+    };
+    private static final int[] FRAME_TIME_BOUNDS = {
+        250, 500, 750, 1000, 1500, 2000, 3000, 4000, 5000, 6000, 8000,
+        10000, 12000, 16000, 20000, 25000, 33000, 50000, 100000
+    };
+
+    public final Histogram firstFrameLatency = new Histogram(LATENCY_BOUNDS);
+    public final Histogram frameTime = new Histogram(FRAME_TIME_BOUNDS);
+    public final Histogram selectionLatency = new Histogram(LATENCY_BOUNDS);
+
+    public void reset() {
+        firstFrameLatency.reset();
+        frameTime.reset();
+        selectionLatency.reset();
+    }
+
+    public void writeToBundle(Bundle data) {
+        firstFrameLatency.writeToBundle(data, KEY_FIRST_FRAME_LATENCY);
+        frameTime.writeToBundle(data, KEY_FRAME_TIME);
+        selectionLatency.writeToBundle(data, KEY_SELECTION_LATENCY);
+    }
+
+    public static class Histogram {
+        private final int[] mBounds;
+        // one extra bucket for values above the last bound
+        private final int[] mCounts;
+        private int mCount;
+        private int mMax;
+
+        public Histogram(int[] bounds) {
+            mBounds = bounds;
+            mCounts = new int[bounds.length + 1];
+        }
+
+        private Histogram(int[] bounds, int[] counts, int max) {
+            mBounds = bounds;
+            mCounts = counts;
+            for (int count : counts) {
+                mCount += count;
+            }
+            mMax = max;
+        }
+
+        public void record(long value) {
+            int i = 0;
+            while (i < mBounds.length && value > mBounds[i]) {
+                i++;
+            }
+            mCounts[i]++;
+            mCount++;
+            if (value > mMax) {
+                mMax = (int) Math.min(value, Integer.MAX_VALUE);
+            }
+        }
+
+        public void reset() {
+            for (int i = 0; i < mCounts.length; i++) {
+                mCounts[i] = 0;
+            }
+            mCount = 0;
+            mMax = 0;
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        public int getMax() {
+            return mMax;
+        }
+
+        /**
+         * Returns value that given percentage of samples does not exceed, resolved
+         * to upper bound of the bucket it falls into. Returns -1 if there are no samples.
+         */
+        public int getPercentile(int percent) {
+            if (mCount == 0) return -1;
+
+            final long target = Math.max(1, ((long) mCount * percent + 99) / 100);
+            long cumulative = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                cumulative += mCounts[i];
+                if (cumulative >= target) {
+                    return i < mBounds.length ? Math.min(mBounds[i], mMax) : mMax;
+                }
+            }
+            return mMax;
+        }
+
+        public void writeToBundle(Bundle data, String key) {
+            data.putIntArray(key + "_bounds", mBounds);
+            data.putIntArray(key + "_counts", mCounts.clone());
+            data.putInt(key + "_max", mMax);
+        }
+
+        public static Histogram fromBundle(Bundle data, String key) {
+            final int[] bounds = data.getIntArray(key + "_bounds");
+            final int[] counts = data.getIntArray(key + "_counts");
+            if (bounds == null || counts == null || counts.length != bounds.length + 1) {
+                return null;
+            }
+            return new Histogram(bounds, counts, data.getInt(key + "_max"));
+        }
+    }
+}
@@ -18,13 +18,17 @@
 package com.ceco.gm2.gravitybox.pie;
 
 import android.animation.ValueAnimator;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.res.Resources;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.RectF;
 import android.graphics.Typeface;
+import android.net.NetworkInfo;
 import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.os.Build;
@@ -40,11 +44,15 @@ import de.robv.android.xposed.XposedHelpers;
 
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.TimeZone;
 
 /**
  * A slice that displays some basic system information and a clock.
  * <p>
  * This slice has no user interactions defined.
+ * <p>
+ * All displayed data is kept up to date by listeners, so showing the pie
+ * does not need to query anything and allocates nothing.
  */
 public class PieSysInfo extends PieSliceContainer implements ValueAnimator.AnimatorUpdateListener {
 
@@ -54,21 +62,49 @@ public class PieSysInfo extends PieSliceContainer implements ValueAnimator.Anima
 
     private Path mClockPath = new Path();
     private Path mInfoPath[] = new Path[4];
+    private RectF mPathBounds = new RectF();
 
     private Paint mClockPaint = new Paint();
     private Paint mInfoPaint = new Paint();
 
+    private char[] mClockText = new char[32];
+    private int mClockTextLength;
     private float[] mClockTextDisplacements = new float[32];
+    private float mScale;
+    private boolean mPrepared;
 
-    private boolean mStaleData = true;
-    private String mClockText;
-    private String mDateText;
+    private String mDateText = "";
     private String mNetworkState;
-    private String mBatteryLevelReadable;
-    private String mWifiSsid;
+    private String mBatteryLevelReadable = "";
+    private String mWifiSsid = "";
 
     private String mTimeFormatString;
     private SimpleDateFormat mTimeFormat;
+    private java.text.DateFormat mDateFormat;
+    private Date mDate = new Date();
+
+    private BroadcastReceiver mBroadcastReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final String action = intent.getAction();
+            if (action.equals(WifiManager.NETWORK_STATE_CHANGED_ACTION)) {
+                final NetworkInfo networkInfo =
+                        (NetworkInfo) intent.getParcelableExtra(WifiManager.EXTRA_NETWORK_INFO);
+                updateWifiSsid(networkInfo != null && networkInfo.isConnected(),
+                        (WifiInfo) intent.getParcelableExtra(WifiManager.EXTRA_WIFI_INFO));
+            } else {
+                if (!action.equals(Intent.ACTION_TIME_TICK)) {
+                    // time format, time zone or locale might have changed
+                    updateFormats();
+                }
+                if (action.equals(Intent.ACTION_LOCALE_CHANGED)) {
+                    updateNetworkState();
+                    updateBatteryLevel();
+                }
+                updateTime();
+            }
+        }
+    };
 
     public PieSysInfo(Context context, Context gbContext, PieLayout parent,
             PieController controller, int initialFlags) {
@@ -83,52 +119,70 @@ public class PieSysInfo extends PieSliceContainer implements ValueAnimator.Anima
         mInfoPaint.setAntiAlias(true);
         mInfoPaint.setTypeface(Typeface.create("sans-serif-light", Typeface.NORMAL));
 
+        for (int i = 0; i < mInfoPath.length; i++) {
+            mInfoPath[i] = new Path();
+        }
+
         setColor(controller.getColorInfo());
+
+        updateFormats();
+        updateTime();
+        updateNetworkState();
+        updateBatteryLevel();
+        updateWifiSsid(false, null);
+
+        IntentFilter intentFilter = new IntentFilter();
+        intentFilter.addAction(Intent.ACTION_TIME_TICK);
+        intentFilter.addAction(Intent.ACTION_TIME_CHANGED);
+        intentFilter.addAction(Intent.ACTION_TIMEZONE_CHANGED);
+        intentFilter.addAction(Intent.ACTION_DATE_CHANGED);
+        intentFilter.addAction(Intent.ACTION_LOCALE_CHANGED);
+        // sticky, delivers current wifi state right away
+        intentFilter.addAction(WifiManager.NETWORK_STATE_CHANGED_ACTION);
+        mContext.registerReceiver(mBroadcastReceiver, intentFilter);
     }
 
     @Override
     public void prepare(Position position, float scale) {
-
-        // We are updating data later when we starting to get visible.
-        // This does not save work on the main thread, but for fast gestures
-        // we don't even start to collect this data.
-        mStaleData = true;
-
-        mClockText = getTimeFormat().format(new Date());
-
         mClockPaint.setAlpha(0);
         mInfoPaint.setAlpha(0);
 
         int textsize = mGbResources.getDimensionPixelSize(R.dimen.pie_textsize);
 
+        mScale = scale;
         mInfoPaint.setTextSize(textsize * scale);
         mClockPaint.setTextSize((mOuter - mInner) * scale);
 
+        layoutClock();
+        for (int i = 0; i < mInfoPath.length; i++)
+            updatePath(mInfoPath[i], (mInner + textsize * 1.2f * i) * scale,
+                    272, mStart + mSweep - 272);
+        mPrepared = true;
+    }
+
+    private void layoutClock() {
         float total = 0;
-        for (int i = 0; i < mClockText.length(); i++) {
-            char character = mClockText.charAt(i);
-            float measure = mClockPaint.measureText("" + character);
+        for (int i = 0; i < mClockTextLength; i++) {
+            char character = mClockText[i];
+            float measure = mClockPaint.measureText(mClockText, i, 1);
             mClockTextDisplacements[i] = measure * (character == '1' || character == ':' ? 0.5f : 0.8f);
             total += mClockTextDisplacements[i];
         }
-        float alpha = 268 - (float)(total * 360 / (2.0f * Math.PI * mInner * scale));
+        float alpha = 268 - (float)(total * 360 / (2.0f * Math.PI * mInner * mScale));
 
-        mClockPath = updatePath(mClockPath, mInner * scale, alpha, mSweep);
-        for (int i = 0; i < mInfoPath.length; i++)
-            mInfoPath[i] = updatePath(mInfoPath[i], (mInner + textsize * 1.2f * i) * scale,
-                    272, mStart + mSweep - 272);
+        updatePath(mClockPath, mInner * mScale, alpha, mSweep);
     }
 
     @Override
     public void draw(Canvas canvas, Position position) {
-        // as long as there is no new data, we don't need to draw anything.
-        if (mStaleData) {
+        // as long as we are fully transparent, we don't need to draw anything.
+        if (mClockPaint.getAlpha() == 0) {
             return;
         }
 
         float lastPos = 0;
-        for(int i = 0; i < mClockText.length(); i++) {
-            canvas.drawTextOnPath("" + mClockText.charAt(i), mClockPath, lastPos, 0, mClockPaint);
+        for(int i = 0; i < mClockTextLength; i++) {
+            canvas.drawTextOnPath(mClockText, i, 1, mClockPath, lastPos, 0, mClockPaint);
             lastPos += mClockTextDisplacements[i];
         }
 
@@ -145,45 +199,69 @@ public class PieSysInfo extends PieSliceContainer implements ValueAnimator.Anima
         int alpha = (int) (255 * animation.getAnimatedFraction());
         mClockPaint.setAlpha(alpha);
         mInfoPaint.setAlpha(alpha);
+    }
 
-        // if we are going to get displayed update data
-        if (alpha > 0 && mStaleData) {
-            updateData();
-            mStaleData = false;
+    private void updatePath(Path path, float radius, float start, float sweep) {
+        path.reset();
+        mPathBounds.set(-radius, -radius, radius, radius);
+        path.arcTo(mPathBounds, start, sweep, true);
+    }
+
+    private void onDataChanged() {
+        if (mPieLayout.isShowing()) {
+            mPieLayout.invalidate();
         }
     }
 
-    private Path updatePath(Path path, float radius, float start, float sweep) {
-        if (path == null) {
-            path = new Path();
-        } else {
-            path.reset();
+    private void updateFormats() {
+        mTimeFormat = getTimeFormat();
+        mTimeFormat.setTimeZone(TimeZone.getDefault());
+        mDateFormat = DateFormat.getMediumDateFormat(mContext);
+    }
+
+    private void updateTime() {
+        mDate.setTime(System.currentTimeMillis());
+
+        final String clockText = mTimeFormat.format(mDate);
+        mClockTextLength = Math.min(clockText.length(), mClockText.length);
+        clockText.getChars(0, mClockTextLength, mClockText, 0);
+        if (mPrepared) {
+            layoutClock();
         }
 
-        final RectF bB = new RectF(-radius, -radius, radius, radius);
-        path.arcTo(bB, start, sweep, true);
-        return path;
+        mDateText = mDateFormat.format(mDate).toUpperCase();
+        onDataChanged();
     }
 
-    private void updateData() {
-        mDateText = DateFormat.getMediumDateFormat(mContext).format(new Date()).toUpperCase();
+    // Called by controller when service state changes
+    /* package */ void updateNetworkState() {
         mNetworkState = mController.getOperatorState();
         if (mNetworkState != null) {
             mNetworkState = mNetworkState.toUpperCase();
         }
-        mWifiSsid = getWifiSsid().toUpperCase();
+        onDataChanged();
+    }
+
+    // Called by controller when battery level or status changes
+    /* package */ void updateBatteryLevel() {
         mBatteryLevelReadable = mController.getBatteryLevel().toUpperCase();
+        onDataChanged();
     }
 
-    private String getWifiSsid() {
+    private void updateWifiSsid(boolean connected, WifiInfo wifiInfo) {
         String ssid = null;
-        final WifiManager wifiManager = (WifiManager) mContext.getSystemService(Context.WIFI_SERVICE);
-        if (wifiManager != null) {
-            final WifiInfo connectionInfo = wifiManager.getConnectionInfo();
-            if (connectionInfo != null) {
+        if (connected) {
+            if (wifiInfo == null) {
+                final WifiManager wifiManager =
+                        (WifiManager) mContext.getSystemService(Context.WIFI_SERVICE);
+                if (wifiManager != null) {
+                    wifiInfo = wifiManager.getConnectionInfo();
+                }
+            }
+            if (wifiInfo != null) {
                 final Object wifiSsid = Build.VERSION.SDK_INT > 16 ?
-                        XposedHelpers.callMethod(connectionInfo, "getWifiSsid") :
-                        XposedHelpers.callMethod(connectionInfo, "getSSID");
+                        XposedHelpers.callMethod(wifiInfo, "getWifiSsid") :
+                        XposedHelpers.callMethod(wifiInfo, "getSSID");
                 if (wifiSsid != null) {
                     ssid = wifiSsid.toString();
                 }
@@ -195,7 +273,8 @@ public class PieSysInfo extends PieSliceContainer implements ValueAnimator.Anima
             // TODO: translate
             ssid = resId == 0 ? "Not connected" : mContext.getString(resId);
         }
-        return ssid;
+        mWifiSsid = ssid.toUpperCase();
+        onDataChanged();
     }
 
     private SimpleDateFormat getTimeFormat() {
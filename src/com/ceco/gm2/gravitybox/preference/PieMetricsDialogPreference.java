@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2013 Peter Gregus for GravityBox Project (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.gm2.gravitybox.preference;
+
+import com.ceco.gm2.gravitybox.GravityBoxResultReceiver;
+import com.ceco.gm2.gravitybox.GravityBoxResultReceiver.Receiver;
+import com.ceco.gm2.gravitybox.ModPieControls;
+import com.ceco.gm2.gravitybox.R;
+import com.ceco.gm2.gravitybox.pie.PieController.Position;
+import com.ceco.gm2.gravitybox.pie.PieMetrics;
+import com.ceco.gm2.gravitybox.pie.PieMetrics.Histogram;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.preference.DialogPreference;
+import android.util.AttributeSet;
+import android.view.View;
+import android.widget.TextView;
+
+public class PieMetricsDialogPreference extends DialogPreference implements Receiver {
+
+    private GravityBoxResultReceiver mReceiver;
+    private TextView mTxtMetrics;
+
+    public PieMetricsDialogPreference(Context context, AttributeSet attrs) {
+        super(context, attrs);
+
+        setDialogLayoutResource(R.layout.dlgpref_pie_metrics);
+
+        mReceiver = new GravityBoxResultReceiver(new Handler());
+        mReceiver.setReceiver(this);
+    }
+
+    @Override
+    protected void onBindDialogView(View view) {
+        mTxtMetrics = (TextView) view.findViewById(R.id.txtPieMetrics);
+
+        Intent intent = new Intent();
+        intent.setAction(ModPieControls.ACTION_GET_PIE_METRICS);
+        intent.putExtra("receiver", mReceiver);
+        getContext().sendBroadcast(intent);
+
+        super.onBindDialogView(view);
+    }
+
+    @Override
+    protected void onDialogClosed(boolean positiveResult) {
+        mTxtMetrics = null;
+        if (positiveResult) {
+            Intent intent = new Intent();
+            intent.setAction(ModPieControls.ACTION_RESET_PIE_METRICS);
+            getContext().sendBroadcast(intent);
+        }
+    }
+
+    @Override
+    public void onReceiveResult(int resultCode, Bundle resultData) {
+        if (resultCode != ModPieControls.RESULT_PIE_METRICS || mTxtMetrics == null) return;
+
+        final Context context = getContext();
+        StringBuilder triggers = new StringBuilder();
+        final int triggerSlots = resultData.getInt(ModPieControls.EXTRA_PIE_TRIGGER_SLOTS);
+        for (Position p : Position.values()) {
+            if ((triggerSlots & p.FLAG) != 0) {
+                if (triggers.length() > 0) triggers.append(", ");
+                triggers.append(p.name());
+            }
+        }
+
+        StringBuilder text = new StringBuilder();
+        text.append(context.getString(R.string.pie_metrics_config,
+                resultData.getInt(ModPieControls.EXTRA_PIE_SIZE),
+                resultData.getInt(ModPieControls.EXTRA_PIE_TRIGGER_SIZE),
+                triggers.toString()));
+        appendHistogram(text, R.string.pie_metrics_first_frame,
+                Histogram.fromBundle(resultData, PieMetrics.KEY_FIRST_FRAME_LATENCY), 1);
+        appendHistogram(text, R.string.pie_metrics_frame_time,
+                Histogram.fromBundle(resultData, PieMetrics.KEY_FRAME_TIME), 1000);
+        appendHistogram(text, R.string.pie_metrics_selection,
+                Histogram.fromBundle(resultData, PieMetrics.KEY_SELECTION_LATENCY), 1);
+        mTxtMetrics.setText(text.toString());
+    }
+
+    // unitsPerMs: how many histogram units make one millisecond
+    private void appendHistogram(StringBuilder text, int titleResId, Histogram histogram, int unitsPerMs) {
+        text.append("\n\n").append(getContext().getString(titleResId)).append("\n");
+        if (histogram == null || histogram.getCount() == 0) {
+            text.append(getContext().getString(R.string.pie_metrics_no_samples));
+            return;
+        }
+        text.append(getContext().getString(R.string.pie_metrics_values,
+                histogram.getCount(),
+                formatMs(histogram.getPercentile(50), unitsPerMs),
+                formatMs(histogram.getPercentile(90), unitsPerMs),
+                formatMs(histogram.getPercentile(99), unitsPerMs),
+                formatMs(histogram.getMax(), unitsPerMs)));
+    }
+
+    private static String formatMs(int value, int unitsPerMs) {
+        return unitsPerMs == 1 ? value + " ms" :
+            String.format("%.1f ms", (float) value / unitsPerMs);
+    }
+}
@@ -74,11 +74,14 @@ public abstract class AQuickSettingsTile implements OnClickListener, BroadcastSu
         int layoutId = mResources.getIdentifier("quick_settings_tile", "layout", PACKAGE_NAME);
         mTile = (FrameLayout) inflater.inflate(layoutId, viewGroup, false);
         onTileCreate();
+        // tag tile with its key so it can be identified without view lookups
+        mTile.setTag(mGbResources.getResourceEntryName(onGetTileViewId()));
         viewGroup.addView(mTile);
         if (prefs != null) {
             onPreferenceInitialize(prefs);
         }
-        updateResources();
+        // initial state is rendered immediately, further refreshes go via scheduler
+        updateTile();
         mTile.setOnClickListener(this);
         mTile.setOnLongClickListener(mOnLongClick);
         onTilePostCreate();
@@ -86,10 +89,30 @@ public abstract class AQuickSettingsTile implements OnClickListener, BroadcastSu
 
     protected abstract void onTileCreate();
 
+    // each tile must provide ID of its tile view which also serves as tile key
+    protected abstract int onGetTileViewId();
+
     protected void onTilePostCreate() { };
 
+    // tile must release everything registered during its creation here
+    protected void onTileDestroy() { };
+
+    public void destroyQuickSettingsTile() {
+        if (mTile == null) return;
+
+        TileRefreshScheduler.cancelRefresh(this);
+        onTileDestroy();
+        if (mTile.getParent() == mContainer) {
+            mContainer.removeView(mTile);
+        }
+        mTile = null;
+    }
+
     protected abstract void updateTile();
 
+    // called when tiles are being hidden by panel collapse or flip to notifications
+    public void onTilesHidden() { };
+
     protected void onPreferenceInitialize(XSharedPreferences prefs) {
         try {
             mTileStyle = Integer.valueOf(
@@ -114,7 +137,7 @@ public abstract class AQuickSettingsTile implements OnClickListener, BroadcastSu
 
     public void updateResources() {
         if (mTile != null) {
-            updateTile();
+            TileRefreshScheduler.requestRefresh(this);
         }
     }
 
@@ -151,4 +174,4 @@ public abstract class AQuickSettingsTile implements OnClickListener, BroadcastSu
             XposedBridge.log("Error calling animateCollapsePanels: " + t.getMessage());
         }
     }
-}
+}
@@ -25,6 +25,7 @@ import java.util.List;
 
 import com.ceco.gm2.gravitybox.R;
 
+import de.robv.android.xposed.XposedBridge;
 import de.robv.android.xposed.XposedHelpers;
 
 import android.content.ContentResolver;
@@ -33,11 +34,15 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
+import android.graphics.ImageFormat;
 import android.hardware.Camera;
 import android.media.ExifInterface;
 import android.net.Uri;
 import android.os.Environment;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
 import android.provider.MediaStore;
 import android.provider.MediaStore.Images;
 import android.provider.MediaStore.Images.ImageColumns;
@@ -49,29 +54,47 @@ import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 import android.view.View;
 import android.view.ViewParent;
+import android.view.ViewTreeObserver;
 import android.view.WindowManager;
 import android.widget.FrameLayout;
 import android.widget.Toast;
 
 public class CameraTile extends BasicTile {
+    private static final String TAG = "GB:CameraTile";
+    private static final boolean DEBUG = false;
+
     private static final String DEFAULT_IMAGE_FILE_NAME_FORMAT = "'IMG'_yyyyMMdd_HHmmss";
     private static final int CAMERA_ID = 0;
+    private static final int BURST_SIZE = 5;
+    private static final int MAX_PENDING_CAPTURES = 5;
 
     private Handler mHandler;
+    private HandlerThread mCameraThread;
+    private Handler mCameraHandler;
     private View mIconContainer;
     private FrameLayout mSurfaceLayout;
     private SurfaceView mSurfaceView;
     private View mFlashView;
     private Object mContainingPanel;
+    private boolean mContainingPanelResolved;
 
-    private Camera mCamera;
+    // camera object is owned by camera thread; main thread only tracks whether camera is in use
+    private volatile Camera mCamera;
+    private boolean mCameraActive;
     private CameraOrientationListener mCameraOrientationListener = null;
     private int mOrientation;
-    private int mJpegRotation;
     private int mDisplayRotation;
+    private int mCameraDisplayOrientation;
     private Camera.Size mCameraSize;
-    private boolean mCameraStarted;
-    private boolean mCameraBusy;
+    private volatile boolean mCameraStarted;
+    private boolean mCaptureInProgress;
+    private int mPendingCaptures;
+    private int mJpegRotation;
+    private int mPictureOrientation;
+    private int mCaptureJpegRotation;
+    private int mCaptureOrientation;
+    private long mLastCaptureTime;
+    private byte[] mPreviewBuffer;
 
     private Camera.CameraInfo mCameraInfo = new Camera.CameraInfo();
     private Camera.Parameters mParams;
@@ -79,6 +102,16 @@ public class CameraTile extends BasicTile {
     private Storage mStorage = new Storage();
     private SimpleDateFormat mImageNameFormatter;
 
+    // startup metrics
+    private volatile long mTapTime;
+    private volatile long mMainThreadBlockTime;
+    private volatile boolean mWaitingFirstFrame;
+    private volatile long mFirstFrameLatency;
+
+    private static void log(String message) {
+        XposedBridge.log(TAG + ": " + message);
+    }
+
     public CameraTile(Context context, Context gbContext, Object statusBar, Object panelBar) {
         super(context, gbContext, statusBar, panelBar);
 
@@ -88,7 +121,7 @@ public class CameraTile extends BasicTile {
         mOnClick = new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                if (mCamera == null) {
+                if (!mCameraActive) {
                     mHandler.post(mStartRunnable);
                 } else {
                     mHandler.post(mTakePictureRunnable);
@@ -99,8 +132,10 @@ public class CameraTile extends BasicTile {
         mOnLongClick = new View.OnLongClickListener() {
             @Override
             public boolean onLongClick(View v) {
-                if (mCamera != null) {
-                    return false;
+                if (mCameraActive) {
+                    // Take a burst of back-to-back pictures
+                    requestCaptures(BURST_SIZE);
+                    return true;
                 }
 
                 Intent intent = new Intent(MediaStore.INTENT_ACTION_STILL_IMAGE_CAMERA);
@@ -133,6 +168,11 @@ public class CameraTile extends BasicTile {
         return R.layout.quick_settings_tile_camera;
     }
 
+    @Override
+    protected int onGetTileViewId() {
+        return R.id.camera_tileview;
+    }
+
     @Override
     protected void onTilePostCreate() {
         mIconContainer = mTile.findViewById(R.id.camera_tileview);
@@ -142,108 +182,274 @@ public class CameraTile extends BasicTile {
         super.onTilePostCreate();
     }
 
+    @Override
+    protected void onTileDestroy() {
+        mHandler.removeCallbacks(mStartRunnable);
+        mHandler.removeCallbacks(mTakePictureRunnable);
+        mReleaseCameraRunnable.run();
+        if (mCameraThread != null) {
+            // let camera thread finish pending release before it quits
+            final HandlerThread cameraThread = mCameraThread;
+            mCameraHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    cameraThread.quit();
+                }
+            });
+            mCameraThread = null;
+            mCameraHandler = null;
+        }
+        mStorage.shutdown();
+        super.onTileDestroy();
+    }
+
+    @Override
+    public void onTilesHidden() {
+        mHandler.removeCallbacks(mStartRunnable);
+        mReleaseCameraRunnable.run();
+    }
+
+    private Handler getCameraHandler() {
+        if (mCameraHandler == null) {
+            mCameraThread = new HandlerThread("GbCameraTile");
+            mCameraThread.start();
+            mCameraHandler = new Handler(mCameraThread.getLooper());
+        }
+        return mCameraHandler;
+    }
+
     private Runnable mStartRunnable = new Runnable() {
         @Override
         public void run() {
-            if (mCamera != null) {
+            if (mCameraActive) {
                 return;
             }
 
-            Camera.getCameraInfo(CAMERA_ID, mCameraInfo);
+            final long startTime = SystemClock.uptimeMillis();
+            mCameraActive = true;
+            mTapTime = startTime;
+            mMainThreadBlockTime = 0;
+            mWaitingFirstFrame = true;
 
-            try {
-                mCamera = Camera.open(CAMERA_ID);
-            } catch (Exception e) {
-                Toast.makeText(mContext, mGbContext.getString(R.string.quick_settings_camera_error_connect),
-                        Toast.LENGTH_SHORT).show();
+            // Camera is opened and configured on camera thread
+            final int tileWidth = mTile.getWidth();
+            final int tileHeight = mTile.getHeight();
+            getCameraHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    openCamera(tileWidth, tileHeight);
+                }
+            });
+
+            mMainThreadBlockTime += SystemClock.uptimeMillis() - startTime;
+        }
+    };
+
+    // Called on camera thread
+    private void openCamera(int tileWidth, int tileHeight) {
+        final long startTime = SystemClock.uptimeMillis();
+
+        Camera.getCameraInfo(CAMERA_ID, mCameraInfo);
+
+        final Camera camera;
+        try {
+            camera = Camera.open(CAMERA_ID);
+        } catch (Exception e) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mCameraActive = false;
+                    Toast.makeText(mContext, mGbContext.getString(R.string.quick_settings_camera_error_connect),
+                            Toast.LENGTH_SHORT).show();
+                }
+            });
+            return;
+        }
+
+        mParams = camera.getParameters();
+        mCaptureJpegRotation = -1;
+
+        // Use smallest preview size that is bigger than the tile view
+        Camera.Size previewSize = mParams.getPreviewSize();
+        for (Camera.Size size : mParams.getSupportedPreviewSizes()) {
+            if ((size.width > tileWidth && size.height > tileHeight) &&
+                    (size.width < previewSize.width && size.height < previewSize.height)) {
+                previewSize = size;
+            }
+        }
+        mParams.setPreviewSize(previewSize.width, previewSize.height);
+
+        // Use largest picture size
+        Camera.Size pictureSize = mParams.getPictureSize();
+        for (Camera.Size size : mParams.getSupportedPictureSizes()) {
+            if (size.width > pictureSize.width && size.height > pictureSize.height) {
+                pictureSize = size;
+            }
+        }
+        mCameraSize = pictureSize;
+        mParams.setPictureSize(pictureSize.width, pictureSize.height);
+
+        // Try focus with continuous modes first, then basic autofocus
+        List<String> focusModes = mParams.getSupportedFocusModes();
+        if (focusModes.contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE)) {
+            mParams.setFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE);
+        } else if (focusModes.contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO)) {
+            mParams.setFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO);
+        } else if (mParams.getSupportedFocusModes().contains(Camera.Parameters.FOCUS_MODE_AUTO)) {
+            mParams.setFocusMode(Camera.Parameters.FOCUS_MODE_AUTO);
+        }
+
+        camera.setParameters(mParams);
+
+        // Preview frames are only needed to measure startup latency; the callback takes
+        // a single frame into buffer reused across sessions and removes itself
+        if (DEBUG) {
+            final int bufferSize = previewSize.width * previewSize.height *
+                    ImageFormat.getBitsPerPixel(mParams.getPreviewFormat()) / 8;
+            if (mPreviewBuffer == null || mPreviewBuffer.length != bufferSize) {
+                mPreviewBuffer = new byte[bufferSize];
+            }
+            camera.addCallbackBuffer(mPreviewBuffer);
+            camera.setPreviewCallbackWithBuffer(mPreviewCallback);
+        }
+
+        mCamera = camera;
+        if (DEBUG) log("Camera opened and configured in " + (SystemClock.uptimeMillis() - startTime) + "ms");
+        mHandler.post(mShowPreviewRunnable);
+    }
+
+    private Runnable mShowPreviewRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // Camera might have been released meanwhile
+            final Camera camera = mCamera;
+            if (!mCameraActive || camera == null || mTile == null) {
                 return;
             }
 
+            final long startTime = SystemClock.uptimeMillis();
+
             // Orientation listener to rotate the camera preview
             if (mCameraOrientationListener == null) {
                 mCameraOrientationListener = new CameraOrientationListener(mContext);
             }
             mCameraOrientationListener.enable();
+            mCameraDisplayOrientation = -1;
+            updateOrientation();
 
-            mParams = mCamera.getParameters();
+            // Collapse and flip are reported via onTilesHidden; watchdog catches missed events
+            mTile.getViewTreeObserver().addOnPreDrawListener(mReleaseWatchdog);
 
-            // Use smallest preview size that is bigger than the tile view
-            Camera.Size previewSize = mParams.getPreviewSize();
-            for (Camera.Size size : mParams.getSupportedPreviewSizes()) {
-                if ((size.width > mTile.getWidth() && size.height > mTile.getHeight()) &&
-                        (size.width < previewSize.width && size.height < previewSize.height)) {
-                    previewSize = size;
-                }
-            }
-            mParams.setPreviewSize(previewSize.width, previewSize.height);
+            mIconContainer.setVisibility(View.GONE);
+            mSurfaceView = new CameraPreview(mContext, camera);
+            mSurfaceView.setVisibility(View.VISIBLE);
+            mSurfaceLayout.addView(mSurfaceView, 0);
 
-            // Use largest picture size
-            Camera.Size pictureSize = mParams.getPictureSize();
-            for (Camera.Size size : mParams.getSupportedPictureSizes()) {
-                if (size.width > pictureSize.width && size.height > pictureSize.height) {
-                    pictureSize = size;
-                }
-            }
-            mCameraSize = pictureSize;
-            mParams.setPictureSize(pictureSize.width, pictureSize.height);
-
-            // Try focus with continuous modes first, then basic autofocus
-            List<String> focusModes = mParams.getSupportedFocusModes();
-            if (focusModes.contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE)) {
-                mParams.setFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE);
-            } else if (focusModes.contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO)) {
-                mParams.setFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO);
-            } else if (mParams.getSupportedFocusModes().contains(Camera.Parameters.FOCUS_MODE_AUTO)) {
-                mParams.setFocusMode(Camera.Parameters.FOCUS_MODE_AUTO);
+            mMainThreadBlockTime += SystemClock.uptimeMillis() - startTime;
+        }
+    };
+
+    // Runs only when panel redraws, e.g. during collapse or flip animation
+    private ViewTreeObserver.OnPreDrawListener mReleaseWatchdog = new ViewTreeObserver.OnPreDrawListener() {
+        @Override
+        public boolean onPreDraw() {
+            if (mCameraActive && !isTileFullyVisible()) {
+                if (DEBUG) log("Release watchdog triggered");
+                mReleaseCameraRunnable.run();
             }
+            return true;
+        }
+    };
 
-            mCamera.setParameters(mParams);
-            updateOrientation();
+    private boolean isTileFullyVisible() {
+        final View parent = (View) mContainer.getParent();
+        if (parent == null || parent.getScaleX() != 1 || !mTile.isShown()) {
+            return false;
+        }
 
-            final Object panel = getContainingPanel();
-            final View parent = (View) mContainer.getParent();
+        final Object panel = getContainingPanel();
+        try {
+            return (panel == null || (Boolean) XposedHelpers.callMethod(panel, "isFullyExpanded"));
+        } catch (Throwable t) {
+            return true;
+        }
+    }
 
-            mHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    if ((Boolean)XposedHelpers.callMethod(panel, "isFullyExpanded") 
-                            && parent.getScaleX() == 1) {
-                        mHandler.postDelayed(this, 100);
-                    } else {
-                        mHandler.post(mReleaseCameraRunnable);
-                    }
-                }
-            }, 100);
+    // only called once tile is shown so hierarchy is complete and lookup result can be kept
+    private Object getContainingPanel() {
+        if (mContainingPanelResolved) return mContainingPanel;
 
-            mIconContainer.setVisibility(View.GONE);
-            mSurfaceView = new CameraPreview(mContext, mCamera);
-            mSurfaceView.setVisibility(View.VISIBLE);
-            mSurfaceLayout.addView(mSurfaceView, 0);
+        ViewParent parent = mContainer;
+        while (parent != null) {
+            try {
+                XposedHelpers.callMethod(parent, "isFullyExpanded");
+                mContainingPanel = parent;
+                break;
+            } catch (Throwable t) { }
+            parent = parent.getParent();
+        }
+        mContainingPanelResolved = true;
+        return mContainingPanel;
+    }
+
+    // Called on camera thread
+    private Camera.PreviewCallback mPreviewCallback = new Camera.PreviewCallback() {
+        @Override
+        public void onPreviewFrame(byte[] data, Camera camera) {
+            if (mWaitingFirstFrame) {
+                mWaitingFirstFrame = false;
+                mFirstFrameLatency = SystemClock.uptimeMillis() - mTapTime;
+                if (DEBUG) log("First preview frame " + mFirstFrameLatency + "ms after tap; " +
+                        "main thread blocked for " + mMainThreadBlockTime + "ms");
+            }
+            // buffer is not handed back so no further frames get copied
+            camera.setPreviewCallbackWithBuffer(null);
         }
     };
 
     private Runnable mTakePictureRunnable = new Runnable() {
         @Override
         public void run() {
-            if (mCamera == null) {
-                return;
-            }
+            requestCaptures(1);
+        }
+    };
 
-            // Repeat until the preview has started and we can
-            // take picture
-            if (!mCameraStarted) {
-                mHandler.postDelayed(this, 200);
-                return;
+    // Requests are queued on camera thread and taken back-to-back as soon as preview runs
+    private void requestCaptures(final int count) {
+        if (!mCameraActive) {
+            return;
+        }
+
+        // Update the JPEG rotation
+        final int jpegRotation;
+        if (mCameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
+            jpegRotation = (mCameraInfo.orientation - mOrientation + 360) % 360;
+        } else {
+            jpegRotation = (mCameraInfo.orientation + mOrientation) % 360;
+        }
+        final int orientation = (mOrientation + mDisplayRotation) % 360;
+
+        mCameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mPendingCaptures = Math.min(mPendingCaptures + count, MAX_PENDING_CAPTURES);
+                mJpegRotation = jpegRotation;
+                mPictureOrientation = orientation;
+                captureNext();
             }
+        });
+    }
 
-            // To avoid crashes don't post new picture requests
-            // if previous request has not returned
-            if (mCameraBusy) {
+    private Runnable mFlashRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!mCameraActive) {
                 return;
             }
-            mCameraBusy = true;
 
             // Display flash animation above the preview
+            mFlashView.animate().cancel();
+            mFlashView.setAlpha(1f);
             mFlashView.setVisibility(View.VISIBLE);
             mFlashView.animate().alpha(0f).withEndAction(new Runnable() {
                 @Override
@@ -252,39 +458,64 @@ public class CameraTile extends BasicTile {
                     mFlashView.setAlpha(1f);
                 }
             });
+        }
+    };
 
-            // Update the JPEG rotation\
-            if (mCameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
-                mJpegRotation = (mCameraInfo.orientation - mOrientation + 360) % 360;
-            } else {
-                mJpegRotation = (mCameraInfo.orientation + mOrientation) % 360;
-            }
-
-            mParams.setRotation(mJpegRotation);
-            mCamera.setParameters(mParams);
+    // Called on camera thread
+    private void captureNext() {
+        final Camera camera = mCamera;
+        // To avoid crashes don't request new picture
+        // until previous request has returned
+        if (camera == null || !mCameraStarted || mCaptureInProgress || mPendingCaptures == 0) {
+            return;
+        }
 
-            // Request a picture
-            try {
-                mCamera.takePicture(null, null, new Camera.PictureCallback() {
-                    @Override
-                    public void onPictureTaken(byte[] data, Camera camera) {
-                        mCameraBusy = false;
+        mPendingCaptures--;
+        mCaptureInProgress = true;
+        mHandler.post(mFlashRunnable);
 
-                        long time = System.currentTimeMillis();
+        // Request a picture
+        try {
+            // Parameters are pushed to camera only when rotation changes within a session
+            if (mCaptureJpegRotation != mJpegRotation) {
+                mParams.setRotation(mJpegRotation);
+                camera.setParameters(mParams);
+                mCaptureJpegRotation = mJpegRotation;
+            }
+            mCaptureOrientation = mPictureOrientation;
+            camera.takePicture(null, null, mPictureCallback);
+        } catch (RuntimeException e) {
+            // This can happen if camera is being released, nothing we can do
+            mCaptureInProgress = false;
+            mPendingCaptures = 0;
+        }
+    }
 
-                        int orientation = (mOrientation + mDisplayRotation) % 360;
+    // Called on camera thread
+    private Camera.PictureCallback mPictureCallback = new Camera.PictureCallback() {
+        @Override
+        public void onPictureTaken(byte[] data, Camera camera) {
+            final long time = System.currentTimeMillis();
+            if (DEBUG && mLastCaptureTime != 0) {
+                log("Picture taken " + (time - mLastCaptureTime) + "ms after previous one; " +
+                        mPendingCaptures + " pending");
+            }
+            mLastCaptureTime = time;
 
-                        mStorage.addImage(mContext.getContentResolver(),
-                                mImageNameFormatter.format(new Date(time)),
-                                time, orientation, data, mCameraSize.width,
-                                mCameraSize.height);
+            // Naming, writing and media store insert is done on storage writer thread
+            mStorage.addImageAsync(mContext.getContentResolver(), time,
+                    mCaptureOrientation, mCaptureJpegRotation, data, mCameraSize.width,
+                    mCameraSize.height);
 
-                        mCamera.startPreview();
-                    }
-                });
-            } catch (RuntimeException e) {
-                // This can happen if user is pressing the
-                // tile too fast, nothing we can do
+            mCaptureInProgress = false;
+            if (camera == mCamera) {
+                try {
+                    camera.startPreview();
+                } catch (RuntimeException e) {
+                    mPendingCaptures = 0;
+                    return;
+                }
+                captureNext();
             }
         }
     };
@@ -292,47 +523,81 @@ public class CameraTile extends BasicTile {
     private Runnable mReleaseCameraRunnable = new Runnable() {
         @Override
         public void run() {
-            if (mCamera == null) {
+            if (!mCameraActive) {
                 return;
             }
 
-            mCamera.stopPreview();
-            mCamera.release();
-            mCamera = null;
-            mCameraStarted = false;
-            mCameraOrientationListener.disable();
+            mCameraActive = false;
+            mHandler.removeCallbacks(mTakePictureRunnable);
+            if (mTile != null && mTile.getViewTreeObserver().isAlive()) {
+                mTile.getViewTreeObserver().removeOnPreDrawListener(mReleaseWatchdog);
+            }
+            if (mCameraOrientationListener != null) {
+                mCameraOrientationListener.disable();
+            }
 
-            mIconContainer.setVisibility(View.VISIBLE);
-            mSurfaceView.setVisibility(View.GONE);
-            mSurfaceLayout.removeView(mSurfaceView);
+            // Preview is removed only after camera stopped drawing into it
+            final SurfaceView surfaceView = mSurfaceView;
             mSurfaceView = null;
+            mCameraHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    releaseCamera();
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            removePreview(surfaceView);
+                        }
+                    });
+                }
+            });
         }
     };
 
+    // Called on camera thread
+    private void releaseCamera() {
+        mCameraHandler.removeCallbacks(mAutoFocusRunnable);
+
+        final Camera camera = mCamera;
+        if (camera == null) {
+            return;
+        }
+
+        mCamera = null;
+        mCameraStarted = false;
+        mCaptureInProgress = false;
+        mPendingCaptures = 0;
+        mLastCaptureTime = 0;
+        camera.setPreviewCallbackWithBuffer(null);
+        camera.stopPreview();
+        camera.release();
+    }
+
+    private void removePreview(SurfaceView surfaceView) {
+        if (surfaceView != null) {
+            surfaceView.setVisibility(View.GONE);
+            mSurfaceLayout.removeView(surfaceView);
+        }
+        if (!mCameraActive) {
+            mIconContainer.setVisibility(View.VISIBLE);
+        }
+    }
+
+    // Called on camera thread
     private Runnable mAutoFocusRunnable = new Runnable() {
         @Override
         public void run() {
-            if (mCameraStarted) {
-                mCamera.autoFocus(null);
+            final Camera camera = mCamera;
+            if (mCameraStarted && camera != null) {
+                try {
+                    camera.autoFocus(null);
+                } catch (RuntimeException e) {
+                    // Camera is being released
+                }
             }
         }
     };
 
-    private Object getContainingPanel() {
-        if (mContainingPanel != null) return mContainingPanel;
-
-        ViewParent parent = mContainer;
-        while (parent != null) {
-            try {
-                XposedHelpers.callMethod(parent, "isFullyExpanded");
-                mContainingPanel = parent;
-                return mContainingPanel;
-            } catch (Throwable t) { }
-            parent = parent.getParent();
-        }
-        return null;
-    }
-
     private void updateOrientation() {
         final WindowManager wm = (WindowManager) mContext.getSystemService(Context.WINDOW_SERVICE);
         int rotation = wm.getDefaultDisplay().getRotation();
@@ -362,7 +627,22 @@ public class CameraTile extends BasicTile {
             cameraOrientation = (mCameraInfo.orientation - mDisplayRotation + 360) % 360;
         }
 
-        mCamera.setDisplayOrientation(cameraOrientation);
+        // Talk to camera only when display orientation really changes
+        if (cameraOrientation == mCameraDisplayOrientation) {
+            return;
+        }
+        mCameraDisplayOrientation = cameraOrientation;
+
+        final int displayOrientation = cameraOrientation;
+        mCameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final Camera camera = mCamera;
+                if (camera != null) {
+                    camera.setDisplayOrientation(displayOrientation);
+                }
+            }
+        });
     }
 
     private class CameraOrientationListener extends OrientationEventListener {
@@ -372,7 +652,7 @@ public class CameraTile extends BasicTile {
 
         @Override
         public void onOrientationChanged(int orientation) {
-            if (mCamera == null || orientation == ORIENTATION_UNKNOWN) {
+            if (!mCameraActive || orientation == ORIENTATION_UNKNOWN) {
                 return;
             }
 
@@ -395,22 +675,37 @@ public class CameraTile extends BasicTile {
             mHolder.addCallback(this);
         }
 
-        public void surfaceCreated(SurfaceHolder holder) {
+        public void surfaceCreated(final SurfaceHolder holder) {
+            if (mCameraHandler == null) {
+                return;
+            }
+
             // The Surface has been created, now tell the camera where
             // to draw the preview.
-            try {
-                mCamera.setPreviewDisplay(holder);
-                mCamera.startPreview();
-                mCameraStarted = true;
-                mCameraBusy = false;
-                mHandler.postDelayed(mAutoFocusRunnable, 200);
-            } catch (IOException e) {
-                // Try release camera
-                mCamera.release();
-            }
+            mCameraHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // Preview might belong to camera session that has already ended
+                    if (mCamera != CameraTile.this.mCamera) {
+                        return;
+                    }
+                    try {
+                        mCamera.setPreviewDisplay(holder);
+                        mCamera.startPreview();
+                        mCameraStarted = true;
+                        mCameraHandler.postDelayed(mAutoFocusRunnable, 200);
+                        // Take pictures requested before preview was up
+                        captureNext();
+                    } catch (IOException e) {
+                        mHandler.post(mReleaseCameraRunnable);
+                    }
+                }
+            });
         }
 
         public void surfaceDestroyed(SurfaceHolder holder) {
+            // Surface goes away together with the panel window
+            mReleaseCameraRunnable.run();
         }
 
         public void surfaceChanged(SurfaceHolder holder, int format, int w, int h) {
@@ -420,8 +715,64 @@ public class CameraTile extends BasicTile {
     private class Storage {
         private static final String TAG = "CameraStorage";
         private String mRoot = Environment.getExternalStorageDirectory().toString();
+        private HandlerThread mWriterThread;
+        private Handler mWriterHandler;
+        private String mLastTitle;
+        private int mTitleCount;
         private Storage() {}
 
+        private synchronized Handler getWriterHandler() {
+            if (mWriterHandler == null) {
+                mWriterThread = new HandlerThread("GbCameraWriter", Process.THREAD_PRIORITY_BACKGROUND);
+                mWriterThread.start();
+                mWriterHandler = new Handler(mWriterThread.getLooper());
+            }
+            return mWriterHandler;
+        }
+
+        // Lets the writer finish images already queued and stops it
+        public synchronized void shutdown() {
+            if (mWriterHandler == null) return;
+
+            final HandlerThread writerThread = mWriterThread;
+            mWriterHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    writerThread.quit();
+                }
+            });
+            mWriterThread = null;
+            mWriterHandler = null;
+        }
+
+        // Queue the image to be named, saved and added to media store on writer thread.
+        public void addImageAsync(final ContentResolver resolver, final long date,
+                final int orientation, final int jpegRotation, final byte[] jpeg,
+                final int width, final int height) {
+            getWriterHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    final long startTime = SystemClock.uptimeMillis();
+                    final String title = generateTitle(date);
+                    addImage(resolver, title, date, orientation, jpegRotation, jpeg, width, height);
+                    if (DEBUG) log("Image " + title + " (" + jpeg.length + " bytes) saved in " +
+                            (SystemClock.uptimeMillis() - startTime) + "ms");
+                }
+            });
+        }
+
+        // Called on writer thread; pictures of a burst taken within the same second get a suffix
+        private String generateTitle(long date) {
+            final String title = mImageNameFormatter.format(new Date(date));
+            if (title.equals(mLastTitle)) {
+                mTitleCount++;
+                return title + "_" + mTitleCount;
+            }
+            mLastTitle = title;
+            mTitleCount = 0;
+            return title;
+        }
+
         public String writeFile(String title, byte[] data) {
             String path = generateFilepath(title);
             FileOutputStream out = null;
@@ -443,16 +794,16 @@ public class CameraTile extends BasicTile {
 
         // Save the image and add it to media store.
         public Uri addImage(ContentResolver resolver, String title, long date,
-                int orientation, byte[] jpeg, int width, int height) {
+                int orientation, int jpegRotation, byte[] jpeg, int width, int height) {
             // Save the image.
             String path = writeFile(title, jpeg);
-            return addImage(resolver, title, date, orientation, jpeg.length,
+            return addImage(resolver, title, date, orientation, jpegRotation, jpeg.length,
                     path, width, height);
         }
 
         // Add the image to media store.
         public Uri addImage(ContentResolver resolver, String title, long date,
-            int orientation, int jpegLength, String path, int width, int height) {
+            int orientation, int jpegRotation, int jpegLength, String path, int width, int height) {
 
             try {
                 ExifInterface exif = new ExifInterface(path);
@@ -471,7 +822,7 @@ public class CameraTile extends BasicTile {
                 Log.w(TAG, "Failed to read exif", e);
             }
 
-            if ((mJpegRotation + orientation) % 180 != 0) {
+            if ((jpegRotation + orientation) % 180 != 0) {
                 width = height;
                 height = width;
             }
@@ -86,6 +86,11 @@ public class ExpandedDesktopTile extends BasicTile {
         return R.layout.quick_settings_tile_expanded_desktop;
     }
 
+    @Override
+    protected int onGetTileViewId() {
+        return R.id.expanded_tileview;
+    }
+
     @Override
     protected void onTilePostCreate() {
         mHandler = new Handler();
@@ -95,6 +100,12 @@ public class ExpandedDesktopTile extends BasicTile {
         super.onTilePostCreate();
     }
 
+    @Override
+    protected void onTileDestroy() {
+        mContext.getContentResolver().unregisterContentObserver(mSettingsObserver);
+        super.onTileDestroy();
+    }
+
     @Override
     protected synchronized void updateTile() {
         mExpanded = (Settings.System.getInt(mContext.getContentResolver(),
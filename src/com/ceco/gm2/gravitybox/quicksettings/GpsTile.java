@@ -70,8 +70,24 @@ public class GpsTile extends BasicTile {
 
             @Override
             public void onClick(View v) {
-                Settings.Secure.setLocationProviderEnabled(
-                        mContext.getContentResolver(), LocationManager.GPS_PROVIDER, !mGpsEnabled);
+                final boolean enable = !mGpsEnabled;
+                // show expected state immediately; providers changed broadcast confirms it
+                mGpsEnabled = enable;
+                mGpsFixed = false;
+                updateResources();
+                TileActionExecutor.execute(new TileActionExecutor.Action("GpsTile.setLocationProviderEnabled") {
+                    @Override
+                    protected void execute() throws Throwable {
+                        Settings.Secure.setLocationProviderEnabled(
+                                mContext.getContentResolver(), LocationManager.GPS_PROVIDER, enable);
+                    }
+
+                    @Override
+                    protected void onFailed(Throwable t) {
+                        mGpsEnabled = !enable;
+                        updateResources();
+                    }
+                });
             }
         };
 
@@ -94,6 +110,11 @@ public class GpsTile extends BasicTile {
         return R.layout.quick_settings_tile_gps;
     }
 
+    @Override
+    protected int onGetTileViewId() {
+        return R.id.gps_tileview;
+    }
+
     @Override
     protected void onTilePostCreate() {
         IntentFilter intentFilter = new IntentFilter();
@@ -105,6 +126,12 @@ public class GpsTile extends BasicTile {
         super.onTilePostCreate();
     }
 
+    @Override
+    protected void onTileDestroy() {
+        mContext.unregisterReceiver(mLocationManagerReceiver);
+        super.onTileDestroy();
+    }
+
     @Override
     protected synchronized void updateTile() {
         if (mGpsEnabled) {
@@ -59,4 +59,9 @@ public class GravityBoxTile extends BasicTile {
     protected int onGetLayoutId() {
         return R.layout.quick_settings_tile_gravity;
     }
+
+    @Override
+    protected int onGetTileViewId() {
+        return R.id.gravitybox_tileview;
+    }
 }
\ No newline at end of file
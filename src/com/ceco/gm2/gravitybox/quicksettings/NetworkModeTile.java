@@ -41,6 +41,7 @@ public class NetworkModeTile extends BasicTile {
     private boolean mAllow2g3g;
     private boolean mAllowLte;
     private boolean mUseCdma;
+    private SettingsObserver mSettingsObserver;
 
     private static void log(String message) {
         XposedBridge.log(TAG + ": " + message);
@@ -135,14 +136,25 @@ public class NetworkModeTile extends BasicTile {
         return R.layout.quick_settings_tile_network_mode;
     }
 
+    @Override
+    protected int onGetTileViewId() {
+        return R.id.network_mode_tileview;
+    }
+
     @Override
     protected void onTilePostCreate() {
-        SettingsObserver observer = new SettingsObserver(new Handler());
-        observer.observe();
+        mSettingsObserver = new SettingsObserver(new Handler());
+        mSettingsObserver.observe();
 
         super.onTilePostCreate();
     }
 
+    @Override
+    protected void onTileDestroy() {
+        mContext.getContentResolver().unregisterContentObserver(mSettingsObserver);
+        super.onTileDestroy();
+    }
+
     @Override
     protected void onPreferenceInitialize(XSharedPreferences prefs) {
         int value = 0;
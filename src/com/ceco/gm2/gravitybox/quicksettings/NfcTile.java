@@ -77,6 +77,11 @@ public class NfcTile extends BasicTile {
         return R.layout.quick_settings_tile_nfc;
     }
 
+    @Override
+    protected int onGetTileViewId() {
+        return R.id.nfc_tileview;
+    }
+
     @Override
     protected void onTilePostCreate() {
         mStateChangeReceiver = new BroadcastReceiver() {
@@ -92,6 +97,12 @@ public class NfcTile extends BasicTile {
         super.onTilePostCreate();
     }
 
+    @Override
+    protected void onTileDestroy() {
+        mContext.unregisterReceiver(mStateChangeReceiver);
+        super.onTileDestroy();
+    }
+
     @Override
     protected synchronized void updateTile() {
         switch (mNfcState) {
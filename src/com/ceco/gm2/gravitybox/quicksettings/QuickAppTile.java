@@ -267,6 +267,11 @@ public class QuickAppTile extends BasicTile {
         return R.layout.quick_settings_tile_quick_app;
     }
 
+    @Override
+    protected int onGetTileViewId() {
+        return R.id.quickapp_tileview;
+    }
+
     @Override
     protected synchronized void updateTile() {
         mLabel = mMainApp.getAppName();
@@ -31,6 +31,9 @@ import android.content.res.Resources;
 import android.media.MediaPlayer;
 import android.media.MediaPlayer.OnCompletionListener;
 import android.os.Handler;
+import android.os.SystemClock;
+import android.text.format.DateUtils;
+import android.text.format.Formatter;
 import android.view.View;
 
 public class QuickRecordTile extends BasicTile {
@@ -47,6 +50,9 @@ public class QuickRecordTile extends BasicTile {
     private int mRecordingState = STATE_IDLE;
     private MediaPlayer mPlayer;
     private Handler mHandler;
+    private long mRecordingStartTime;
+    private int mRecordingBitRate;
+    private StringBuilder mElapsedTimeBuilder = new StringBuilder(8);
 
     private static void log(String message) {
         XposedBridge.log(TAG + ": " + message);
@@ -69,6 +75,8 @@ public class QuickRecordTile extends BasicTile {
                     case RecordingService.RECORDING_STATUS_STARTED:
                         mRecordingState = STATE_RECORDING;
                         mAudioFileName = intent.getStringExtra(RecordingService.EXTRA_AUDIO_FILENAME);
+                        mRecordingStartTime = SystemClock.elapsedRealtime();
+                        mRecordingBitRate = intent.getIntExtra(RecordingService.EXTRA_BIT_RATE, 0);
                         mHandler.postDelayed(autoStopRecord, 3600000);
                         if (DEBUG) log("Audio recording started");
                         break;
@@ -85,6 +93,9 @@ public class QuickRecordTile extends BasicTile {
                         log("Audio recording error: " + statusMessage);
                         break;
                 }
+                if (mRecordingState != STATE_RECORDING) {
+                    mHandler.removeCallbacks(mRecordingTick);
+                }
                 updateResources();
             }
         }
@@ -149,6 +160,11 @@ public class QuickRecordTile extends BasicTile {
         return R.layout.quick_settings_tile_quickrecord;
     }
 
+    @Override
+    protected int onGetTileViewId() {
+        return R.id.quickrecord_tileview;
+    }
+
     @Override
     protected void onTilePostCreate() {
         IntentFilter intentFilter = new IntentFilter(RecordingService.ACTION_RECORDING_STATUS_CHANGED);
@@ -157,6 +173,21 @@ public class QuickRecordTile extends BasicTile {
         super.onTilePostCreate();
     }
 
+    @Override
+    protected void onTileDestroy() {
+        mContext.unregisterReceiver(mBroadcastReceiver);
+        mHandler.removeCallbacks(mRecordingTick);
+        mHandler.removeCallbacks(autoStopRecord);
+        if (mPlayer != null) {
+            if (mPlayer.isPlaying()) {
+                mPlayer.stop();
+            }
+            mPlayer.release();
+            mPlayer = null;
+        }
+        super.onTileDestroy();
+    }
+
     @Override
     protected void updateTile() {
         final Resources res = mGbContext.getResources();
@@ -176,8 +207,13 @@ public class QuickRecordTile extends BasicTile {
                 mDrawableId = R.drawable.ic_qs_qr_playing;
                 break;
             case STATE_RECORDING:
-                mLabel = res.getString(R.string.quick_settings_qr_recording);
+                mLabel = getRecordingProgress(res);
                 mDrawableId = R.drawable.ic_qs_qr_recording;
+                // Refresh label on next full second. While panel is collapsed the refresh
+                // is deferred by scheduler so ticking stops until panel shows again.
+                final long elapsed = SystemClock.elapsedRealtime() - mRecordingStartTime;
+                mHandler.removeCallbacks(mRecordingTick);
+                mHandler.postDelayed(mRecordingTick, 1000 - elapsed % 1000);
                 break;
             case STATE_JUST_RECORDED:
                 mLabel = res.getString(R.string.quick_settings_qr_recorded);
@@ -198,6 +234,23 @@ public class QuickRecordTile extends BasicTile {
         super.updateTile();
     }
 
+    // Size is estimated from encoder bit rate so that file doesn't need to be touched
+    private String getRecordingProgress(Resources res) {
+        final long elapsed = Math.max(0, SystemClock.elapsedRealtime() - mRecordingStartTime);
+        final long size = (long) mRecordingBitRate / 8 * elapsed / 1000;
+        return res.getString(R.string.quick_settings_qr_recording_progress,
+                DateUtils.formatElapsedTime(mElapsedTimeBuilder, elapsed / 1000),
+                Formatter.formatShortFileSize(mContext, size));
+    }
+
+    final Runnable mRecordingTick = new Runnable() {
+        public void run() {
+            if (mRecordingState == STATE_RECORDING) {
+                updateResources();
+            }
+        }
+    };
+
     final Runnable autoStopRecord = new Runnable() {
         public void run() {
             if (mRecordingState == STATE_RECORDING) {
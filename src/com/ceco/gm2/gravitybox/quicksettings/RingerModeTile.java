@@ -94,6 +94,11 @@ public class RingerModeTile extends BasicTile {
         return R.layout.quick_settings_tile_ringer_mode;
     }
 
+    @Override
+    protected int onGetTileViewId() {
+        return R.id.ringer_mode_tileview;
+    }
+
     @Override
     protected void onTilePostCreate() {
         if (mHasVibrator) {
@@ -104,6 +109,15 @@ public class RingerModeTile extends BasicTile {
         super.onTilePostCreate();
     }
 
+    @Override
+    protected void onTileDestroy() {
+        if (mSettingsObserver != null) {
+            mContext.getContentResolver().unregisterContentObserver(mSettingsObserver);
+            mSettingsObserver = null;
+        }
+        super.onTileDestroy();
+    }
+
     @Override
     protected synchronized void updateTile() {
         // The title does not change
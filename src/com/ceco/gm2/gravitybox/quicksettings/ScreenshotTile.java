@@ -51,4 +51,9 @@ public class ScreenshotTile extends BasicTile {
     protected int onGetLayoutId() {
         return R.layout.quick_settings_tile_screenshot;
     }
+
+    @Override
+    protected int onGetTileViewId() {
+        return R.id.screenshot_tileview;
+    }
 }
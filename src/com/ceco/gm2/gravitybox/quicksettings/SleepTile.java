@@ -63,4 +63,9 @@ public class SleepTile extends BasicTile {
     protected int onGetLayoutId() {
         return R.layout.quick_settings_tile_sleep;
     }
+
+    @Override
+    protected int onGetTileViewId() {
+        return R.id.sleep_tileview;
+    }
 }
\ No newline at end of file
@@ -70,6 +70,11 @@ public class StayAwakeTile extends BasicTile {
         return R.layout.quick_settings_tile_stay_awake;
     }
 
+    @Override
+    protected int onGetTileViewId() {
+        return R.id.stay_awake_tileview;
+    }
+
     @Override
     protected void onTilePostCreate() {
         mSettingsObserver = new SettingsObserver(new Handler());
@@ -78,6 +83,12 @@ public class StayAwakeTile extends BasicTile {
         super.onTilePostCreate();
     }
 
+    @Override
+    protected void onTileDestroy() {
+        mContext.getContentResolver().unregisterContentObserver(mSettingsObserver);
+        super.onTileDestroy();
+    }
+
     @Override
     protected synchronized void updateTile() {
         if (mCurrentTimeout == NEVER_SLEEP) {
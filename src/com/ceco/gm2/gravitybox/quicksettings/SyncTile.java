@@ -54,6 +54,11 @@ public class SyncTile extends BasicTile {
         return R.layout.quick_settings_tile_sync;
     }
 
+    @Override
+    protected int onGetTileViewId() {
+        return R.id.sync_tileview;
+    }
+
     @Override
     protected void onTilePostCreate() {
         mReceiver = new GravityBoxResultReceiver(mHandler);
@@ -76,6 +81,15 @@ public class SyncTile extends BasicTile {
         super.onTilePostCreate();
     }
 
+    @Override
+    protected void onTileDestroy() {
+        if (mSyncObserverHandle != null) {
+            ContentResolver.removeStatusChangeListener(mSyncObserverHandle);
+            mSyncObserverHandle = null;
+        }
+        super.onTileDestroy();
+    }
+
     @Override
     protected void updateTile() {
         if (mSyncState) {
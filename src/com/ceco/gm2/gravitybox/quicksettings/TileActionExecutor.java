@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2013 Peter Gregus for GravityBox Project (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.gm2.gravitybox.quicksettings;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import de.robv.android.xposed.XposedBridge;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+
+// Runs blocking tile actions (binder and settings calls) off the SystemUI main thread.
+// Tile is expected to show the expected state right away and reconcile it
+// when system confirms the change or when the action fails.
+public class TileActionExecutor {
+    private static final String TAG = "GB:TileActionExecutor";
+    private static final boolean DEBUG = false;
+    private static final int MAX_PENDING_ACTIONS = 16;
+
+    private static final Handler mHandler = new Handler(Looper.getMainLooper());
+    private static final Map<String, ActionStats> mStats = new HashMap<String, ActionStats>();
+
+    private static final ThreadPoolExecutor mExecutor = new ThreadPoolExecutor(
+            1, 1, 30, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(MAX_PENDING_ACTIONS),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "GbTileActions");
+                }
+            });
+
+    static {
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private static void log(String message) {
+        XposedBridge.log(TAG + ": " + message);
+    }
+
+    public static abstract class Action {
+        private final String mName;
+        private long mQueuedTime;
+
+        public Action(String name) {
+            mName = name;
+        }
+
+        // Called on background thread
+        protected abstract void execute() throws Throwable;
+
+        // Called on main thread after execute() returned
+        protected void onSucceeded() { }
+
+        // Called on main thread if execute() failed or action could not be queued
+        protected void onFailed(Throwable t) { }
+    }
+
+    public static class ActionStats {
+        public int count;
+        public int failures;
+        public long totalLatency;
+        public long maxLatency;
+
+        @Override
+        public String toString() {
+            return "count=" + count + "; failures=" + failures +
+                    "; avg=" + (count > 0 ? totalLatency / count : 0) + "ms; max=" + maxLatency + "ms";
+        }
+    }
+
+    public static void execute(final Action action) {
+        action.mQueuedTime = SystemClock.uptimeMillis();
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Throwable error = null;
+                    try {
+                        action.execute();
+                    } catch (Throwable t) {
+                        XposedBridge.log(t);
+                        error = t;
+                    }
+                    final long latency = SystemClock.uptimeMillis() - action.mQueuedTime;
+                    postResult(action, error, latency);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log("Too many pending actions; rejecting " + action.mName);
+            postResult(action, e, 0);
+        }
+    }
+
+    private static void postResult(final Action action, final Throwable error, final long latency) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final ActionStats stats = updateStats(action.mName, latency, error != null);
+                if (DEBUG) log(action.mName + " took " + latency + "ms; " + stats);
+                if (error == null) {
+                    action.onSucceeded();
+                } else {
+                    action.onFailed(error);
+                }
+            }
+        });
+    }
+
+    private static ActionStats updateStats(String name, long latency, boolean failed) {
+        ActionStats stats = mStats.get(name);
+        if (stats == null) {
+            stats = new ActionStats();
+            mStats.put(name, stats);
+        }
+        stats.count++;
+        if (failed) stats.failures++;
+        stats.totalLatency += latency;
+        stats.maxLatency = Math.max(stats.maxLatency, latency);
+        return stats;
+    }
+
+    // Must be called on main thread
+    public static ActionStats getStats(String name) {
+        return mStats.get(name);
+    }
+}
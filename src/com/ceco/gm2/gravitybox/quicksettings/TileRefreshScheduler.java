@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2013 Peter Gregus for GravityBox Project (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.gm2.gravitybox.quicksettings;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import de.robv.android.xposed.XposedBridge;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+// Defers tile refreshes while notification panel is collapsed and
+// coalesces refreshes of visible tiles to at most one per frame
+public class TileRefreshScheduler {
+    private static final String TAG = "GB:TileRefreshScheduler";
+    private static final boolean DEBUG = false;
+
+    private static final Set<AQuickSettingsTile> mDirtyTiles = new LinkedHashSet<AQuickSettingsTile>();
+    private static final Handler mHandler = new Handler(Looper.getMainLooper());
+    private static boolean mPanelVisible;
+    private static boolean mFrameScheduled;
+
+    private static int mRefreshCount;
+    private static int mDeferredCount;
+    private static int mCoalescedCount;
+
+    private static void log(String message) {
+        XposedBridge.log(TAG + ": " + message);
+    }
+
+    public static void requestRefresh(final AQuickSettingsTile tile) {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    requestRefresh(tile);
+                }
+            });
+            return;
+        }
+
+        if (!mDirtyTiles.add(tile)) {
+            if (mPanelVisible) {
+                mCoalescedCount++;
+            } else {
+                mDeferredCount++;
+            }
+            return;
+        }
+
+        if (mPanelVisible) {
+            scheduleFrame();
+        } else {
+            mDeferredCount++;
+        }
+    }
+
+    public static void cancelRefresh(final AQuickSettingsTile tile) {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    cancelRefresh(tile);
+                }
+            });
+            return;
+        }
+
+        mDirtyTiles.remove(tile);
+    }
+
+    public static void setPanelVisible(boolean visible) {
+        if (mPanelVisible == visible) return;
+
+        mPanelVisible = visible;
+        if (DEBUG) log("panel visible: " + visible + "; " + getStats());
+        if (mPanelVisible) {
+            flush();
+        }
+    }
+
+    public static boolean isPanelVisible() {
+        return mPanelVisible;
+    }
+
+    public static int getRefreshCount() {
+        return mRefreshCount;
+    }
+
+    public static int getSkippedCount() {
+        return mDeferredCount + mCoalescedCount;
+    }
+
+    public static String getStats() {
+        return "refreshed=" + mRefreshCount + "; deferred=" + mDeferredCount +
+                "; coalesced=" + mCoalescedCount;
+    }
+
+    private static void scheduleFrame() {
+        if (mFrameScheduled) return;
+
+        mFrameScheduled = true;
+        Choreographer.getInstance().postFrameCallback(mFrameCallback);
+    }
+
+    private static Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mFrameScheduled = false;
+            if (mPanelVisible) {
+                flush();
+            }
+        }
+    };
+
+    private static void flush() {
+        if (mDirtyTiles.isEmpty()) return;
+
+        // tiles may request another refresh while being updated
+        final List<AQuickSettingsTile> tiles = new ArrayList<AQuickSettingsTile>(mDirtyTiles);
+        mDirtyTiles.clear();
+        for (AQuickSettingsTile t : tiles) {
+            // tile might have been destroyed meanwhile
+            if (t.mTile == null) continue;
+            try {
+                t.updateTile();
+                mRefreshCount++;
+            } catch (Throwable th) {
+                XposedBridge.log(th);
+            }
+        }
+    }
+}
@@ -59,6 +59,11 @@ public class TorchTile extends BasicTile {
         return R.layout.quick_settings_tile_torch;
     }
 
+    @Override
+    protected int onGetTileViewId() {
+        return R.id.torch_tileview;
+    }
+
     @Override
     protected void onTilePostCreate() {
         IntentFilter intentFilter = new IntentFilter(TorchService.ACTION_TORCH_STATUS_CHANGED);
@@ -67,6 +72,12 @@ public class TorchTile extends BasicTile {
         super.onTilePostCreate();
     }
 
+    @Override
+    protected void onTileDestroy() {
+        mContext.unregisterReceiver(mBroadcastReceiver);
+        super.onTileDestroy();
+    }
+
     @Override
     protected void updateTile() {
         if (mTorchStatus == TorchService.TORCH_STATUS_ON) {
@@ -56,4 +56,9 @@ public class VolumeTile extends BasicTile {
     protected int onGetLayoutId() {
         return R.layout.quick_settings_tile_volume;
     }
+
+    @Override
+    protected int onGetTileViewId() {
+        return R.id.volume_tileview;
+    }
 }
\ No newline at end of file
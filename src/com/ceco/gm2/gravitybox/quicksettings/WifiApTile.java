@@ -40,8 +40,25 @@ public class WifiApTile extends BasicTile implements WifiApStateChangeListener {
                         mWifiApState != WifiManagerWrapper.WIFI_AP_STATE_DISABLED)
                     return;
                 
-                boolean enabled = (mWifiApState == WifiManagerWrapper.WIFI_AP_STATE_DISABLED);
-                mWifiManager.setWifiApEnabled(enabled);
+                final boolean enabled = (mWifiApState == WifiManagerWrapper.WIFI_AP_STATE_DISABLED);
+                // show transitional state immediately; AP state receiver reports the real one
+                mWifiApState = enabled ? WifiManagerWrapper.WIFI_AP_STATE_ENABLING :
+                    WifiManagerWrapper.WIFI_AP_STATE_DISABLING;
+                updateResources();
+                TileActionExecutor.execute(new TileActionExecutor.Action("WifiApTile.setWifiApEnabled") {
+                    @Override
+                    protected void execute() throws Throwable {
+                        if (!mWifiManager.setWifiApEnabled(enabled)) {
+                            throw new IllegalStateException("setWifiApEnabled failed");
+                        }
+                    }
+
+                    @Override
+                    protected void onFailed(Throwable t) {
+                        mWifiApState = mWifiManager.getWifiApState();
+                        updateResources();
+                    }
+                });
             }
         };
 
@@ -66,6 +83,17 @@ public class WifiApTile extends BasicTile implements WifiApStateChangeListener {
         return R.layout.quick_settings_tile_wifi_ap;
     }
 
+    @Override
+    protected int onGetTileViewId() {
+        return R.id.wifi_ap_tileview;
+    }
+
+    @Override
+    protected void onTileDestroy() {
+        mWifiManager.setWifiApStateChangeListener(null);
+        super.onTileDestroy();
+    }
+
     @Override
     protected synchronized void updateTile() {
         switch(mWifiApState) {
@@ -46,6 +46,8 @@ public class WifiTile extends BasicTile implements WifiStateChangeListener {
     private WifiManagerWrapper mWifiManager;
     private Map<String,Integer> mDrawableMap;
     private boolean mTurningOn = false;
+    private List<Object> mSignalClusters;
+    private Object mSignalCluster;
 
     private static void log(String message) {
         XposedBridge.log(TAG + ": " + message);
@@ -85,6 +87,11 @@ public class WifiTile extends BasicTile implements WifiStateChangeListener {
         return R.layout.quick_settings_tile_wifi;
     }
 
+    @Override
+    protected int onGetTileViewId() {
+        return R.id.wifi_tileview;
+    }
+
     @SuppressWarnings("unchecked")
     @Override
     protected void onTilePostCreate() {
@@ -94,10 +101,11 @@ public class WifiTile extends BasicTile implements WifiStateChangeListener {
             final Object networkController = 
                     XposedHelpers.getObjectField(mStatusBar, Utils.hasGeminiSupport() ? 
                             "mNetworkControllerGemini" : "mNetworkController");
-            final List<Object> signalClusters = 
+            mSignalClusters = 
                     (List<Object>) XposedHelpers.getObjectField(networkController, "mSignalClusters");
-            signalClusters.add(Proxy.newProxyInstance(mContext.getClassLoader(),
-                            new Class<?>[] { signalClusterClass }, new WifiSignalCluster()));
+            mSignalCluster = Proxy.newProxyInstance(mContext.getClassLoader(),
+                            new Class<?>[] { signalClusterClass }, new WifiSignalCluster());
+            mSignalClusters.add(mSignalCluster);
         } catch(Throwable t) {
             XposedBridge.log(t);
         }
@@ -105,6 +113,22 @@ public class WifiTile extends BasicTile implements WifiStateChangeListener {
         super.onTilePostCreate();
     }
 
+    @Override
+    protected void onTileDestroy() {
+        mWifiManager.setWifiStateChangeListener(null);
+        if (mSignalClusters != null) {
+            // proxy doesn't implement equals() so it has to be looked up by identity
+            for (int i = mSignalClusters.size() - 1; i >= 0; i--) {
+                if (mSignalClusters.get(i) == mSignalCluster) {
+                    mSignalClusters.remove(i);
+                }
+            }
+            mSignalClusters = null;
+            mSignalCluster = null;
+        }
+        super.onTileDestroy();
+    }
+
     @Override
     protected synchronized void updateTile() {
         mTextView.setText(mLabel);